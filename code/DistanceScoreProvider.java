@@ -1,43 +1,84 @@
 package edu.cornell.georeference;
 
+import java.io.IOException;
+
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
 import org.apache.lucene.search.function.CustomScoreProvider;
+import org.apache.lucene.spatial.DistanceUtils;
 import org.apache.lucene.spatial.tier.DistanceQueryBuilder;
 
 /**
  * This is a child class of the CustomerScoreProvider. It is determines how distance affects the score.
+ * The distance of a document is computed from the latitudes and longitudes that the FieldCache keeps for 
+ * the segment, which are the same arrays the Lucene Spatial filters the documents with.
  * 
  * @author Yang Yang Zheng
  *
  */
 public class DistanceScoreProvider extends CustomScoreProvider {
 	
-	private DistanceQueryBuilder dq;
 	private int scoreOption;
 	
+	// The latitudes and longitudes of the documents of the segment
+	private double[] latitudes;
+	private double[] longitudes;
+	
+	// The point that the distances are from, in radians
+	private double latitude;
+	private double longitude;
+	private double cosLatitude;
+	
 	/**
 	 * Create a distance score provider by providing the reader, distance query, and score option
 	 * 
-	 * @param reader 
-	 * @param dq  the distance query builder that provides the distances
+	 * @param reader  the reader of the segment that is scored
+	 * @param dq  the distance query builder that provides the point the distances are from
 	 * @param scoreOption  controls how distance affects the score
+	 * @throws IOException if the latitudes and longitudes can't be loaded
 	 */
-	public DistanceScoreProvider(IndexReader reader, DistanceQueryBuilder dq, int scoreOption) {
+	public DistanceScoreProvider(IndexReader reader, DistanceQueryBuilder dq, int scoreOption) throws IOException {
+		this(reader, dq.getLat(), dq.getLng(), scoreOption);
+	}
+	
+	/**
+	 * Create a distance score provider by providing the reader, the point the distances are from, and score 
+	 * option
+	 * 
+	 * @param reader  the reader of the segment that is scored
+	 * @param latitude  the latitude of the point
+	 * @param longitude  the longitude of the point
+	 * @param scoreOption  controls how distance affects the score
+	 * @throws IOException if the latitudes and longitudes can't be loaded
+	 */
+	public DistanceScoreProvider(IndexReader reader, double latitude, double longitude, int scoreOption) 
+			throws IOException {
 		super(reader);
-		this.dq = dq;
 		this.scoreOption = scoreOption;
+		this.latitudes = FieldCache.DEFAULT.getDoubles(reader, GeoIndexWriter.LATITUDE_FIELD);
+		this.longitudes = FieldCache.DEFAULT.getDoubles(reader, GeoIndexWriter.LONGITUDE_FIELD);
+		this.latitude = Math.toRadians(latitude);
+		this.longitude = Math.toRadians(longitude);
+		this.cosLatitude = Math.cos(this.latitude);
 	}
 	
 	// Override
 	// This function control how the distance impacts the score
 	public float customScore(int doc, float subQueryScore, float valSrcScore) { 
-		if (dq.getDistanceFilter().getDistance(doc) == null) {
-			return 0; 
-		}
-		 
-		double distance = dq.getDistanceFilter().getDistance(doc); 
+		// The haversine distance in miles
+		double docLatitude = Math.toRadians(latitudes[doc]);
+		double sinHalfLatitude = Math.sin((docLatitude - latitude) / 2);
+		double sinHalfLongitude = Math.sin((Math.toRadians(longitudes[doc]) - longitude) / 2);
+		double h = sinHalfLatitude * sinHalfLatitude 
+				+ cosLatitude * Math.cos(docLatitude) * sinHalfLongitude * sinHalfLongitude;
+		double distance = 2 * DistanceUtils.EARTH_MEAN_RADIUS_MI * Math.asin(Math.sqrt(Math.min(h, 1)));
 		
-		// Distance affects the score differently depending on the score option
+		return scoreDistance(subQueryScore, distance, scoreOption);
+	}
+	
+	// Distance affects the score differently depending on the score option; the score is unchanged for any 
+	// other option
+	static float scoreDistance(float subQueryScore, double distance, int scoreOption) {
 		if (scoreOption == DistanceScoreQuery.LINEAR) {
 			if (distance > 1.0) {
 				return (float) (subQueryScore / distance);
@@ -56,4 +97,15 @@ public class DistanceScoreProvider extends CustomScoreProvider {
 		 
 		return subQueryScore;
 	}
+	
+	// Get the haversine distance in miles of a document from a point
+	static double getDistance(double[] point, double docLatitude, double docLongitude) {
+		double latitude = Math.toRadians(point[0]);
+		double lat = Math.toRadians(docLatitude);
+		double sinHalfLatitude = Math.sin((lat - latitude) / 2);
+		double sinHalfLongitude = Math.sin((Math.toRadians(docLongitude) - Math.toRadians(point[1])) / 2);
+		double h = sinHalfLatitude * sinHalfLatitude 
+				+ Math.cos(latitude) * Math.cos(lat) * sinHalfLongitude * sinHalfLongitude;
+		return 2 * DistanceUtils.EARTH_MEAN_RADIUS_MI * Math.asin(Math.sqrt(Math.min(h, 1)));
+	}
 }
@@ -1,5 +1,7 @@
 package edu.cornell.georeference;
 
+import java.io.IOException;
+
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.function.CustomScoreProvider;
@@ -16,12 +18,14 @@ import org.apache.lucene.spatial.tier.DistanceQueryBuilder;
 @SuppressWarnings("serial")
 public class DistanceScoreQuery extends CustomScoreQuery {
 	
-	// Distance score options
+	// Distance score options: the score is divided by the distance in miles, by its square root or by its
+	// natural logarithm, so places are ranked by distance ever less strictly
 	public static final int LINEAR = 1;
-	public static final int SQUARE_ROOT = 1;
-	public static final int LOGARITHMIC = 1;
+	public static final int SQUARE_ROOT = 2;
+	public static final int LOGARITHMIC = 3;
 	
-	private DistanceQueryBuilder dq;
+	private double latitude;
+	private double longitude;
 	private int scoreOption;
 	
 	/**
@@ -33,8 +37,22 @@ public class DistanceScoreQuery extends CustomScoreQuery {
 	 * @param scoreOption controls how the distance affects the score
 	 */
 	public DistanceScoreQuery(Query subQuery, DistanceQueryBuilder dq, int scoreOption) {
+		this(subQuery, dq.getLat(), dq.getLng(), scoreOption);
+	}
+	
+	/**
+	 * Create a distance score query by providing the subquery, the point the distances are from, and 
+	 * the score option
+	 * 
+	 * @param subQuery  the sub query that is to be wrapped around
+	 * @param latitude  the latitude of the point
+	 * @param longitude  the longitude of the point
+	 * @param scoreOption controls how the distance affects the score
+	 */
+	public DistanceScoreQuery(Query subQuery, double latitude, double longitude, int scoreOption) {
 		super(subQuery);
-		this.dq = dq;
+		this.latitude = latitude;
+		this.longitude = longitude;
 		this.scoreOption = scoreOption;
 	}
 	
@@ -48,13 +66,29 @@ public class DistanceScoreQuery extends CustomScoreQuery {
 	 */
 	public DistanceScoreQuery(Query subQuery, ValueSourceQuery valSrcQuery, DistanceQueryBuilder dq, int scoreOption) {
 		super(subQuery, valSrcQuery);
-		this.dq = dq;
+		this.latitude = dq.getLat();
+		this.longitude = dq.getLng();
 		this.scoreOption = scoreOption;
 	}
 	
 	// Override
-	protected CustomScoreProvider getCustomScoreProvider(IndexReader reader) { 
-		return new DistanceScoreProvider(reader, dq, scoreOption);
+	protected CustomScoreProvider getCustomScoreProvider(IndexReader reader) throws IOException { 
+		return new DistanceScoreProvider(reader, latitude, longitude, scoreOption);
+	}
+	
+	// Override
+	public boolean equals(Object o) {
+		if (!super.equals(o)) {
+			return false;
+		}
+		DistanceScoreQuery other = (DistanceScoreQuery) o;
+		return latitude == other.latitude && longitude == other.longitude && scoreOption == other.scoreOption;
+	}
+	
+	// Override
+	public int hashCode() {
+		long bits = Double.doubleToLongBits(latitude) * 31 + Double.doubleToLongBits(longitude);
+		return (super.hashCode() * 31 + (int) (bits ^ (bits >>> 32))) * 31 + scoreOption;
 	}
 	
 }
@@ -0,0 +1,46 @@
+package edu.cornell.georeference;
+
+/**
+ * One search of a batch of searches for places by name (see Georeference.searchLocations())
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+public class GeoBatchEntry {
+
+	private String placeName;
+	private String bound;
+	private String nearPoints;
+
+	/**
+	 * Create a search of a batch
+	 *
+	 * @param placeName  the name of the place to search for
+	 * @param bound  a boundary box that filters out places outside of the box, or null
+	 * @param nearPoints  points and their ranges that affect the score, or null
+	 */
+	public GeoBatchEntry(String placeName, String bound, String nearPoints) {
+		this.placeName = placeName;
+		this.bound = bound;
+		this.nearPoints = nearPoints;
+	}
+
+	// Getters
+
+	public String getPlaceName() {
+		return placeName;
+	}
+
+	public String getBound() {
+		return bound;
+	}
+
+	public String getNearPoints() {
+		return nearPoints;
+	}
+
+	// Override
+	public String toString() {
+		return placeName + " (" + bound + "; " + nearPoints + ")";
+	}
+}
@@ -0,0 +1,327 @@
+package edu.cornell.georeference;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredDocIdSet;
+import org.apache.lucene.search.NumericRangeFilter;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.OpenBitSetDISI;
+
+/**
+ * This class caches the places in the bounds of searches as a bitset for every segment of the indices, so
+ * searches in the same regions don't look the places up again. Bounds are rounded outwards to a grid of
+ * 1/1000 degree and the bounds that round to the same box share its bitsets; the places of the box outside
+ * a bound that is not on the grid are left out when the bitsets are used. The least recently used boxes
+ * are evicted when the cache holds too many.
+ *
+ * The bitsets of a segment are dropped with the segment and deleted places are left out when the bitsets
+ * are used, so the cache does not have to be invalidated when the indices are reopened.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+public class GeoBoundFilterCache {
+
+	// Default max number of boxes in the cache
+	public static final int DEFAULT_MAX_ENTRIES = 64;
+
+	// Bounds are rounded to multiples of 1 / STEPS_PER_DEGREE degree
+	private static final int STEPS_PER_DEGREE = 1000;
+
+	// A bound rounded to the grid, in steps; the min longitude is greater than the max longitude if the box
+	// crosses the date line
+	private static class Box {
+		private int minLatitude;
+		private int maxLatitude;
+		private int minLongitude;
+		private int maxLongitude;
+
+		Box(int minLatitude, int maxLatitude, int minLongitude, int maxLongitude) {
+			this.minLatitude = minLatitude;
+			this.maxLatitude = maxLatitude;
+			this.minLongitude = minLongitude;
+			this.maxLongitude = maxLongitude;
+		}
+
+		// Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Box)) {
+				return false;
+			}
+			Box other = (Box) o;
+			return minLatitude == other.minLatitude && maxLatitude == other.maxLatitude
+					&& minLongitude == other.minLongitude && maxLongitude == other.maxLongitude;
+		}
+
+		// Override
+		public int hashCode() {
+			return ((minLatitude * 31 + maxLatitude) * 31 + minLongitude) * 31 + maxLongitude;
+		}
+	}
+
+	private int maxEntries;
+
+	// The bitsets of the boxes in order of access, the least recently used first; the bitsets of a box are
+	// keyed by the core cache keys of the segments
+	private LinkedHashMap<Box, Map<Object, OpenBitSet>> entries;
+
+	private long numOfHits;
+	private long numOfMisses;
+	private long numOfEvictions;
+
+	/**
+	 * Create a cache with the default max number of boxes
+	 */
+	public GeoBoundFilterCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * Create a cache
+	 *
+	 * @param maxEntries  the max number of boxes whose bitsets are in the cache
+	 */
+	public GeoBoundFilterCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<Box, Map<Object, OpenBitSet>>(16, 0.75f, true);
+	}
+
+	// Getters
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public synchronized int getNumOfEntries() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the number of times the bitset of a segment was found in the cache
+	 *
+	 * @return the number of hits
+	 */
+	public synchronized long getNumOfHits() {
+		return numOfHits;
+	}
+
+	/**
+	 * Get the number of times the bitset of a segment had to be built
+	 *
+	 * @return the number of misses
+	 */
+	public synchronized long getNumOfMisses() {
+		return numOfMisses;
+	}
+
+	/**
+	 * Get the share of the bitsets that were found in the cache
+	 *
+	 * @return the hit rate, from 0 to 1; 0 if no bitset has been asked for yet
+	 */
+	public synchronized double getHitRate() {
+		return numOfHits + numOfMisses > 0 ? (double) numOfHits / (numOfHits + numOfMisses) : 0;
+	}
+
+	/**
+	 * Get the number of boxes that were evicted to make room for other boxes
+	 *
+	 * @return the number of evictions
+	 */
+	public synchronized long getNumOfEvictions() {
+		return numOfEvictions;
+	}
+
+	/**
+	 * Drop all bitsets
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	// Override
+	public synchronized String toString() {
+		return String.format("%d boxes; %d hits, %d misses (%.1f%% hit rate), %d evictions", entries.size(),
+				numOfHits, numOfMisses, getHitRate() * 100, numOfEvictions);
+	}
+
+	/**
+	 * Create a filter of the places in a bound
+	 *
+	 * @param minLatitude  the min latitude
+	 * @param maxLatitude  the max latitude
+	 * @param minLongitude  the min (western) longitude
+	 * @param maxLongitude  the max (eastern) longitude; if it is less than the min longitude, the bound
+	 * crosses the date line
+	 * @param geohashLength  the length of the geohash prefixes of the index (see GeoIndexLayout), or 0 if it
+	 * has none
+	 * @param cache  the cache of the bitsets, or null to not cache them
+	 * @return the filter
+	 */
+	static Filter createFilter(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude,
+			int geohashLength, GeoBoundFilterCache cache) {
+		return new BoundFilter(minLatitude, maxLatitude, minLongitude, maxLongitude, geohashLength, cache);
+	}
+
+	// All methods below are private helper methods
+
+	// Get the bitset of a box for a segment, building it if it is not cached
+	private OpenBitSet getDocs(BoundFilter filter, IndexReader segment) throws IOException {
+		Object segmentKey = segment.getCoreCacheKey();
+		synchronized (this) {
+			Map<Object, OpenBitSet> segments = entries.get(filter.box);
+			OpenBitSet docs = segments != null ? segments.get(segmentKey) : null;
+			if (docs != null) {
+				numOfHits++;
+				return docs;
+			}
+			numOfMisses++;
+		}
+
+		// The bitset is built outside the lock, so other searches are not held up
+		OpenBitSet docs = filter.getBoxDocs(segment);
+		synchronized (this) {
+			Map<Object, OpenBitSet> segments = entries.get(filter.box);
+			if (segments == null) {
+				segments = new WeakHashMap<Object, OpenBitSet>();
+				entries.put(filter.box, segments);
+			}
+			segments.put(segmentKey, docs);
+
+			// Evict the least recently used boxes until the cache is within its limit
+			Iterator<Box> iterator = entries.keySet().iterator();
+			while (entries.size() > maxEntries && iterator.hasNext()) {
+				iterator.next();
+				iterator.remove();
+				numOfEvictions++;
+			}
+		}
+		return docs;
+	}
+
+	// Round a bound down or up to the grid
+	private static int toSteps(double degrees, boolean up) {
+		double steps = degrees * STEPS_PER_DEGREE;
+		return (int) (up ? Math.ceil(steps) : Math.floor(steps));
+	}
+
+	private static double toDegrees(int steps) {
+		return steps / (double) STEPS_PER_DEGREE;
+	}
+
+	// The places in a bound; the places in the box of the bound are looked up once for every segment and
+	// kept in the cache
+	@SuppressWarnings("serial")
+	private static class BoundFilter extends Filter {
+		private double minLatitude;
+		private double maxLatitude;
+		private double minLongitude;
+		private double maxLongitude;
+		private int geohashLength;
+		private GeoBoundFilterCache cache;
+
+		// The box of the bound and whether the bound is exactly on the grid
+		private Box box;
+		private boolean onGrid;
+
+		BoundFilter(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude,
+				int geohashLength, GeoBoundFilterCache cache) {
+			this.minLatitude = minLatitude;
+			this.maxLatitude = maxLatitude;
+			this.minLongitude = minLongitude;
+			this.maxLongitude = maxLongitude;
+			this.geohashLength = geohashLength;
+			this.cache = cache;
+			this.box = new Box(toSteps(minLatitude, false), toSteps(maxLatitude, true), toSteps(minLongitude, false),
+					toSteps(maxLongitude, true));
+			this.onGrid = toDegrees(box.minLatitude) == minLatitude && toDegrees(box.maxLatitude) == maxLatitude
+					&& toDegrees(box.minLongitude) == minLongitude && toDegrees(box.maxLongitude) == maxLongitude;
+		}
+
+		// Override
+		public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+			final IndexReader segment = reader;
+			OpenBitSet docs = cache != null ? cache.getDocs(this, segment) : getBoxDocs(segment);
+			if (onGrid && !segment.hasDeletions()) {
+				return docs;
+			}
+
+			// Leave out the deleted places and the places of the box outside the bound
+			final double[] latitudes = onGrid ? null : FieldCache.DEFAULT.getDoubles(segment,
+					GeoIndexWriter.LATITUDE_FIELD);
+			final double[] longitudes = onGrid ? null : FieldCache.DEFAULT.getDoubles(segment,
+					GeoIndexWriter.LONGITUDE_FIELD);
+			return new FilteredDocIdSet(docs) {
+				protected boolean match(int doc) {
+					return (onGrid || isInBound(latitudes[doc], longitudes[doc], minLatitude, maxLatitude,
+							minLongitude, maxLongitude)) && !(segment.hasDeletions() && segment.isDeleted(doc));
+				}
+			};
+		}
+
+		// Override
+		public String toString() {
+			return "BoundFilter(" + minLatitude + "," + minLongitude + ";" + maxLatitude + "," + maxLongitude + ")";
+		}
+
+		// Get the places of a segment in the box; they can include places that have been deleted since the
+		// segment was opened. Without geohash prefixes, the places are looked up in the numeric latitude and
+		// longitude fields, with two longitude ranges if the box crosses the date line
+		private OpenBitSet getBoxDocs(IndexReader segment) throws IOException {
+			double minLat = toDegrees(box.minLatitude);
+			double maxLat = toDegrees(box.maxLatitude);
+			double minLng = toDegrees(box.minLongitude);
+			double maxLng = toDegrees(box.maxLongitude);
+			if (geohashLength > 0) {
+				return GeoHashFilter.createBoundFilter(minLat, maxLat, minLng, maxLng, geohashLength).getDocs(segment);
+			}
+			OpenBitSetDISI docs = new OpenBitSetDISI(segment.maxDoc());
+			if (minLng <= maxLng) {
+				addDocs(docs, NumericRangeFilter.newDoubleRange(GeoIndexWriter.LONGITUDE_FIELD, minLng, maxLng, true, 
+						true), segment);
+			}
+			else {
+				addDocs(docs, NumericRangeFilter.newDoubleRange(GeoIndexWriter.LONGITUDE_FIELD, minLng, 180.0, true, 
+						true), segment);
+				addDocs(docs, NumericRangeFilter.newDoubleRange(GeoIndexWriter.LONGITUDE_FIELD, -180.0, maxLng, true, 
+						true), segment);
+			}
+			OpenBitSetDISI latitudeDocs = new OpenBitSetDISI(segment.maxDoc());
+			addDocs(latitudeDocs, NumericRangeFilter.newDoubleRange(GeoIndexWriter.LATITUDE_FIELD, minLat, maxLat, 
+					true, true), segment);
+			docs.and(latitudeDocs);
+			return docs;
+		}
+	}
+
+	// Add the places of a segment that pass a filter to a bitset
+	private static void addDocs(OpenBitSetDISI docs, Filter filter, IndexReader segment) throws IOException {
+		DocIdSet filterDocs = filter.getDocIdSet(segment);
+		DocIdSetIterator iterator = filterDocs != null ? filterDocs.iterator() : null;
+		if (iterator != null) {
+			docs.inPlaceOr(iterator);
+		}
+	}
+
+	// Check whether a place is in a bound, which crosses the date line if its min longitude is greater than
+	// its max longitude
+	private static boolean isInBound(double latitude, double longitude, double minLatitude, double maxLatitude,
+			double minLongitude, double maxLongitude) {
+		if (latitude < minLatitude || latitude > maxLatitude) {
+			return false;
+		}
+		if (minLongitude <= maxLongitude) {
+			return longitude >= minLongitude && longitude <= maxLongitude;
+		}
+		return longitude >= minLongitude || longitude <= maxLongitude;
+	}
+}
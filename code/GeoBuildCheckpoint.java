@@ -0,0 +1,150 @@
+package edu.cornell.georeference;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+
+/**
+ * This class records how far a build has got through its data source file. It is stored in the user data
+ * of every commit of the index, so after a failed build the index holds the rows up to the last checkpoint
+ * and the build can continue reading the file from there. The layout of the index is stored with it.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+class GeoBuildCheckpoint {
+
+	// Keys of the checkpoint in the commit user data
+	private static final String SOURCE_KEY = "checkpoint.source";
+	private static final String SOURCE_SIZE_KEY = "checkpoint.sourceSize";
+	private static final String SOURCE_MODIFIED_KEY = "checkpoint.sourceModified";
+	private static final String OFFSET_KEY = "checkpoint.offset";
+	private static final String LINES_KEY = "checkpoint.lines";
+	private static final String ROWS_KEY = "checkpoint.rows";
+	private static final String COMPLETE_KEY = "checkpoint.complete";
+
+	// The data source file and its size and modification time when the build started
+	String source;
+	long sourceSize;
+	long sourceModified;
+
+	// The byte offset of the first line that is not in the index yet (in the decompressed data if the file is
+	// compressed)
+	long offset;
+
+	// The number of lines read and the number of rows added to the index before the offset
+	long numOfLines;
+	long numOfRows;
+
+	// Whether or not the whole file is in the index
+	boolean complete;
+
+	// The layout the index is built with
+	GeoIndexLayout layout;
+
+	/**
+	 * Create the checkpoint at the start of a build of the data source
+	 *
+	 * @param dataSource  the data source that is being indexed
+	 * @param layout  the layout the index is built with
+	 */
+	GeoBuildCheckpoint(GeoDataSource dataSource, GeoIndexLayout layout) {
+		this.layout = layout;
+		File file = new File(dataSource.getFilePath());
+		source = file.getAbsolutePath();
+		sourceSize = file.length();
+		sourceModified = file.lastModified();
+	}
+
+	/**
+	 * Read the checkpoint of the last commit of an index
+	 *
+	 * @param index  the index/directory
+	 * @return the checkpoint, or null if the index has no commit or its commits have no checkpoint (e.g. it
+	 * was built before checkpoints were recorded)
+	 * @throws IOException
+	 */
+	static GeoBuildCheckpoint read(Directory index) throws IOException {
+		Map<String, String> userData;
+		try {
+			userData = IndexReader.getCommitUserData(index);
+		} catch (IndexNotFoundException e) {
+			return null;
+		}
+		if (userData == null || !userData.containsKey(OFFSET_KEY)) {
+			return null;
+		}
+		GeoBuildCheckpoint checkpoint = new GeoBuildCheckpoint();
+		checkpoint.source = userData.get(SOURCE_KEY);
+		checkpoint.sourceSize = Long.parseLong(userData.get(SOURCE_SIZE_KEY));
+		checkpoint.sourceModified = Long.parseLong(userData.get(SOURCE_MODIFIED_KEY));
+		checkpoint.offset = Long.parseLong(userData.get(OFFSET_KEY));
+		checkpoint.numOfLines = Long.parseLong(userData.get(LINES_KEY));
+		checkpoint.numOfRows = Long.parseLong(userData.get(ROWS_KEY));
+		checkpoint.complete = Boolean.parseBoolean(userData.get(COMPLETE_KEY));
+		checkpoint.layout = GeoIndexLayout.read(userData);
+		return checkpoint;
+	}
+
+	/**
+	 * Check if the build can continue from this checkpoint with the data source, which is only the case if
+	 * the file has not changed since the build started
+	 *
+	 * @param dataSource  the data source of the build
+	 * @return whether or not the checkpoint belongs to the data source
+	 */
+	boolean matches(GeoDataSource dataSource) {
+		GeoBuildCheckpoint start = new GeoBuildCheckpoint(dataSource, layout);
+		return start.source.equals(source) && start.sourceSize == sourceSize && start.sourceModified == sourceModified;
+	}
+
+	/**
+	 * Whether or not two checkpoints are at the same place of the same file
+	 *
+	 * @param other  the other checkpoint
+	 * @return whether or not they are the same
+	 */
+	boolean sameAs(GeoBuildCheckpoint other) {
+		return other != null && toUserData().equals(other.toUserData());
+	}
+
+	/**
+	 * Commit the indices with this checkpoint. Every row before the offset must have been added to the
+	 * index writers.
+	 *
+	 * @param indexWriters  the writers of the index (or the shards of the index)
+	 * @throws IOException
+	 */
+	void commit(IndexWriter[] indexWriters) throws IOException {
+		Map<String, String> userData = toUserData();
+		for (int i = 0; i < indexWriters.length; i++) {
+			indexWriters[i].commit(userData);
+		}
+	}
+
+	// All methods below are private helper methods
+
+	// Used to read a checkpoint
+	private GeoBuildCheckpoint() {
+	}
+
+	// Convert the checkpoint to commit user data
+	private Map<String, String> toUserData() {
+		Map<String, String> userData = new HashMap<String, String>();
+		userData.put(SOURCE_KEY, source);
+		userData.put(SOURCE_SIZE_KEY, Long.toString(sourceSize));
+		userData.put(SOURCE_MODIFIED_KEY, Long.toString(sourceModified));
+		userData.put(OFFSET_KEY, Long.toString(offset));
+		userData.put(LINES_KEY, Long.toString(numOfLines));
+		userData.put(ROWS_KEY, Long.toString(numOfRows));
+		userData.put(COMPLETE_KEY, Boolean.toString(complete));
+		layout.addTo(userData);
+		return userData;
+	}
+}
@@ -0,0 +1,20 @@
+package edu.cornell.georeference;
+
+/**
+ * A listener that is told how a build of an index is going, so that a long build can report its
+ * progress while it runs.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+public interface GeoBuildListener {
+
+	/**
+	 * Called about once a second while the index is built and once more when the build is finished
+	 * (stats.isFinished() is then true). It is called on the thread that reads the data source, so it
+	 * should return quickly.
+	 *
+	 * @param stats  the statistics of the build so far
+	 */
+	void buildProgress(GeoBuildStats stats);
+}
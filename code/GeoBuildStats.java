@@ -0,0 +1,321 @@
+package edu.cornell.georeference;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.Directory;
+
+/**
+ * This class holds the statistics of a build of an index: how many rows were read, indexed and rejected,
+ * how fast they were indexed and where the time went. The counts are updated while the index is built,
+ * so they can be looked at from a GeoBuildListener. If the build continues from a checkpoint, only the
+ * rows read by this build are counted.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+public class GeoBuildStats {
+
+	// Reasons for rejecting a row
+	public static final int TOO_FEW_COLUMNS = 0;
+	public static final int BAD_COORDINATES = 1;
+
+	// How often the throughput is sampled and the listener is told about the progress
+	private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+
+	/**
+	 * The number of rows indexed at a point in time during the build
+	 */
+	public static class ThroughputSample {
+		private long elapsedMillis;
+		private long numOfRowsIndexed;
+		private double rowsPerSecond;
+
+		ThroughputSample(long elapsedMillis, long numOfRowsIndexed, double rowsPerSecond) {
+			this.elapsedMillis = elapsedMillis;
+			this.numOfRowsIndexed = numOfRowsIndexed;
+			this.rowsPerSecond = rowsPerSecond;
+		}
+
+		// Getters
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		public long getNumOfRowsIndexed() {
+			return numOfRowsIndexed;
+		}
+
+		/**
+		 * Get the rate since the previous sample
+		 *
+		 * @return the number of rows indexed per second
+		 */
+		public double getRowsPerSecond() {
+			return rowsPerSecond;
+		}
+	}
+
+	private String source;
+	private GeoBuildListener listener;
+
+	private long startTime;
+	private volatile long endTime;
+	private long[] startGarbageCollections;
+	private long[] endGarbageCollections;
+
+	private AtomicLong numOfRowsRead;
+	private AtomicLong numOfRowsIndexed;
+	private AtomicLongArray numOfRejectedRows;
+
+	// Time spent in each phase; parsing, creating documents and adding them are summed over the ingest threads
+	private AtomicLong readNanos;
+	private AtomicLong parseNanos;
+	private AtomicLong documentNanos;
+	private AtomicLong addNanos;
+	private AtomicLong commitNanos;
+
+	private List<ThroughputSample> throughput;
+	private long lastSampleTime;
+	private long lastSampleRows;
+
+	private long indexSize;
+	private int numOfSegments;
+
+	/**
+	 * Create the statistics of a build that starts now
+	 *
+	 * @param dataSource  the data source that is indexed
+	 * @param listener  the listener that is told about the progress (can be null)
+	 */
+	GeoBuildStats(GeoDataSource dataSource, GeoBuildListener listener) {
+		this.source = dataSource.getFilePath();
+		this.listener = listener;
+		this.startTime = System.currentTimeMillis();
+		this.startGarbageCollections = getGarbageCollectionCounts();
+		this.numOfRowsRead = new AtomicLong();
+		this.numOfRowsIndexed = new AtomicLong();
+		this.numOfRejectedRows = new AtomicLongArray(2);
+		this.readNanos = new AtomicLong();
+		this.parseNanos = new AtomicLong();
+		this.documentNanos = new AtomicLong();
+		this.addNanos = new AtomicLong();
+		this.commitNanos = new AtomicLong();
+		this.throughput = new ArrayList<ThroughputSample>();
+		this.lastSampleTime = startTime;
+	}
+
+	// Getters
+
+	public String getSource() {
+		return source;
+	}
+
+	public boolean isFinished() {
+		return endTime != 0;
+	}
+
+	/**
+	 * Get the time since the build started, or how long it took if it is finished
+	 *
+	 * @return the time in milliseconds
+	 */
+	public long getElapsedMillis() {
+		return (isFinished() ? endTime : System.currentTimeMillis()) - startTime;
+	}
+
+	public long getNumOfRowsRead() {
+		return numOfRowsRead.get();
+	}
+
+	public long getNumOfRowsIndexed() {
+		return numOfRowsIndexed.get();
+	}
+
+	/**
+	 * Get the number of rows that were not added to the index
+	 *
+	 * @return the number of rejected rows for all reasons
+	 */
+	public long getNumOfRejectedRows() {
+		return numOfRejectedRows.get(TOO_FEW_COLUMNS) + numOfRejectedRows.get(BAD_COORDINATES);
+	}
+
+	/**
+	 * Get the number of rows that were not added to the index for a reason
+	 *
+	 * @param reason  TOO_FEW_COLUMNS or BAD_COORDINATES (the latitude or longitude is not a number)
+	 * @return the number of rejected rows
+	 */
+	public long getNumOfRejectedRows(int reason) {
+		return numOfRejectedRows.get(reason);
+	}
+
+	/**
+	 * Get the average rate of the build so far
+	 *
+	 * @return the number of rows indexed per second
+	 */
+	public double getRowsPerSecond() {
+		return getNumOfRowsIndexed() * 1000.0 / Math.max(getElapsedMillis(), 1);
+	}
+
+	/**
+	 * Get the rate of the build over time; a sample is taken about once a second
+	 *
+	 * @return the samples in order of time
+	 */
+	public synchronized List<ThroughputSample> getThroughput() {
+		return new ArrayList<ThroughputSample>(throughput);
+	}
+
+	public long getReadMillis() {
+		return readNanos.get() / 1000000;
+	}
+
+	public long getParseMillis() {
+		return parseNanos.get() / 1000000;
+	}
+
+	public long getDocumentMillis() {
+		return documentNanos.get() / 1000000;
+	}
+
+	public long getAddMillis() {
+		return addNanos.get() / 1000000;
+	}
+
+	/**
+	 * Get the time spent committing the index, including waiting for merges to finish
+	 *
+	 * @return the time in milliseconds
+	 */
+	public long getCommitMillis() {
+		return commitNanos.get() / 1000000;
+	}
+
+	/**
+	 * Get the size of the index (of all shards) once the build is finished
+	 *
+	 * @return the size in bytes
+	 */
+	public long getIndexSize() {
+		return indexSize;
+	}
+
+	/**
+	 * Get the number of segments of the index (of all shards) once the build is finished
+	 *
+	 * @return the number of segments
+	 */
+	public int getNumOfSegments() {
+		return numOfSegments;
+	}
+
+	public long getNumOfGarbageCollections() {
+		return (isFinished() ? endGarbageCollections : getGarbageCollectionCounts())[0] - startGarbageCollections[0];
+	}
+
+	public long getGarbageCollectionMillis() {
+		return (isFinished() ? endGarbageCollections : getGarbageCollectionCounts())[1] - startGarbageCollections[1];
+	}
+
+	// Override
+	public String toString() {
+		return String.format("Indexed %d rows from %s in %.1f seconds (%d rows/sec)\n"
+				+ "Rejected %d of %d rows read (%d with too few columns, %d with bad coordinates)\n"
+				+ "Reading %d ms, parsing %d ms, creating documents %d ms, adding %d ms, merging and committing %d ms\n"
+				+ "%d segments, %d bytes; %d garbage collections took %d ms",
+				getNumOfRowsIndexed(), source, getElapsedMillis() / 1000.0, (long) getRowsPerSecond(),
+				getNumOfRejectedRows(), getNumOfRowsRead(), getNumOfRejectedRows(TOO_FEW_COLUMNS),
+				getNumOfRejectedRows(BAD_COORDINATES), getReadMillis(), getParseMillis(), getDocumentMillis(),
+				getAddMillis(), getCommitMillis(), numOfSegments, indexSize, getNumOfGarbageCollections(),
+				getGarbageCollectionMillis());
+	}
+
+	// All methods below are used by the GeoIndexWriter while it builds the index
+
+	// Count a batch of lines read from the data source file
+	void addRead(long numOfLines, long nanos) {
+		numOfRowsRead.addAndGet(numOfLines);
+		readNanos.addAndGet(nanos);
+	}
+
+	// Count the rows of a batch that were indexed or rejected and the time spent on them
+	void addRows(long numOfIndexed, long numOfTooFewColumns, long numOfBadCoordinates, long parseTime,
+			long documentTime, long addTime) {
+		numOfRowsIndexed.addAndGet(numOfIndexed);
+		numOfRejectedRows.addAndGet(TOO_FEW_COLUMNS, numOfTooFewColumns);
+		numOfRejectedRows.addAndGet(BAD_COORDINATES, numOfBadCoordinates);
+		parseNanos.addAndGet(parseTime);
+		documentNanos.addAndGet(documentTime);
+		addNanos.addAndGet(addTime);
+	}
+
+	// Count the time spent committing
+	void addCommit(long nanos) {
+		commitNanos.addAndGet(nanos);
+	}
+
+	// Take a throughput sample and tell the listener if it has been long enough since the last one
+	void progress() {
+		long now = System.currentTimeMillis();
+		if (now - lastSampleTime >= PROGRESS_INTERVAL_MILLIS) {
+			sample(now);
+			if (listener != null) {
+				listener.buildProgress(this);
+			}
+		}
+	}
+
+	// Finish the build and measure the index
+	void finish(Directory[] indices) throws IOException {
+		for (int i = 0; i < indices.length; i++) {
+			for (String file : indices[i].listAll()) {
+				indexSize += indices[i].fileLength(file);
+			}
+			IndexReader reader = IndexReader.open(indices[i], true);
+			try {
+				IndexReader[] segments = reader.getSequentialSubReaders();
+				numOfSegments += segments != null ? segments.length : 1;
+			} finally {
+				reader.close();
+			}
+		}
+		endGarbageCollections = getGarbageCollectionCounts();
+		long now = System.currentTimeMillis();
+		sample(now);
+		endTime = now;
+		if (listener != null) {
+			listener.buildProgress(this);
+		}
+	}
+
+	// All methods below are private helper methods
+
+	// Add a throughput sample
+	private synchronized void sample(long now) {
+		long rows = getNumOfRowsIndexed();
+		double rowsPerSecond = (rows - lastSampleRows) * 1000.0 / Math.max(now - lastSampleTime, 1);
+		throughput.add(new ThroughputSample(now - startTime, rows, rowsPerSecond));
+		lastSampleTime = now;
+		lastSampleRows = rows;
+	}
+
+	// Get the total number and time of garbage collections so far
+	private static long[] getGarbageCollectionCounts() {
+		long[] counts = new long[2];
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			counts[0] += Math.max(gc.getCollectionCount(), 0);
+			counts[1] += Math.max(gc.getCollectionTime(), 0);
+		}
+		return counts;
+	}
+}
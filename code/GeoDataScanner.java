@@ -0,0 +1,485 @@
+package edu.cornell.georeference;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * This class reads a data source file by memory mapping it and scanning its bytes. The lines are handed
+ * out in batches without being decoded; parseLine() then finds the columns of a line and only decodes
+ * the columns the data source uses. Latitudes and longitudes are parsed straight from the bytes.
+ * The file must be encoded in UTF-8 (or ASCII) and the fields must be separated by a fixed string.
+ * 
+ * A compressed file (.zip or .gz) can't be mapped; it is decompressed on its own thread into large
+ * chunks instead, which are scanned the same way. Offsets then refer to the decompressed data.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+class GeoDataScanner {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// The size of the part of the file that is mapped at once
+	private static final long MAX_WINDOW_SIZE = 256L * 1024 * 1024;
+
+	// The size of the read buffer of a compressed file and of the chunks it is decompressed into
+	private static final int INPUT_BUFFER_SIZE = 1024 * 1024;
+	private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+
+	// The number of decompressed chunks that can wait to be scanned
+	private static final int MAX_PENDING_CHUNKS = 3;
+
+	// Marks the end of a compressed file
+	private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+	// Powers of ten that are exactly representable as doubles
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	// Largest mantissa that can be converted to a double without rounding
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	/**
+	 * A batch of lines of the file. The lines are the ranges [starts[i], ends[i]) of the buffer.
+	 */
+	static class LineBatch {
+		ByteBuffer buffer;
+		int[] starts;
+		int[] ends;
+		int size;
+	}
+
+	private FileInputStream fstream;
+	private FileChannel channel;
+	private long fileSize;
+
+	private byte[] separator;
+	private int numOfCols;
+	private int nameColNum;
+	private int altName1ColNum;
+	private int altName2ColNum;
+	private int latColNum;
+	private int lngColNum;
+	private int idColNum;
+	private int lastColNum;
+
+	// The part of the file that is currently mapped (or decompressed) and the position of the next line in it
+	private ByteBuffer window;
+	private long windowOffset;
+	private int position;
+
+	// The decompressed chunks of a compressed file, filled by the decompressor thread
+	private BlockingQueue<ByteBuffer> chunks;
+	private Thread decompressor;
+	private volatile IOException decompressorFailure;
+	private boolean endOfStream;
+
+	/**
+	 * Open and map the file of the data source
+	 *
+	 * @param dataSource  the data source to read
+	 * @throws IOException
+	 */
+	GeoDataScanner(GeoDataSource dataSource) throws IOException {
+		this(dataSource, 0);
+	}
+
+	/**
+	 * Open and map the file of the data source starting at a line in the middle of the file
+	 *
+	 * @param dataSource  the data source to read
+	 * @param startOffset  the byte offset of the first line to read (e.g. from getOffset()); if it is 0, the
+	 * first row is skipped if the data source says so
+	 * @throws IOException
+	 */
+	GeoDataScanner(GeoDataSource dataSource, long startOffset) throws IOException {
+		separator = dataSource.getDatSourceSplitString().getBytes(UTF8);
+		if (separator.length == 0) {
+			throw new IllegalArgumentException("the data source split string is empty");
+		}
+		numOfCols = dataSource.getNumOfCols();
+		nameColNum = dataSource.getNameColNum();
+		altName1ColNum = dataSource.getAltName1ColNum();
+		altName2ColNum = dataSource.getAltName2ColNum();
+		latColNum = dataSource.getLatColNum();
+		lngColNum = dataSource.getLngColNum();
+		idColNum = dataSource.getIdColNum();
+		lastColNum = Math.max(Math.max(nameColNum, Math.max(altName1ColNum, altName2ColNum)),
+				Math.max(Math.max(latColNum, lngColNum), idColNum));
+
+		File file = new File(dataSource.getFilePath());
+		fstream = new FileInputStream(file);
+		if (dataSource.isCompressed()) {
+			startDecompressor(openCompressedFile(dataSource.getFilePath()));
+			skipTo(startOffset, dataSource.getFilePath());
+		}
+		else {
+			channel = fstream.getChannel();
+			fileSize = channel.size();
+			if (startOffset < 0 || startOffset > fileSize) {
+				throw new IOException("offset " + startOffset + " is outside of " + dataSource.getFilePath());
+			}
+			map(startOffset);
+		}
+
+		// Whether to not to ingore first row (some data source file has column names as the first row)
+		if (startOffset == 0 && dataSource.isIgnoreFirstRow()) {
+			nextBatch(1);
+		}
+	}
+
+	/**
+	 * Get the next lines of the file
+	 *
+	 * @param maxLines  the maximum number of lines in the batch
+	 * @return the batch of lines, or null if the end of the file has been reached
+	 * @throws IOException
+	 */
+	LineBatch nextBatch(int maxLines) throws IOException {
+		LineBatch batch = new LineBatch();
+		batch.starts = new int[maxLines];
+		batch.ends = new int[maxLines];
+		while (batch.size < maxLines) {
+			int windowEnd = window.limit();
+			int lineEnd = indexOfNewLine(position, windowEnd);
+			if (lineEnd < 0) {
+				// The line continues past the current window; the lines found so far are returned before
+				// the window is moved
+				if (batch.size > 0) {
+					break;
+				}
+				if (nextWindow()) {
+					continue;
+				}
+				if (position == windowEnd) {
+					break;
+				}
+
+				// Last line of the file without a line break
+				lineEnd = windowEnd;
+			}
+			if (batch.size == 0) {
+				batch.buffer = window;
+			}
+			batch.starts[batch.size] = position;
+			batch.ends[batch.size] = lineEnd > position && window.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+			batch.size++;
+			position = Math.min(lineEnd + 1, windowEnd);
+		}
+		return batch.size > 0 ? batch : null;
+	}
+
+	/**
+	 * Find the columns of a line and store the values needed to build a document in the row. It can
+	 * be called by several threads at once as long as each thread uses its own row and buffer view.
+	 *
+	 * @param buffer  a view of the batch buffer owned by the calling thread
+	 * @param start  the position of the first byte of the line
+	 * @param end  the position after the last byte of the line
+	 * @param row  the row the values are stored in
+	 * @return whether or not the line has enough columns
+	 * @throws NumberFormatException if the latitude or longitude is not a number
+	 */
+	boolean parseLine(ByteBuffer buffer, int start, int end, GeoRow row) {
+		int col = 0;
+		int colStart = start;
+		int i = start;
+		while (i <= end) {
+			boolean colEnd = i == end || isSeparatorAt(buffer, i, end);
+			if (!colEnd) {
+				i++;
+				continue;
+			}
+			if (col <= lastColNum) {
+				setColumn(buffer, col, colStart, i, row);
+			}
+			col++;
+			if (col >= numOfCols && col > lastColNum) {
+				// The rest of the columns are not needed
+				return true;
+			}
+			i += separator.length;
+			colStart = i;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the byte offset of the next line that nextBatch() returns
+	 *
+	 * @return the offset in the file
+	 */
+	long getOffset() {
+		return windowOffset + position;
+	}
+
+	/**
+	 * Close the file
+	 *
+	 * @throws IOException
+	 */
+	void close() throws IOException {
+		window = null;
+		if (decompressor != null) {
+			decompressor.interrupt();
+		}
+		if (channel != null) {
+			channel.close();
+		}
+		fstream.close();
+	}
+
+	// All methods below are private helper methods
+
+	// Map the part of the file starting at the offset
+	private void map(long offset) throws IOException {
+		long size = Math.min(fileSize - offset, MAX_WINDOW_SIZE);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		windowOffset = offset;
+		position = 0;
+	}
+
+	// Move the window so that it starts at the current position and holds more of the file; returns false if 
+	// the window already reaches the end of the file
+	private boolean nextWindow() throws IOException {
+		long offset = windowOffset + position;
+		if (chunks == null) {
+			if (windowOffset + window.limit() >= fileSize) {
+				return false;
+			}
+			if (position == 0) {
+				throw new IOException("line at offset " + offset + " is too long");
+			}
+			map(offset);
+			return true;
+		}
+		
+		// Append the next decompressed chunk to the rest of the current window; the current window is
+		// not changed, since the batches handed out before still use it
+		ByteBuffer chunk = takeChunk();
+		if (chunk == null) {
+			return false;
+		}
+		ByteBuffer rest = window.duplicate();
+		rest.position(position);
+		if (rest.remaining() > MAX_WINDOW_SIZE) {
+			throw new IOException("line at offset " + offset + " is too long");
+		}
+		ByteBuffer next = ByteBuffer.allocate(rest.remaining() + chunk.remaining());
+		next.put(rest);
+		next.put(chunk);
+		next.flip();
+		window = next;
+		windowOffset = offset;
+		position = 0;
+		return true;
+	}
+
+	// Open the compressed file for reading its decompressed data
+	private InputStream openCompressedFile(String filePath) throws IOException {
+		if (filePath.toLowerCase().endsWith(".gz")) {
+			return new GZIPInputStream(fstream, INPUT_BUFFER_SIZE);
+		}
+		
+		// Read the first file in the zip file
+		ZipInputStream zipStream = new ZipInputStream(new BufferedInputStream(fstream, INPUT_BUFFER_SIZE));
+		ZipEntry entry;
+		do {
+			entry = zipStream.getNextEntry();
+		} while (entry != null && entry.isDirectory());
+		if (entry == null) {
+			throw new IOException(filePath + " has no file in it");
+		}
+		return zipStream;
+	}
+
+	// Start the thread that decompresses the file into chunks
+	private void startDecompressor(final InputStream stream) {
+		chunks = new ArrayBlockingQueue<ByteBuffer>(MAX_PENDING_CHUNKS);
+		window = ByteBuffer.allocate(0);
+		decompressor = new Thread(new Runnable() {
+			// Override
+			public void run() {
+				try {
+					try {
+						boolean end = false;
+						while (!end) {
+							byte[] bytes = new byte[CHUNK_SIZE];
+							int length = 0;
+							while (length < bytes.length) {
+								int n = stream.read(bytes, length, bytes.length - length);
+								if (n < 0) {
+									end = true;
+									break;
+								}
+								length += n;
+							}
+							if (length > 0) {
+								chunks.put(ByteBuffer.wrap(bytes, 0, length));
+							}
+						}
+					} catch (IOException e) {
+						decompressorFailure = e;
+					}
+					chunks.put(END_OF_STREAM);
+				} catch (InterruptedException e) {
+					// The scanner is closed
+				}
+			}
+		}, "GeoDecompressor");
+		decompressor.setDaemon(true);
+		decompressor.start();
+	}
+
+	// Get the next decompressed chunk, or null at the end of the file
+	private ByteBuffer takeChunk() throws IOException {
+		if (endOfStream) {
+			return null;
+		}
+		ByteBuffer chunk;
+		try {
+			chunk = chunks.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while decompressing the data source");
+		}
+		if (chunk == END_OF_STREAM) {
+			endOfStream = true;
+			if (decompressorFailure != null) {
+				throw decompressorFailure;
+			}
+			return null;
+		}
+		return chunk;
+	}
+
+	// Skip the decompressed data before the offset
+	private void skipTo(long offset, String filePath) throws IOException {
+		if (offset < 0) {
+			throw new IOException("offset " + offset + " is outside of " + filePath);
+		}
+		while (windowOffset + window.limit() < offset) {
+			position = window.limit();
+			if (!nextWindow()) {
+				throw new IOException("offset " + offset + " is outside of " + filePath);
+			}
+		}
+		position = (int) (offset - windowOffset);
+	}
+
+	// Find the next line break in the current window
+	private int indexOfNewLine(int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (window.get(i) == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// Whether or not the separator starts at the position
+	private boolean isSeparatorAt(ByteBuffer buffer, int i, int end) {
+		if (buffer.get(i) != separator[0]) {
+			return false;
+		}
+		if (i + separator.length > end) {
+			return false;
+		}
+		for (int j = 1; j < separator.length; j++) {
+			if (buffer.get(i + j) != separator[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Store the value of a column in the row if the data source uses it
+	private void setColumn(ByteBuffer buffer, int col, int start, int end, GeoRow row) {
+		if (col == idColNum) {
+			row.id = decode(buffer, start, end, row);
+		}
+		if (col == nameColNum) {
+			row.name = decode(buffer, start, end, row);
+		}
+		if (col == altName1ColNum) {
+			row.altName1 = decode(buffer, start, end, row);
+		}
+		if (col == altName2ColNum) {
+			row.altName2 = decode(buffer, start, end, row);
+		}
+		if (col == latColNum) {
+			row.latitude = parseDouble(buffer, start, end, row);
+		}
+		if (col == lngColNum) {
+			row.longitude = parseDouble(buffer, start, end, row);
+		}
+	}
+
+	// Decode the bytes of a column into a string
+	private String decode(ByteBuffer buffer, int start, int end, GeoRow row) {
+		int length = end - start;
+		if (row.scratch.length < length) {
+			row.scratch = new byte[Math.max(length, row.scratch.length * 2)];
+		}
+		buffer.position(start);
+		buffer.get(row.scratch, 0, length);
+		return new String(row.scratch, 0, length, UTF8);
+	}
+
+	// Parse a plain decimal number (e.g. -76.123) from the bytes of a column; anything else, like a
+	// number with an exponent, is handed to Double.parseDouble
+	private double parseDouble(ByteBuffer buffer, int start, int end, GeoRow row) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+			negative = buffer.get(i) == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int numOfDigits = 0;
+		int numOfFractionDigits = -1;
+		for (; i < end; i++) {
+			byte b = buffer.get(i);
+			if (b >= '0' && b <= '9') {
+				mantissa = mantissa * 10 + (b - '0');
+				numOfDigits++;
+				if (numOfFractionDigits >= 0) {
+					numOfFractionDigits++;
+				}
+				if (mantissa >= MAX_EXACT_MANTISSA) {
+					break;
+				}
+			}
+			else if (b == '.' && numOfFractionDigits < 0) {
+				numOfFractionDigits = 0;
+			}
+			else {
+				break;
+			}
+		}
+		if (i != end || numOfDigits == 0 || numOfFractionDigits >= POWERS_OF_TEN.length) {
+			return Double.parseDouble(decode(buffer, start, end, row));
+		}
+
+		// Both the mantissa and the power of ten are exact, so the division gives the correctly rounded
+		// value, the same as Double.parseDouble
+		double value = numOfFractionDigits > 0 ? mantissa / POWERS_OF_TEN[numOfFractionDigits] : mantissa;
+		return negative ? -value : value;
+	}
+}
@@ -4,7 +4,8 @@ import java.util.Map;
 
 /**
  * This class represents the data source. It stores all information needed to build the index
- * from the data source.
+ * from the data source. The data source file can be compressed (.zip or .gz), in which case it is
+ * decompressed while the index is built instead of being unpacked to disk first.
  * 
  * @author Yang Yang Zheng
  *
@@ -19,6 +20,7 @@ public class GeoDataSource {
 	private int altName2ColNum;
 	private int latColNum;
 	private int lngColNum;
+	private int idColNum;
 	private boolean ignoreFirstRow;
 	
 	// Constructors
@@ -31,6 +33,7 @@ public class GeoDataSource {
 	public GeoDataSource(String filePath) {
 		this.filePath = filePath;
 		this.datSourceSplitString = "\t";
+		this.idColNum = -1;
 	}
 	
 	/**
@@ -53,6 +56,7 @@ public class GeoDataSource {
 		this.datSourceSplitString = datSourceSplitString;
 		this.numOfCols = numOfCols;
 		setColNums(nameColNum, altName1ColNum, altName2ColNum, latColNum, lngColNum);
+		this.idColNum = -1;
 		this.ignoreFirstRow = ignoreFirstRow;
 	}
 	
@@ -63,7 +67,7 @@ public class GeoDataSource {
 	 * @param datSourceSplitString  what string is used to separate different fields in the data file
 	 * @param numOfCols  number of columns in the data file
 	 * @param colNumMap  a map that maps field name to the column number (must use the field names in
-	 * the GeoIndexWriter class)
+	 * the GeoIndexWriter class; the id field is optional)
 	 * @param ignoreFirstRow  whether or not to ignore the first row when reading in the file (some
 	 * files have the column names as the first row)
 	 */
@@ -80,13 +84,32 @@ public class GeoDataSource {
 	 * Creates a GeoDataSource object from the data that come from this website:
 	 * http://www.geonames.org/
 	 * 
-	 * @param filePath  the path to the data file
+	 * @param filePath  the path to the data file (e.g. allCountries.txt, or allCountries.zip as it is downloaded)
 	 * @return the GeoDataSource object that represent the data source and can be used by
 	 * GeoIndexWriter to create index/directory
 	 */
 	public static GeoDataSource createGeoNamesDataSource(String filePath) {
-		return new GeoDataSource(filePath, "\t", 19, 1, 2, 3, 4, 5, false);
+		GeoDataSource dataSource = new GeoDataSource(filePath, "\t", 19, 1, 2, 3, 4, 5, false);
+		dataSource.setIdColNum(0);
+		return dataSource;
+	}
+	
+	/**
+	 * Creates a GeoDataSource object from a deletion file of the daily updates that come from this website:
+	 * http://www.geonames.org/ (deletes-YYYY-MM-DD.txt). Only the id column is read from this data source.
+	 * The daily modification files (modifications-YYYY-MM-DD.txt) have the same format as the full data file, 
+	 * so createGeoNamesDataSource() is used for them.
+	 * 
+	 * @param filePath  the path to the deletion file
+	 * @return the GeoDataSource object that can be used by GeoIndexWriter to delete the places from the
+	 * index/directory
+	 */
+	public static GeoDataSource createGeoNamesDeletionDataSource(String filePath) {
+		GeoDataSource dataSource = new GeoDataSource(filePath, "\t", 1, -1, -1, -1, -1, -1, false);
+		dataSource.setIdColNum(0);
+		return dataSource;
 	}
+	
 	/**
 	 * Creates a GeoDataSource object from the data that come from this website:
 	 * http://thedatahub.org/dataset/pleiades
@@ -132,6 +155,7 @@ public class GeoDataSource {
 		altName2ColNum = colNumMap.get(GeoIndexWriter.ALT_NAME2_FIELD);
 		latColNum = colNumMap.get(GeoIndexWriter.LATITUDE_FIELD);
 		lngColNum = colNumMap.get(GeoIndexWriter.LONGITUDE_FIELD);
+		idColNum = colNumMap.containsKey(GeoIndexWriter.ID_FIELD) ? colNumMap.get(GeoIndexWriter.ID_FIELD) : -1;
 	}
 	
 	public String getFilePath() {
@@ -142,6 +166,17 @@ public class GeoDataSource {
 		this.filePath = filePath;
 	}
 	
+	/**
+	 * Check if the data source file is compressed, based on the extension of its name. A zip file is read
+	 * from its first file.
+	 * 
+	 * @return whether or not the file is a .zip or .gz file
+	 */
+	public boolean isCompressed() {
+		String lowerCaseFilePath = filePath.toLowerCase();
+		return lowerCaseFilePath.endsWith(".zip") || lowerCaseFilePath.endsWith(".gz");
+	}
+	
 	public String getDatSourceSplitString() {
 		return datSourceSplitString;
 	}
@@ -198,6 +233,20 @@ public class GeoDataSource {
 		this.lngColNum = lngColNum;
 	}
 	
+	public int getIdColNum() {
+		return idColNum;
+	}
+
+	/**
+	 * Set the column number of the id column, which holds an id that identifies the place across different
+	 * versions of the data source file. The id is needed to update an index instead of rebuilding it.
+	 * 
+	 * @param idColNum  the column number of the id column, or -1 if there is no id column
+	 */
+	public void setIdColNum(int idColNum) {
+		this.idColNum = idColNum;
+	}
+	
 	public boolean isIgnoreFirstRow() {
 		return ignoreFirstRow;
 	}
@@ -0,0 +1,134 @@
+package edu.cornell.georeference;
+
+import org.apache.lucene.analysis.NumericTokenStream;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.spatial.geohash.GeoHashUtils;
+import org.apache.lucene.spatial.tier.projections.CartesianTierPlotter;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * This class is a reusable document for the rows of a data source. The document and its fields are
+ * created once, and the values of the fields are replaced for every row. The index writer is done with
+ * the values once addDocument() returns, so the same document can be added again with new values.
+ * An object must only be used by one thread.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+class GeoDocumentTemplate {
+
+	// Precision step that gives a single token holding the full value
+	private static final int FULL_PRECISION_STEP = 64;
+
+	private Document doc;
+	private Field idField;
+	private Field nameField;
+	private Field altName1Field;
+	private Field altName2Field;
+	private NumericField latField;
+	private NumericField lngField;
+	private NumericTokenStream sptLatStream;
+	private NumericTokenStream sptLngStream;
+	private CartesianTierPlotter[] tierPlotters;
+	private Field[] tierFields;
+	private Field[] geohashFields;
+
+	/**
+	 * Create the document and its fields
+	 *
+	 * @param layout  the layout of the index, which decides the spatial fields of the document
+	 * @param includeId  whether or not to add the id field to the document
+	 */
+	GeoDocumentTemplate(GeoIndexLayout layout, boolean includeId) {
+		this.tierPlotters = layout.getTierPlotters();
+		doc = new Document();
+		
+		// Add the id field, which is only used to find the document when it is updated or deleted
+		if (includeId) {
+			idField = new Field(GeoIndexWriter.ID_FIELD, "", Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS);
+			idField.setIndexOptions(IndexOptions.DOCS_ONLY);
+			doc.add(idField);
+		}
+
+		// Add the name field to the document
+		nameField = new Field(GeoIndexWriter.NAME_FIELD, "", Field.Store.YES, Field.Index.ANALYZED);
+		nameField.setBoost(1.2f); // Add boost to this field to boost the score if match
+		doc.add(nameField);
+
+		// Add other alternative name fields;
+		altName1Field = new Field(GeoIndexWriter.ALT_NAME1_FIELD, "", Field.Store.NO, Field.Index.ANALYZED);
+		doc.add(altName1Field);
+		altName2Field = new Field(GeoIndexWriter.ALT_NAME2_FIELD, "", Field.Store.NO, Field.Index.ANALYZED);
+		doc.add(altName2Field);
+
+		// Add latitude and longitude fields to the document
+		latField = new NumericField(GeoIndexWriter.LATITUDE_FIELD, Field.Store.YES, true);
+		doc.add(latField);
+		lngField = new NumericField(GeoIndexWriter.LONGITUDE_FIELD, Field.Store.YES, true);
+		doc.add(lngField);
+
+		// Fields needed for the Lucene Spatial; the prefix coded latitude and longitude are indexed as a single
+		// numeric token, which is the same term as NumericUtils.doubleToPrefixCoded() without creating a string.
+		// Without them, the Lucene Spatial reads the latitude and longitude from the numeric fields.
+		if (layout.hasSpatialFields()) {
+			sptLatStream = new NumericTokenStream(FULL_PRECISION_STEP);
+			doc.add(new Field(GeoIndexWriter.SPT_LAT_FIELD, sptLatStream));
+			sptLngStream = new NumericTokenStream(FULL_PRECISION_STEP);
+			doc.add(new Field(GeoIndexWriter.SPT_LNG_FIELD, sptLngStream));
+		}
+		tierFields = new Field[tierPlotters.length];
+		Field.Store storeTierFields = layout.isStoreTierFields() ? Field.Store.YES : Field.Store.NO;
+		for (int i = 0; i < tierPlotters.length; i++) {
+			tierFields[i] = new Field(tierPlotters[i].getTierFieldName(), "", storeTierFields,
+					Field.Index.NOT_ANALYZED_NO_NORMS);
+			if (!layout.isStoreTierFields()) {
+				tierFields[i].setIndexOptions(IndexOptions.DOCS_ONLY);
+			}
+			doc.add(tierFields[i]);
+		}
+		
+		// Every prefix of the geohash is a term of the same field, so a cell of any size is a single term
+		geohashFields = new Field[layout.getGeohashLength()];
+		for (int i = 0; i < geohashFields.length; i++) {
+			geohashFields[i] = new Field(GeoIndexWriter.GEOHASH_FIELD, "", Field.Store.NO, 
+					Field.Index.NOT_ANALYZED_NO_NORMS);
+			geohashFields[i].setIndexOptions(IndexOptions.DOCS_ONLY);
+			doc.add(geohashFields[i]);
+		}
+	}
+
+	/**
+	 * Put the values of a row into the document
+	 *
+	 * @param row  the row of the data source
+	 * @return the document, ready to be added to the index
+	 */
+	Document fill(GeoRow row) {
+		if (idField != null) {
+			idField.setValue(row.id);
+		}
+		nameField.setValue(row.name);
+		altName1Field.setValue(row.altName1);
+		altName2Field.setValue(row.altName2);
+		latField.setDoubleValue(row.latitude);
+		lngField.setDoubleValue(row.longitude);
+		if (sptLatStream != null) {
+			sptLatStream.setDoubleValue(row.latitude);
+			sptLngStream.setDoubleValue(row.longitude);
+		}
+		for (int i = 0; i < tierPlotters.length; i++) {
+			double boxId = tierPlotters[i].getTierBoxId(row.latitude, row.longitude);
+			tierFields[i].setValue(NumericUtils.doubleToPrefixCoded(boxId));
+		}
+		if (geohashFields.length > 0) {
+			String geohash = GeoHashUtils.encode(row.latitude, row.longitude);
+			for (int i = 0; i < geohashFields.length; i++) {
+				geohashFields[i].setValue(geohash.substring(0, i + 1));
+			}
+		}
+		return doc;
+	}
+}
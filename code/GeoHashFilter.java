@@ -0,0 +1,264 @@
+package edu.cornell.georeference;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.spatial.DistanceUtils;
+import org.apache.lucene.spatial.geohash.GeoHashUtils;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * This filter finds the places in a bound or within a distance of a point in an index with the geohash
+ * layout. The range is covered by at most MAX_CELLS geohash cells, the smallest that are indexed and
+ * few enough; the places in the cells are looked up by their terms and then checked against the range
+ * with their latitudes and longitudes from the FieldCache. Distances are computed the same way as the
+ * Lucene Spatial does, so the same places are found as with the Cartesian tiers.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+@SuppressWarnings("serial")
+class GeoHashFilter extends Filter {
+
+	// Length of the geohashes of GeoHashUtils
+	static final int MAX_GEOHASH_LENGTH = 12;
+
+	// The max number of cells a range is covered with
+	private static final int MAX_CELLS = 64;
+
+	// Radius of the earth that the Lucene Spatial computes distances with, in miles
+	private static final double EARTH_RADIUS_MI = 3963.205;
+
+	private double minLatitude;
+	private double maxLatitude;
+	private double[][] lngRanges;
+
+	// The point and distance of a distance filter; the distance is NaN for a bound filter
+	private double latitude;
+	private double longitude;
+	private double miles = Double.NaN;
+
+	// The places must also match this query (can be null)
+	private Query query;
+
+	// The geohashes of the cells that cover the range
+	private List<String> cells;
+
+	private GeoHashFilter() {
+	}
+
+	/**
+	 * Create a filter of the places in a bound
+	 *
+	 * @param minLatitude  the min latitude
+	 * @param maxLatitude  the max latitude
+	 * @param minLongitude  the min (western) longitude
+	 * @param maxLongitude  the max (eastern) longitude; if it is less than the min longitude, the bound
+	 * crosses the date line
+	 * @param geohashLength  the length of the longest geohash prefix of the index
+	 * @return the filter
+	 */
+	static GeoHashFilter createBoundFilter(double minLatitude, double maxLatitude, double minLongitude,
+			double maxLongitude, int geohashLength) {
+		GeoHashFilter filter = new GeoHashFilter();
+		filter.minLatitude = minLatitude;
+		filter.maxLatitude = maxLatitude;
+		if (minLongitude > maxLongitude) {
+			filter.lngRanges = new double[][] {{minLongitude, 180}, {-180, maxLongitude}};
+		}
+		else {
+			filter.lngRanges = new double[][] {{minLongitude, maxLongitude}};
+		}
+		filter.cells = getCover(filter.minLatitude, filter.maxLatitude, filter.lngRanges, geohashLength);
+		return filter;
+	}
+
+	/**
+	 * Create a filter of the places that match a query and are within a distance of a point
+	 *
+	 * @param query  the query (can be null)
+	 * @param latitude  the latitude of the point
+	 * @param longitude  the longitude of the point
+	 * @param miles  the distance in miles; places at exactly this distance are not found
+	 * @param geohashLength  the length of the longest geohash prefix of the index
+	 * @return the filter
+	 */
+	static GeoHashFilter createDistanceFilter(Query query, double latitude, double longitude, double miles,
+			int geohashLength) {
+		GeoHashFilter filter = new GeoHashFilter();
+		filter.query = query;
+		filter.latitude = latitude;
+		filter.longitude = longitude;
+		filter.miles = miles;
+
+		// The bound of the circle, with a little to spare for rounding; if it reaches a pole, every longitude
+		// is in it
+		double angle = miles / EARTH_RADIUS_MI;
+		double latDegrees = Math.toDegrees(angle) * 1.0001 + 1e-6;
+		filter.minLatitude = Math.max(latitude - latDegrees, -90);
+		filter.maxLatitude = Math.min(latitude + latDegrees, 90);
+		double sinLngAngle = angle < Math.PI / 2 ? Math.sin(angle) / Math.cos(Math.toRadians(latitude)) : 2;
+		if (filter.minLatitude == -90 || filter.maxLatitude == 90 || sinLngAngle >= 1) {
+			filter.lngRanges = new double[][] {{-180, 180}};
+		}
+		else {
+			double lngDegrees = Math.toDegrees(Math.asin(sinLngAngle)) * 1.0001 + 1e-6;
+			double minLongitude = longitude - lngDegrees;
+			double maxLongitude = longitude + lngDegrees;
+
+			// Split the range where it crosses the date line
+			if (minLongitude < -180) {
+				filter.lngRanges = new double[][] {{minLongitude + 360, 180}, {-180, maxLongitude}};
+			}
+			else if (maxLongitude > 180) {
+				filter.lngRanges = new double[][] {{minLongitude, 180}, {-180, maxLongitude - 360}};
+			}
+			else {
+				filter.lngRanges = new double[][] {{minLongitude, maxLongitude}};
+			}
+		}
+		filter.cells = getCover(filter.minLatitude, filter.maxLatitude, filter.lngRanges, geohashLength);
+		return filter;
+	}
+
+	// Override
+	public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+		OpenBitSet docs = getDocs(reader);
+		return query != null ? intersect(docs, new QueryWrapperFilter(query).getDocIdSet(reader)) : docs;
+	}
+
+	/**
+	 * Get the places of a segment that are in the range, whether or not they match the query
+	 *
+	 * @param reader  the reader of the segment
+	 * @return the doc ids of the places
+	 * @throws IOException
+	 */
+	OpenBitSet getDocs(IndexReader reader) throws IOException {
+		double[] latitudes = FieldCache.DEFAULT.getDoubles(reader, GeoIndexWriter.LATITUDE_FIELD);
+		double[] longitudes = FieldCache.DEFAULT.getDoubles(reader, GeoIndexWriter.LONGITUDE_FIELD);
+		OpenBitSet docs = new OpenBitSet(reader.maxDoc());
+		TermDocs termDocs = reader.termDocs();
+		try {
+			for (String cell : cells) {
+				termDocs.seek(new Term(GeoIndexWriter.GEOHASH_FIELD, cell));
+				while (termDocs.next()) {
+					int doc = termDocs.doc();
+					if (isInRange(latitudes[doc], longitudes[doc])) {
+						docs.fastSet(doc);
+					}
+				}
+			}
+		} finally {
+			termDocs.close();
+		}
+		return docs;
+	}
+
+	// Override
+	public String toString() {
+		return "GeoHashFilter(" + cells + (Double.isNaN(miles) ? "" : ", " + miles + " miles of " + latitude + ","
+				+ longitude) + (query != null ? ", " + query : "") + ")";
+	}
+
+	// All methods below are private helper methods
+
+	// Check whether a place is in the range of the filter
+	private boolean isInRange(double lat, double lng) {
+		if (!Double.isNaN(miles)) {
+			return DistanceUtils.getDistanceMi(latitude, longitude, lat, lng) < miles;
+		}
+		if (lat < minLatitude || lat > maxLatitude) {
+			return false;
+		}
+		for (double[] lngRange : lngRanges) {
+			if (lng >= lngRange[0] && lng <= lngRange[1]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Get the geohashes of the cells that cover the latitudes and the ranges of longitudes; the cells are
+	// as small as possible without there being more than MAX_CELLS
+	private static List<String> getCover(double minLatitude, double maxLatitude, double[][] lngRanges,
+			int geohashLength) {
+		List<String> cells = new ArrayList<String>();
+		if (minLatitude > maxLatitude) {
+			return cells;
+		}
+		for (int length = geohashLength; length >= 1; length--) {
+			// A geohash has 5 bits per character, taken from the longitude and the latitude in turn
+			double cellHeight = 180 / Math.pow(2, 5 * length / 2);
+			double cellWidth = 360 / Math.pow(2, (5 * length + 1) / 2);
+			int minRow = getCellIndex(minLatitude + 90, cellHeight, 180);
+			int maxRow = getCellIndex(maxLatitude + 90, cellHeight, 180);
+			long numOfCells = 0;
+			for (double[] lngRange : lngRanges) {
+				if (lngRange[0] <= lngRange[1]) {
+					numOfCells += (long) (maxRow - minRow + 1) * (getCellIndex(lngRange[1] + 180, cellWidth, 360)
+							- getCellIndex(lngRange[0] + 180, cellWidth, 360) + 1);
+				}
+			}
+			if (numOfCells > MAX_CELLS && length > 1) {
+				continue;
+			}
+			for (double[] lngRange : lngRanges) {
+				if (lngRange[0] > lngRange[1]) {
+					continue;
+				}
+				int minColumn = getCellIndex(lngRange[0] + 180, cellWidth, 360);
+				int maxColumn = getCellIndex(lngRange[1] + 180, cellWidth, 360);
+				for (int row = minRow; row <= maxRow; row++) {
+					for (int column = minColumn; column <= maxColumn; column++) {
+						String cell = GeoHashUtils.encode((row + 0.5) * cellHeight - 90,
+								(column + 0.5) * cellWidth - 180).substring(0, length);
+						if (!cells.contains(cell)) {
+							cells.add(cell);
+						}
+					}
+				}
+			}
+			break;
+		}
+		return cells;
+	}
+
+	// Get the index of the cell of a size that an offset is in, up to the last cell of the whole range
+	private static int getCellIndex(double offset, double cellSize, double range) {
+		int lastCell = (int) Math.round(range / cellSize) - 1;
+		return Math.min(Math.max((int) Math.floor(offset / cellSize), 0), lastCell);
+	}
+
+	// Get the docs that are in both sets
+	private static OpenBitSet intersect(OpenBitSet docs, DocIdSet docIdSet) throws IOException {
+		OpenBitSet result = new OpenBitSet(docs.size());
+		DocIdSetIterator iterator = docIdSet != null ? docIdSet.iterator() : null;
+		if (iterator == null) {
+			return result;
+		}
+		int other = -1;
+		for (int doc = docs.nextSetBit(0); doc >= 0; doc = docs.nextSetBit(doc + 1)) {
+			if (other < doc) {
+				other = iterator.advance(doc);
+				if (other == DocIdSetIterator.NO_MORE_DOCS) {
+					break;
+				}
+			}
+			if (other == doc) {
+				result.fastSet(doc);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,255 @@
+package edu.cornell.georeference;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.spatial.tier.projections.CartesianTierPlotter;
+import org.apache.lucene.spatial.tier.projections.SinusoidalProjector;
+import org.apache.lucene.store.Directory;
+
+/**
+ * This class describes which spatial fields the documents of an index have. The layout is stored with
+ * the index, so searches and updates use the same fields the index was built with.
+ *
+ * The legacy layout stores the Cartesian tier fields and indexes the latitude and longitude twice (as
+ * numeric fields and as the prefix coded lat/lng fields of the Lucene Spatial). The slim layout does not
+ * store the tier fields, which are only searched on, and lets the Lucene Spatial read the latitude and
+ * longitude from the numeric fields. The geohash layout indexes the geohash of every place and all its
+ * prefixes in one field instead of the tier fields, so distance and bound searches look up the few geohash
+ * cells that cover their range (see GeoHashFilter).
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+@SuppressWarnings("deprecation")
+public class GeoIndexLayout {
+
+	// Keys of the layout in the commit user data
+	private static final String START_TIER_KEY = "layout.startTier";
+	private static final String END_TIER_KEY = "layout.endTier";
+	private static final String STORE_TIER_FIELDS_KEY = "layout.storeTierFields";
+	private static final String SPATIAL_FIELDS_KEY = "layout.spatialFields";
+	private static final String GEOHASH_LENGTH_KEY = "layout.geohashLength";
+
+	private int startTier;
+	private int endTier;
+	private boolean storeTierFields;
+	private boolean spatialFields;
+	private int geohashLength;
+
+	// The plotters of the tiers, shared by all documents; only created if the layout is used for building
+	private CartesianTierPlotter[] tierPlotters;
+
+	/**
+	 * Create a layout
+	 *
+	 * @param startTier  the first Cartesian tier that is indexed
+	 * @param endTier  the last Cartesian tier that is indexed
+	 * @param storeTierFields  whether or not to store the tier fields
+	 * @param spatialFields  whether or not to index the latitude and longitude in the separate lat/lng fields
+	 */
+	public GeoIndexLayout(int startTier, int endTier, boolean storeTierFields, boolean spatialFields) {
+		this(startTier, endTier, storeTierFields, spatialFields, 0);
+	}
+
+	/**
+	 * Create a layout
+	 *
+	 * @param startTier  the first Cartesian tier that is indexed
+	 * @param endTier  the last Cartesian tier that is indexed
+	 * @param storeTierFields  whether or not to store the tier fields
+	 * @param spatialFields  whether or not to index the latitude and longitude in the separate lat/lng fields
+	 * @param geohashLength  the length of the longest geohash prefix that is indexed, or 0 to index the 
+	 * Cartesian tiers instead of the geohash prefixes
+	 */
+	public GeoIndexLayout(int startTier, int endTier, boolean storeTierFields, boolean spatialFields, 
+			int geohashLength) {
+		if (startTier < 1 || endTier < startTier) {
+			throw new IllegalArgumentException("invalid tier range: " + startTier + " to " + endTier);
+		}
+		if (geohashLength < 0 || geohashLength > GeoHashFilter.MAX_GEOHASH_LENGTH) {
+			throw new IllegalArgumentException("invalid geohash length: " + geohashLength);
+		}
+		this.startTier = startTier;
+		this.endTier = endTier;
+		this.storeTierFields = storeTierFields;
+		this.spatialFields = spatialFields;
+		this.geohashLength = geohashLength;
+	}
+
+	/**
+	 * Create the layout of the indices built before layouts were stored with the index
+	 *
+	 * @return the layout
+	 */
+	public static GeoIndexLayout createLegacyLayout() {
+		return new GeoIndexLayout(GeoIndexWriter.START_TIER, GeoIndexWriter.END_TIER, true, true);
+	}
+
+	/**
+	 * Create the layout without stored tier fields and without the separate lat/lng fields
+	 *
+	 * @return the layout
+	 */
+	public static GeoIndexLayout createSlimLayout() {
+		return createSlimLayout(GeoIndexWriter.START_TIER, GeoIndexWriter.END_TIER);
+	}
+
+	/**
+	 * Create the layout without stored tier fields and without the separate lat/lng fields, with a range
+	 * of tiers; distance searches use the tier in the range that best fits their range
+	 *
+	 * @param startTier  the first Cartesian tier that is indexed
+	 * @param endTier  the last Cartesian tier that is indexed
+	 * @return the layout
+	 */
+	public static GeoIndexLayout createSlimLayout(int startTier, int endTier) {
+		return new GeoIndexLayout(startTier, endTier, false, false);
+	}
+
+	/**
+	 * Create the layout with the geohash prefixes instead of the tier fields and without the separate
+	 * lat/lng fields
+	 *
+	 * @return the layout
+	 */
+	public static GeoIndexLayout createGeohashLayout() {
+		return createGeohashLayout(GeoIndexWriter.DEFAULT_GEOHASH_LENGTH);
+	}
+
+	/**
+	 * Create the layout with the geohash prefixes instead of the tier fields and without the separate
+	 * lat/lng fields, with the length of the longest prefix; the longer it is, the smaller the cells that 
+	 * small ranges are covered with, and the more terms every document has
+	 *
+	 * @param geohashLength  the length of the longest geohash prefix that is indexed
+	 * @return the layout
+	 */
+	public static GeoIndexLayout createGeohashLayout(int geohashLength) {
+		return new GeoIndexLayout(GeoIndexWriter.START_TIER, GeoIndexWriter.END_TIER, false, false, 
+				Math.max(geohashLength, 1));
+	}
+
+	/**
+	 * Get the layout of an index
+	 *
+	 * @param index  the index/directory
+	 * @return the layout the index was built with, or null if there is no index
+	 * @throws IOException
+	 */
+	public static GeoIndexLayout read(Directory index) throws IOException {
+		try {
+			return read(IndexReader.getCommitUserData(index));
+		} catch (IndexNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the layout of an index from the reader of the index
+	 *
+	 * @param reader  the reader of one index/directory
+	 * @return the layout the index was built with
+	 */
+	public static GeoIndexLayout read(IndexReader reader) {
+		return read(reader.getCommitUserData());
+	}
+
+	// Getters
+
+	public int getStartTier() {
+		return startTier;
+	}
+
+	public int getEndTier() {
+		return endTier;
+	}
+
+	public boolean isStoreTierFields() {
+		return storeTierFields;
+	}
+
+	public boolean hasSpatialFields() {
+		return spatialFields;
+	}
+
+	public int getGeohashLength() {
+		return geohashLength;
+	}
+
+	/**
+	 * Check whether the index has the geohash prefixes instead of the tier fields
+	 *
+	 * @return whether or not the geohash prefixes are indexed
+	 */
+	public boolean hasGeohashField() {
+		return geohashLength > 0;
+	}
+
+	/**
+	 * Get the field that the Lucene Spatial reads the latitude from
+	 *
+	 * @return the name of the field
+	 */
+	public String getLatitudeField() {
+		return spatialFields ? GeoIndexWriter.SPT_LAT_FIELD : GeoIndexWriter.LATITUDE_FIELD;
+	}
+
+	/**
+	 * Get the field that the Lucene Spatial reads the longitude from
+	 *
+	 * @return the name of the field
+	 */
+	public String getLongitudeField() {
+		return spatialFields ? GeoIndexWriter.SPT_LNG_FIELD : GeoIndexWriter.LONGITUDE_FIELD;
+	}
+
+	// Override
+	public String toString() {
+		if (hasGeohashField()) {
+			return String.format("geohash prefixes 1 to %d, %s", geohashLength, 
+					spatialFields ? "with lat/lng fields" : "without lat/lng fields");
+		}
+		return String.format("tiers %d to %d (%s), %s", startTier, endTier, storeTierFields ? "stored" : "not stored",
+				spatialFields ? "with lat/lng fields" : "without lat/lng fields");
+	}
+
+	// All methods below are used by the GeoIndexWriter while it builds the index
+
+	// Get the plotters of the tiers; there are none if the geohash prefixes are indexed instead
+	synchronized CartesianTierPlotter[] getTierPlotters() {
+		if (tierPlotters == null && hasGeohashField()) {
+			tierPlotters = new CartesianTierPlotter[0];
+		}
+		else if (tierPlotters == null) {
+			SinusoidalProjector projector = new SinusoidalProjector();
+			tierPlotters = new CartesianTierPlotter[endTier - startTier + 1];
+			for (int tier = startTier; tier <= endTier; tier++) {
+				tierPlotters[tier - startTier] = new CartesianTierPlotter(tier, projector, GeoIndexWriter.TIER_PREFIX_FIELD);
+			}
+		}
+		return tierPlotters;
+	}
+
+	// Add the layout to the commit user data
+	void addTo(Map<String, String> userData) {
+		userData.put(START_TIER_KEY, Integer.toString(startTier));
+		userData.put(END_TIER_KEY, Integer.toString(endTier));
+		userData.put(STORE_TIER_FIELDS_KEY, Boolean.toString(storeTierFields));
+		userData.put(SPATIAL_FIELDS_KEY, Boolean.toString(spatialFields));
+		userData.put(GEOHASH_LENGTH_KEY, Integer.toString(geohashLength));
+	}
+
+	// Read the layout from the commit user data; an index without a layout has the legacy layout
+	static GeoIndexLayout read(Map<String, String> userData) {
+		if (userData == null || !userData.containsKey(START_TIER_KEY)) {
+			return createLegacyLayout();
+		}
+		return new GeoIndexLayout(Integer.parseInt(userData.get(START_TIER_KEY)),
+				Integer.parseInt(userData.get(END_TIER_KEY)), Boolean.parseBoolean(userData.get(STORE_TIER_FIELDS_KEY)),
+				Boolean.parseBoolean(userData.get(SPATIAL_FIELDS_KEY)), userData.containsKey(GEOHASH_LENGTH_KEY) 
+				? Integer.parseInt(userData.get(GEOHASH_LENGTH_KEY)) : 0);
+	}
+}
@@ -1,27 +1,25 @@
 package edu.cornell.georeference;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
-import org.apache.lucene.document.NumericField;
 import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.spatial.tier.projections.CartesianTierPlotter;
-import org.apache.lucene.spatial.tier.projections.IProjector;
-import org.apache.lucene.spatial.tier.projections.SinusoidalProjector;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.store.SimpleFSDirectory;
-import org.apache.lucene.util.NumericUtils;
 import org.apache.lucene.util.Version;
 
 /**
@@ -35,6 +33,7 @@ import org.apache.lucene.util.Version;
 public class GeoIndexWriter {
 	
 	// Names of the fields in the document
+	public static final String ID_FIELD = "id";
 	public static final String NAME_FIELD = "name";
 	public static final String ALT_NAME1_FIELD = "altname1";
 	public static final String ALT_NAME2_FIELD = "altname2";
@@ -46,21 +45,145 @@ public class GeoIndexWriter {
 	public static final String SPT_LNG_FIELD = "lng";
 	public static final String TIER_PREFIX_FIELD = "_localTier";
 	
-    // Tier values for Lucene Spatial
+	// Name of the field with the geohash prefixes of the geohash layout
+	public static final String GEOHASH_FIELD = "_geohash";
+	
+    // Default tier values for Lucene Spatial
     public static final int START_TIER = 5;
     public static final int END_TIER = 15;
     
-    private IProjector projector;
-    private CartesianTierPlotter ctp;
+    // Default length of the longest geohash prefix of the geohash layout (cells of about 38 by 19 meters)
+    public static final int DEFAULT_GEOHASH_LENGTH = 8;
+    
+    // Default values for building the index
+    public static final int DEFAULT_INGEST_BATCH_SIZE = 1000;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 1000000;
+    
+    // A rebuilt index is built in the index directory name with this suffix before it replaces the index
+    public static final String STAGING_DIRECTORY_SUFFIX = ".staging";
+    
+    // A rebuilt index must have at least this fraction of the documents of the index it replaces
+    public static final double MIN_REBUILD_DOC_RATIO = 0.5;
+    
+    // Ways of opening an index for searching (see setDirectoryMode())
+    public static final int SIMPLE_FS_DIRECTORY = 1;
+    public static final int NIO_FS_DIRECTORY = 2;
+    public static final int MMAP_DIRECTORY = 3;
+    public static final int RAM_DIRECTORY = 4;
+    
+    // Size of the reads that pre-touch the files of an index
+    private static final int PRE_TOUCH_BUFFER_SIZE = 65536;
+    
+    private GeoIndexLayout indexLayout;
     private Analyzer analyzer;
+    private int numOfIngestThreads;
+    private int ingestBatchSize;
+    private long checkpointInterval;
+    private int directoryMode;
+    private boolean preTouch;
 	
     /**
-     * Create an object and initializes the default analyzer, projector, etc
+     * Create an object and initializes the default analyzer, index layout, etc
      */
 	public GeoIndexWriter() {
-		this.projector = new SinusoidalProjector();
-	    this.ctp = new CartesianTierPlotter(0, projector, TIER_PREFIX_FIELD);
+		this.indexLayout = GeoIndexLayout.createSlimLayout();
 	    this.analyzer = new StandardAnalyzer(Version.LUCENE_34);
+	    this.numOfIngestThreads = Runtime.getRuntime().availableProcessors();
+	    this.ingestBatchSize = DEFAULT_INGEST_BATCH_SIZE;
+	    this.checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+	    this.directoryMode = SIMPLE_FS_DIRECTORY;
+	}
+	
+	// Getters and setters
+	
+	public GeoIndexLayout getIndexLayout() {
+		return indexLayout;
+	}
+
+	/**
+	 * Set the layout of the indices that are built from now on; indices that are updated or resumed keep
+	 * the layout they were built with
+	 * 
+	 * @param indexLayout  the layout
+	 */
+	public void setIndexLayout(GeoIndexLayout indexLayout) {
+		this.indexLayout = indexLayout;
+	}
+
+	public int getNumOfIngestThreads() {
+		return numOfIngestThreads;
+	}
+
+	/**
+	 * Set the number of threads that parse the rows and add them to the index while building an index. 
+	 * If it is 1, the rows are read and added one at a time on the calling thread.
+	 * 
+	 * @param numOfIngestThreads  the number of threads
+	 */
+	public void setNumOfIngestThreads(int numOfIngestThreads) {
+		this.numOfIngestThreads = Math.max(numOfIngestThreads, 1);
+	}
+
+	public int getIngestBatchSize() {
+		return ingestBatchSize;
+	}
+
+	/**
+	 * Set the number of rows that are handed to an ingest thread at once while building an index
+	 * 
+	 * @param ingestBatchSize  the number of rows in a batch
+	 */
+	public void setIngestBatchSize(int ingestBatchSize) {
+		this.ingestBatchSize = Math.max(ingestBatchSize, 1);
+	}
+	
+	public long getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	/**
+	 * Set how often the index is committed while it is built. Each commit records how far the build has got
+	 * in the data source file, so a build that fails can be continued with resumeBuild().
+	 * 
+	 * @param checkpointInterval  the number of rows between commits (0 to only commit at the end)
+	 */
+	public void setCheckpointInterval(long checkpointInterval) {
+		this.checkpointInterval = Math.max(checkpointInterval, 0);
+	}
+	
+	public int getDirectoryMode() {
+		return directoryMode;
+	}
+
+	/**
+	 * Set how the indices returned for searching are opened: SIMPLE_FS_DIRECTORY reads the files with a 
+	 * synchronized file (the default), NIO_FS_DIRECTORY reads them with positional reads that don't block each
+	 * other (slow on Windows), MMAP_DIRECTORY maps them into memory and RAM_DIRECTORY copies the whole index 
+	 * into the heap, which only suits small indices such as the historical one. A RAM index is a copy taken 
+	 * when it is opened, so Georeference.refresh() doesn't see later rebuilds or updates of it. Indices that 
+	 * are built or updated are always written to the files.
+	 * 
+	 * @param directoryMode  the mode
+	 */
+	public void setDirectoryMode(int directoryMode) {
+		if (directoryMode < SIMPLE_FS_DIRECTORY || directoryMode > RAM_DIRECTORY) {
+			throw new IllegalArgumentException("invalid directory mode: " + directoryMode);
+		}
+		this.directoryMode = directoryMode;
+	}
+
+	public boolean isPreTouch() {
+		return preTouch;
+	}
+
+	/**
+	 * Set whether the files of an index are read through once when it is opened for searching, so the first 
+	 * searches don't wait for them to be paged in from disk (ignored for RAM_DIRECTORY)
+	 * 
+	 * @param preTouch  whether to pre-touch the files
+	 */
+	public void setPreTouch(boolean preTouch) {
+		this.preTouch = preTouch;
 	}
 	
 	/**
@@ -75,21 +198,84 @@ public class GeoIndexWriter {
 	}
 	
 	/**
-	 * Get the index from the file path
+	 * Get the index from the file path, opened for searching in the directory mode
 	 * 
 	 * @param indexFilePath  the file path of the index
 	 * @return the index/directory
 	 * @throws IOException
 	 */
 	public Directory getIndexFromFilePath(String indexFilePath) throws IOException {
+		return openIndex(indexFilePath, true);
+	}
+	
+	// Open the index at the file path, in the directory mode if it is for searching; indices that are written 
+	// to are always opened on the files
+	private Directory openIndex(String indexFilePath, boolean forSearching) throws IOException {
 		File file = new File(indexFilePath);
 		Directory index = null;		
-		if (file.exists()) {
+		if (!file.exists()) {
+			return index;
+		}
+		int mode = forSearching ? directoryMode : SIMPLE_FS_DIRECTORY;
+		if (mode == NIO_FS_DIRECTORY) {
+			index = new NIOFSDirectory(file);
+		}
+		else if (mode == MMAP_DIRECTORY) {
+			MMapDirectory mmapIndex = new MMapDirectory(file);
+			
+			// Release the address space of the files as soon as they are closed instead of at a GC
+			if (MMapDirectory.UNMAP_SUPPORTED) {
+				mmapIndex.setUseUnmap(true);
+			}
+			index = mmapIndex;
+		}
+		else if (mode == RAM_DIRECTORY) {
+			Directory fsIndex = new SimpleFSDirectory(file);
+			try {
+				index = new RAMDirectory(fsIndex);
+			} finally {
+				fsIndex.close();
+			}
+		}
+		else {
 			index = new SimpleFSDirectory(file);
 		}
+		if (forSearching && preTouch && mode != RAM_DIRECTORY) {
+			preTouchIndex(index, indexFilePath);
+		}
 		return index;
 	}
 	
+	// Read all the files of an index once, so they are in the page cache (or mapped) before the first search
+	private static void preTouchIndex(Directory index, String indexFilePath) throws IOException {
+		long startTime = System.currentTimeMillis();
+		long numOfBytes = 0;
+		byte[] buffer = new byte[PRE_TOUCH_BUFFER_SIZE];
+		for (String fileName : index.listAll()) {
+			IndexInput input = index.openInput(fileName);
+			try {
+				long length = input.length();
+				for (long position = 0; position < length; position += buffer.length) {
+					input.readBytes(buffer, 0, (int) Math.min(buffer.length, length - position));
+				}
+				numOfBytes += length;
+			} finally {
+				input.close();
+			}
+		}
+		System.out.println(String.format("INDEX STATUS: Pre-touched %d bytes of %s in %d ms", numOfBytes, 
+				indexFilePath, System.currentTimeMillis() - startTime));
+	}
+	
+	// Reopen an index that was just built for searching in the directory mode
+	private Directory reopenIndex(Directory index, String indexFilePath) throws IOException {
+		if (index == null || directoryMode == SIMPLE_FS_DIRECTORY) {
+			return index;
+		}
+		index.close();
+		return getIndexFromFilePath(indexFilePath);
+	}
+	
 	/**
 	 * Delete a file
 	 * 
@@ -121,7 +307,7 @@ public class GeoIndexWriter {
 			return index;
 		}
 		else {
-			return buildIndex(dataSource, indexTargetFilePath);
+			return reopenIndex(buildIndex(dataSource, indexTargetFilePath), indexTargetFilePath);
 		}
 	}
 	
@@ -135,6 +321,28 @@ public class GeoIndexWriter {
 	 * @throws IOException
 	 */
 	public Directory buildIndex(GeoDataSource dataSource, String indexTargetFilePath) throws IOException {
+		return buildIndex(dataSource, indexTargetFilePath, new GeoBuildStats(dataSource, null));
+	}
+	
+	/**
+	 * Build an index/directory and report how the build is going. It will delete the current existing file
+	 * at the index file path
+	 * 
+	 * @param dataSource  the data source that is used to build the index
+	 * @param indexTargetFilePath  the file directory to put the index in
+	 * @param listener  the listener that is told about the progress of the build (can be null)
+	 * @return the statistics of the build, or null if the index can't be built at the file path
+	 * @throws IOException
+	 */
+	public GeoBuildStats buildIndex(GeoDataSource dataSource, String indexTargetFilePath, GeoBuildListener listener) 
+			throws IOException {
+		GeoBuildStats stats = new GeoBuildStats(dataSource, listener);
+		return buildIndex(dataSource, indexTargetFilePath, stats) != null ? stats : null;
+	}
+	
+	// Build the index and collect the statistics of the build
+	private Directory buildIndex(GeoDataSource dataSource, String indexTargetFilePath, GeoBuildStats stats) 
+			throws IOException {
 		// Check to see if there is already an file at the index file path
 		// Delete the file if there is one
 		File file = new File(indexTargetFilePath);
@@ -147,79 +355,553 @@ public class GeoIndexWriter {
 		
 		file = new File(indexTargetFilePath);
 		Directory index = FSDirectory.open(file);
+		addDataSource(dataSource, new Directory[] { index }, null, stats);
+		return index;
+	}
+	
+	/**
+	 * Continue a build of the index that did not finish (e.g. the process was killed) from the last checkpoint
+	 * that was committed. The rows after the checkpoint are read again from the data source file and the 
+	 * result is the same as a build from scratch. If the index is already complete, it is returned as it is. 
+	 * If there is no index or the data source file has changed since the build started (or since the complete
+	 * index was built), the index is built from scratch.
+	 * 
+	 * @param dataSource  the data source that is used to build the index
+	 * @param indexTargetFilePath  the file directory of the index
+	 * @return the index/directory built
+	 * @throws IOException
+	 */
+	public Directory resumeBuild(GeoDataSource dataSource, String indexTargetFilePath) throws IOException {
+		Directory index = openIndex(indexTargetFilePath, false);
+		if (index == null || !resumeDataSource(dataSource, new Directory[] { index })) {
+			return buildIndex(dataSource, indexTargetFilePath);
+		}
+		return index;
+	}
+	
+	/**
+	 * Rebuild an index while it is being searched. The index is built in a staging directory next to it 
+	 * (the index file path plus STAGING_DIRECTORY_SUFFIX) and checked: it must not be empty, must have at
+	 * least MIN_REBUILD_DOC_RATIO of the documents of the current index and must find each of the sample
+	 * place names. It then replaces the content of the index in a single commit, so searchers see either
+	 * the old or the new index, never a partial one; Georeference.refresh() switches them to the new index.
+	 * If the build fails, it is resumed from the staging directory by the next call.
+	 * 
+	 * Publishing copies the staging index into the index directory, so the index is written twice and a 
+	 * rebuild needs disk space for about three copies of the index at its peak: the current index, which 
+	 * open readers keep until they are reopened, the staging index and the published copy.
+	 * 
+	 * @param dataSource  the data source that is used to build the index
+	 * @param indexTargetFilePath  the file directory of the index
+	 * @param samplePlaceNames  place names that the new index must have results for
+	 * @return the rebuilt index/directory
+	 * @throws IOException if the build fails or the new index is not valid; the current index is kept
+	 */
+	public Directory rebuildIndex(GeoDataSource dataSource, String indexTargetFilePath, String... samplePlaceNames) 
+			throws IOException {
+		String stagingFilePath = indexTargetFilePath + STAGING_DIRECTORY_SUFFIX;
+		Directory staging = resumeBuild(dataSource, stagingFilePath);
+		if (staging == null) {
+			throw new IOException("failed to build the staging index " + stagingFilePath);
+		}
+		boolean valid = false;
+		try {
+			validateIndex(staging, indexTargetFilePath, samplePlaceNames);
+			valid = true;
+			publishIndex(staging, indexTargetFilePath);
+		} finally {
+			staging.close();
+			if (!valid) {
+				// The staging index is complete, so it would be reused as it is by the next call; drop it so 
+				// that the index is built again
+				deleteFile(new File(stagingFilePath));
+			}
+		}
+		deleteFile(new File(stagingFilePath));
+		System.out.println("INDEX STATUS: Published the rebuilt index " + indexTargetFilePath);
+		return reopenIndex(FSDirectory.open(new File(indexTargetFilePath)), indexTargetFilePath);
+	}
+	
+	/**
+	 * Get the sharded index from the file path, with the shards opened for searching in the directory mode
+	 * 
+	 * @param indexFilePath  the file path of the sharded index
+	 * @return the sharded index, or null if there isn't one at the file path
+	 * @throws IOException
+	 */
+	public GeoShardedIndex getShardedIndexFromFilePath(String indexFilePath) throws IOException {
+		return openShardedIndex(indexFilePath, true);
+	}
+	
+	// Open the shards of the sharded index at the file path (see openIndex())
+	private GeoShardedIndex openShardedIndex(String indexFilePath, boolean forSearching) throws IOException {
+		int numOfShards = 0;
+		while (hasFileAtPath(new File(indexFilePath, GeoShardedIndex.SHARD_DIRECTORY_PREFIX + numOfShards).getPath())) {
+			numOfShards++;
+		}
+		if (numOfShards == 0) {
+			return null;
+		}
+		Directory[] shards = new Directory[numOfShards];
+		for (int i = 0; i < numOfShards; i++) {
+			shards[i] = openIndex(new File(indexFilePath, GeoShardedIndex.SHARD_DIRECTORY_PREFIX + i).getPath(), 
+					forSearching);
+		}
+		return new GeoShardedIndex(shards);
+	}
+	
+	/**
+	 * Build a sharded index if there isn't one at the index file path
+	 * 
+	 * @param dataSource  the data source that is used to build the index
+	 * @param indexTargetFilePath  the file directory to put the shards in
+	 * @param numOfShards  the number of shards to split the index into
+	 * @return the sharded index at the index file directory
+	 * @throws IOException
+	 */
+	public GeoShardedIndex buildShardedIndexIfIndexNotExist(GeoDataSource dataSource, String indexTargetFilePath, 
+			int numOfShards) throws IOException {
+		GeoShardedIndex index = getShardedIndexFromFilePath(indexTargetFilePath);
+		if (index != null) {
+			return index;
+		}
+		index = buildShardedIndex(dataSource, indexTargetFilePath, numOfShards);
+		if (index == null || directoryMode == SIMPLE_FS_DIRECTORY) {
+			return index;
+		}
+		
+		// Reopen the shards that were just built for searching in the directory mode
+		for (Directory shard : index.getShards()) {
+			shard.close();
+		}
+		return getShardedIndexFromFilePath(indexTargetFilePath);
+	}
+	
+	/**
+	 * Build an index that is split into shards by longitude, so that searches in a region only need to search
+	 * on the shards that overlap the region. It will delete the current existing file at the index file path
+	 * 
+	 * @param dataSource  the data source that is used to build the index
+	 * @param indexTargetFilePath  the file directory to put the shards in
+	 * @param numOfShards  the number of shards to split the index into
+	 * @return the sharded index built
+	 * @throws IOException
+	 */
+	public GeoShardedIndex buildShardedIndex(GeoDataSource dataSource, String indexTargetFilePath, int numOfShards) 
+			throws IOException {
+		return buildShardedIndex(dataSource, indexTargetFilePath, numOfShards, new GeoBuildStats(dataSource, null));
+	}
+	
+	/**
+	 * Build an index that is split into shards by longitude and report how the build is going. It will delete 
+	 * the current existing file at the index file path
+	 * 
+	 * @param dataSource  the data source that is used to build the index
+	 * @param indexTargetFilePath  the file directory to put the shards in
+	 * @param numOfShards  the number of shards to split the index into
+	 * @param listener  the listener that is told about the progress of the build (can be null)
+	 * @return the statistics of the build, or null if the index can't be built at the file path
+	 * @throws IOException
+	 */
+	public GeoBuildStats buildShardedIndex(GeoDataSource dataSource, String indexTargetFilePath, int numOfShards, 
+			GeoBuildListener listener) throws IOException {
+		GeoBuildStats stats = new GeoBuildStats(dataSource, listener);
+		return buildShardedIndex(dataSource, indexTargetFilePath, numOfShards, stats) != null ? stats : null;
+	}
+	
+	// Build the sharded index and collect the statistics of the build
+	private GeoShardedIndex buildShardedIndex(GeoDataSource dataSource, String indexTargetFilePath, int numOfShards, 
+			GeoBuildStats stats) throws IOException {
+		// Delete the file at the index file path if there is one
+		File file = new File(indexTargetFilePath);
+		if (file.exists()) {
+			// return null if it can't delete the file
+			if (!deleteFile(file)) {
+				return null;
+			}
+		}
+		
+		// Each shard is an index in a sub directory
+		Directory[] shards = new Directory[numOfShards];
+		for (int i = 0; i < numOfShards; i++) {
+			shards[i] = FSDirectory.open(new File(indexTargetFilePath, GeoShardedIndex.SHARD_DIRECTORY_PREFIX + i));
+		}
+		addDataSource(dataSource, shards, null, stats);
+		return new GeoShardedIndex(shards);
+	}
+	
+	/**
+	 * Continue a build of the sharded index that did not finish from the last checkpoint that was committed.
+	 * See resumeBuild().
+	 * 
+	 * @param dataSource  the data source that is used to build the index
+	 * @param indexTargetFilePath  the file directory of the shards
+	 * @param numOfShards  the number of shards if the index has to be built from scratch
+	 * @return the sharded index built
+	 * @throws IOException
+	 */
+	public GeoShardedIndex resumeShardedBuild(GeoDataSource dataSource, String indexTargetFilePath, int numOfShards) 
+			throws IOException {
+		GeoShardedIndex index = openShardedIndex(indexTargetFilePath, false);
+		if (index == null || !resumeDataSource(dataSource, index.getShards())) {
+			return buildShardedIndex(dataSource, indexTargetFilePath, numOfShards);
+		}
+		return index;
+	}
+	
+	/**
+	 * Update an existing index with the changes of the data source instead of rebuilding it. The places in the
+	 * modification data source replace the places with the same id in the index (or are added if they are new), 
+	 * and the places in the deletion data source are removed from the index. The index must have been built 
+	 * from a data source with an id column. Searches only see the changes after Georeference.refresh().
+	 * 
+	 * @param modificationDataSource  the data source with the new or changed places (can be null)
+	 * @param deletionDataSource  the data source with the ids of the deleted places (can be null)
+	 * @param indexTargetFilePath  the file directory of the index
+	 * @return the updated index/directory, or null if there is no index at the index file directory
+	 * @throws IOException
+	 */
+	public Directory updateIndex(GeoDataSource modificationDataSource, GeoDataSource deletionDataSource, 
+			String indexTargetFilePath) throws IOException {
+		Directory index = openIndex(indexTargetFilePath, false);
+		if (index == null) {
+			return null;
+		}
+		checkIdColumn(modificationDataSource);
+		checkIdColumn(deletionDataSource);
 		
 		IndexWriterConfig indexWriterConfig = new IndexWriterConfig(Version.LUCENE_34, analyzer);
+		indexWriterConfig.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
 		IndexWriter indexWriter = new IndexWriter(index, indexWriterConfig);
 		
-		FileInputStream fstream = new FileInputStream(dataSource.getFilePath());
+		long startTime = System.currentTimeMillis();
+		long numOfUpdatedRows = 0;
+		long numOfDeletedRows = 0;
+		long numOfRejectedRows = 0;
+		Term idTerm = new Term(ID_FIELD);
+		GeoRow row = new GeoRow();
+		GeoDataScanner.LineBatch batch;
+		boolean success = false;
+		try {
+			// Replace the changed places
+			if (modificationDataSource != null) {
+				GeoDocumentTemplate template = createDocumentTemplate(modificationDataSource, GeoIndexLayout.read(index));
+				GeoDataScanner scanner = new GeoDataScanner(modificationDataSource);
+				try {
+					while ((batch = scanner.nextBatch(ingestBatchSize)) != null) {
+						ByteBuffer buffer = batch.buffer.duplicate();
+						for (int i = 0; i < batch.size; i++) {
+							// Rows that can't be parsed are rejected the same way as in a build
+							if (parseRow(scanner, batch, i, buffer, row)) {
+								indexWriter.updateDocument(idTerm.createTerm(row.id), template.fill(row));
+								numOfUpdatedRows++;
+							}
+							else {
+								numOfRejectedRows++;
+							}
+						}
+					}
+				} finally {
+					scanner.close();
+				}
+			}
+			
+			// Remove the deleted places
+			if (deletionDataSource != null) {
+				GeoDataScanner scanner = new GeoDataScanner(deletionDataSource);
+				try {
+					while ((batch = scanner.nextBatch(ingestBatchSize)) != null) {
+						ByteBuffer buffer = batch.buffer.duplicate();
+						for (int i = 0; i < batch.size; i++) {
+							if (parseRow(scanner, batch, i, buffer, row)) {
+								indexWriter.deleteDocuments(idTerm.createTerm(row.id));
+								numOfDeletedRows++;
+							}
+							else {
+								numOfRejectedRows++;
+							}
+						}
+					}
+				} finally {
+					scanner.close();
+				}
+			}
+			indexWriter.close();
+			success = true;
+		} finally {
+			// Drop the changes of an update that failed partway, so the index is left as it was
+			if (!success) {
+				indexWriter.rollback();
+			}
+		}
 		
-		// Get the object of DataInputStream
-		DataInputStream in = new DataInputStream(fstream);
-		BufferedReader br = new BufferedReader(new InputStreamReader(in));
+		long elapsedTime = Math.max(System.currentTimeMillis() - startTime, 1);
+		System.out.println(String.format("INDEX STATUS: Updated %d rows, deleted %d rows and rejected %d rows of %s "
+				+ "in %.1f seconds", numOfUpdatedRows, numOfDeletedRows, numOfRejectedRows, indexTargetFilePath, 
+				elapsedTime / 1000.0));
 		
-		// Whether to not to ingore first row (some data source file has column names as the first row)
-		if (dataSource.isIgnoreFirstRow()) {
-			br.readLine();
+		return index;
+	}
+	
+	// All methods below are private helper methods that are used to help build the indices
+	
+	// Parse a line of a batch of an update; false if the row has too few columns, bad coordinates or no id
+	private static boolean parseRow(GeoDataScanner scanner, GeoDataScanner.LineBatch batch, int i, ByteBuffer buffer, 
+			GeoRow row) {
+		try {
+			return scanner.parseLine(buffer, batch.starts[i], batch.ends[i], row) && row.id.length() > 0;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+	
+	// Make sure that the rows of a data source can be matched with the documents in the index
+	private void checkIdColumn(GeoDataSource dataSource) {
+		if (dataSource != null && dataSource.getIdColNum() < 0) {
+			throw new IllegalArgumentException("the data source " + dataSource.getFilePath() + " has no id column");
+		}
+	}
+	
+	// Check that a rebuilt index can replace the current index
+	private void validateIndex(Directory staging, String indexTargetFilePath, String[] samplePlaceNames) 
+			throws IOException {
+		int numOfDocs = getNumOfDocs(staging);
+		if (numOfDocs == 0) {
+			throw new IOException("the rebuilt index of " + indexTargetFilePath + " is empty");
+		}
+		Directory index = openIndex(indexTargetFilePath, false);
+		if (index != null) {
+			try {
+				if (IndexReader.indexExists(index)) {
+					int numOfCurrentDocs = getNumOfDocs(index);
+					if (numOfDocs < numOfCurrentDocs * MIN_REBUILD_DOC_RATIO) {
+						throw new IOException(String.format("the rebuilt index of %s has %d documents, too few to "
+								+ "replace the %d documents of the current index", indexTargetFilePath, numOfDocs, 
+								numOfCurrentDocs));
+					}
+				}
+			} finally {
+				index.close();
+			}
 		}
 		
-		//Read File Line By Line
-		String strLine;
-		while ((strLine = br.readLine()) != null)   {
-			String[] splittedLine = strLine.split(dataSource.getDatSourceSplitString());
-			if (splittedLine.length >= dataSource.getNumOfCols()) {
-				addDoc(dataSource, indexWriter, splittedLine);
+		// Search for the sample place names the same way the users do
+		Georeference geo = new Georeference();
+		geo.addGazetteer("staging", staging);
+		try {
+			for (String placeName : samplePlaceNames) {
+				String result = geo.searchLocation(placeName, null, null, null, DistanceScoreQuery.SQUARE_ROOT);
+				if (!result.contains("<place>")) {
+					throw new IOException("the rebuilt index of " + indexTargetFilePath + " has no results for " + placeName);
+				}
 			}
+		} catch (ParseException e) {
+			IOException ioe = new IOException("failed to search the rebuilt index of " + indexTargetFilePath);
+			ioe.initCause(e);
+			throw ioe;
+		} finally {
+			geo.close();
 		}
-					
-		indexWriter.close();
-				
-		return index;
 	}
 	
-	// All methods below are private helper methods that are used to help build the indices
+	// Replace the content of the index with the staging index in a single commit; readers that have the old 
+	// index open keep working until they are reopened
+	private void publishIndex(Directory staging, String indexTargetFilePath) throws IOException {
+		Directory index = FSDirectory.open(new File(indexTargetFilePath));
+		IndexWriterConfig indexWriterConfig = new IndexWriterConfig(Version.LUCENE_34, analyzer);
+		indexWriterConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+		IndexWriter indexWriter = new IndexWriter(index, indexWriterConfig);
+		boolean success = false;
+		try {
+			indexWriter.addIndexes(staging);
+			
+			// Keep the checkpoint, so the published index counts as complete
+			indexWriter.commit(IndexReader.getCommitUserData(staging));
+			indexWriter.close();
+			success = true;
+		} finally {
+			if (!success) {
+				indexWriter.rollback();
+			}
+			index.close();
+		}
+	}
+	
+	// Get the number of documents in an index
+	private static int getNumOfDocs(Directory index) throws IOException {
+		IndexReader reader = IndexReader.open(index, true);
+		try {
+			return reader.numDocs();
+		} finally {
+			reader.close();
+		}
+	}
 	
-	// Creating fields needed for the Lucene Spatial
-	private void addSpatialLuceneFields(double lat, double lng, Document doc) {
-        doc.add(new Field(SPT_LAT_FIELD, NumericUtils.doubleToPrefixCoded(lat), Field.Store.NO, Field.Index.NOT_ANALYZED));
-        doc.add(new Field(SPT_LNG_FIELD, NumericUtils.doubleToPrefixCoded(lng), Field.Store.NO, Field.Index.NOT_ANALYZED));
-        for (int tier = START_TIER; tier <= END_TIER; tier++) {
-            ctp = new CartesianTierPlotter(tier, projector, TIER_PREFIX_FIELD);
-            double boxId = ctp.getTierBoxId(lat, lng);
-            doc.add(new Field(ctp.getTierFieldName(), NumericUtils.doubleToPrefixCoded(boxId), Field.Store.YES,
-                Field.Index.NOT_ANALYZED_NO_NORMS));
-        }
-    }
-	
-	// Create a document for the place and add all relevant fields to the documents
-	private void addDoc(GeoDataSource dataSource, IndexWriter w, String[] values) throws CorruptIndexException, IOException {
-		 Document doc = new Document();
-		 
-		 // Add the name field to the document
-		 Field mainNameField = new Field(NAME_FIELD, values[dataSource.getNameColNum()], Field.Store.YES, 
-				 Field.Index.ANALYZED);
-		 mainNameField.setBoost(1.2f); // Add boost to this field to boost the score if match
-		 doc.add(mainNameField);
-		 
-		 // Add other alternative name fields;
-		 doc.add(new Field(ALT_NAME1_FIELD, values[dataSource.getAltName1ColNum()], Field.Store.NO, 
-				 Field.Index.ANALYZED));
-		 doc.add(new Field(ALT_NAME2_FIELD, values[dataSource.getAltName2ColNum()], Field.Store.NO, 
-				 Field.Index.ANALYZED));
-		    
-		 // Add latitude field to the document
-		 double lat = Double.parseDouble(values[dataSource.getLatColNum()]);
-		 NumericField latField = new NumericField(LATITUDE_FIELD, Field.Store.YES, true);
-		 latField.setDoubleValue(lat);
-		 doc.add(latField);
-		    
-		// Add longitude field to the document
-		 double lng = Double.parseDouble(values[dataSource.getLngColNum()]);
-		 NumericField lngField = new NumericField(LONGITUDE_FIELD, Field.Store.YES, true);
-		 lngField.setDoubleValue(lng);
-		 doc.add(lngField);
-		    
-		 addSpatialLuceneFields(lat, lng, doc);
-		    
-		 w.addDocument(doc);
+	// Continue adding the data source to the indices from the checkpoint of their last commit; returns false if
+	// there is no checkpoint to continue from and the indices have to be built from scratch
+	private boolean resumeDataSource(GeoDataSource dataSource, Directory[] indices) throws IOException {
+		GeoBuildCheckpoint[] checkpoints = new GeoBuildCheckpoint[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			if (!IndexReader.indexExists(indices[i])) {
+				return false;
+			}
+			checkpoints[i] = GeoBuildCheckpoint.read(indices[i]);
+		}
+		
+		// All shards must have been committed at the same checkpoint
+		GeoBuildCheckpoint checkpoint = checkpoints[0];
+		for (int i = 1; i < indices.length; i++) {
+			if (checkpoint == null ? checkpoints[i] != null : !checkpoint.sameAs(checkpoints[i])) {
+				System.out.println("INDEX STATUS: The shards of the index are at different checkpoints");
+				return false;
+			}
+		}
+		
+		// The index is complete if it was built before checkpoints were recorded
+		if (checkpoint == null) {
+			return true;
+		}
+		
+		// A complete index of an older version of the file is built again too
+		if (!checkpoint.matches(dataSource)) {
+			System.out.println("INDEX STATUS: " + dataSource.getFilePath() + " has changed since the build started");
+			return false;
+		}
+		if (checkpoint.complete) {
+			return true;
+		}
+		System.out.println(String.format("INDEX STATUS: Resuming the build of %s at line %d (offset %d)", 
+				dataSource.getFilePath(), checkpoint.numOfLines, checkpoint.offset));
+		addDataSource(dataSource, indices, checkpoint, new GeoBuildStats(dataSource, null));
+		return true;
+	}
+	
+	// Add the rows of the data source to the indices starting at the checkpoint (or at the start of the file if it 
+	// is null); if there are several indices, each row goes to the shard of its longitude
+	private void addDataSource(GeoDataSource dataSource, Directory[] indices, GeoBuildCheckpoint checkpoint, 
+			GeoBuildStats stats) throws IOException {
+		IndexWriter[] indexWriters = new IndexWriter[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			IndexWriterConfig indexWriterConfig = new IndexWriterConfig(Version.LUCENE_34, analyzer);
+			indexWriterConfig.setMaxThreadStates(Math.max(numOfIngestThreads, IndexWriterConfig.DEFAULT_MAX_THREAD_STATES));
+			indexWriterConfig.setOpenMode(checkpoint == null ? IndexWriterConfig.OpenMode.CREATE : IndexWriterConfig.OpenMode.APPEND);
+			indexWriters[i] = new IndexWriter(indices[i], indexWriterConfig);
+		}
+		
+		// Record the start of the build in the indices, so that it can be resumed from the beginning
+		if (checkpoint == null) {
+			checkpoint = new GeoBuildCheckpoint(dataSource, indexLayout);
+			checkpoint.commit(indexWriters);
+		}
+		
+		boolean success = false;
+		try {
+			GeoDataScanner scanner = new GeoDataScanner(dataSource, checkpoint.offset);
+			try {
+				if (numOfIngestThreads > 1) {
+					// Scan the file on this thread and parse and add the rows on the ingest threads
+					GeoIngestPipeline pipeline = new GeoIngestPipeline(this, dataSource, scanner, indexWriters, 
+							numOfIngestThreads, ingestBatchSize, checkpoint, checkpointInterval, stats);
+					pipeline.run();
+				}
+				else {
+					// Read the file batch by batch and commit every checkpoint interval
+					GeoRow row = new GeoRow();
+					GeoDocumentTemplate template = createDocumentTemplate(dataSource, checkpoint.layout);
+					GeoDataScanner.LineBatch batch;
+					long numOfLinesSinceCheckpoint = 0;
+					long readStartTime = System.nanoTime();
+					while ((batch = scanner.nextBatch(ingestBatchSize)) != null) {
+						stats.addRead(batch.size, System.nanoTime() - readStartTime);
+						long numOfBatchRows = addDocs(scanner, batch, row, template, indexWriters, stats);
+						checkpoint.offset = scanner.getOffset();
+						checkpoint.numOfLines += batch.size;
+						checkpoint.numOfRows += numOfBatchRows;
+						numOfLinesSinceCheckpoint += batch.size;
+						if (checkpointInterval > 0 && numOfLinesSinceCheckpoint >= checkpointInterval) {
+							long commitStartTime = System.nanoTime();
+							checkpoint.commit(indexWriters);
+							stats.addCommit(System.nanoTime() - commitStartTime);
+							numOfLinesSinceCheckpoint = 0;
+						}
+						stats.progress();
+						readStartTime = System.nanoTime();
+					}
+				}
+			} finally {
+				scanner.close();
+			}
+			
+			// Mark the index as complete in the last commit
+			long commitStartTime = System.nanoTime();
+			checkpoint.complete = true;
+			checkpoint.commit(indexWriters);
+			for (int i = 0; i < indexWriters.length; i++) {
+				indexWriters[i].close();
+			}
+			stats.addCommit(System.nanoTime() - commitStartTime);
+			success = true;
+		} finally {
+			// Drop the rows added since the last checkpoint, so the build can be resumed from there
+			if (!success) {
+				for (int i = 0; i < indexWriters.length; i++) {
+					try {
+						indexWriters[i].rollback();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+		
+		// Report how fast the index is built and where the time went
+		stats.finish(indices);
+		System.out.println("INDEX STATUS: " + stats.toString().replace("\n", "\nINDEX STATUS: "));
+	}
+	
+	// Create a reusable document with the layout of the index for an ingest thread
+	GeoDocumentTemplate createDocumentTemplate(GeoDataSource dataSource, GeoIndexLayout layout) {
+		return new GeoDocumentTemplate(layout, dataSource.getIdColNum() >= 0);
+	}
+	
+	// Parse a batch of lines and add a document for each line that has enough columns and valid coordinates to 
+	// the index (or the shard of the row); it can be called by several ingest threads at the same time, each with 
+	// its own row and document template
+	long addDocs(GeoDataScanner scanner, GeoDataScanner.LineBatch batch, GeoRow row, GeoDocumentTemplate template, 
+			IndexWriter[] w, GeoBuildStats stats) throws CorruptIndexException, IOException {
+		ByteBuffer buffer = batch.buffer.duplicate();
+		long numOfRows = 0;
+		long numOfTooFewColumns = 0;
+		long numOfBadCoordinates = 0;
+		long parseTime = 0;
+		long documentTime = 0;
+		long addTime = 0;
+		for (int i = 0; i < batch.size; i++) {
+			long startTime = System.nanoTime();
+			boolean hasEnoughColumns;
+			try {
+				hasEnoughColumns = scanner.parseLine(buffer, batch.starts[i], batch.ends[i], row);
+			} catch (NumberFormatException e) {
+				numOfBadCoordinates++;
+				parseTime += System.nanoTime() - startTime;
+				continue;
+			}
+			long parseEndTime = System.nanoTime();
+			parseTime += parseEndTime - startTime;
+			if (!hasEnoughColumns) {
+				numOfTooFewColumns++;
+				continue;
+			}
+			
+			Document doc = template.fill(row);
+			long documentEndTime = System.nanoTime();
+			documentTime += documentEndTime - parseEndTime;
+			int shardNum = w.length == 1 ? 0 : GeoShardedIndex.getShardNum(row.longitude, w.length);
+			w[shardNum].addDocument(doc);
+			addTime += System.nanoTime() - documentEndTime;
+			numOfRows++;
+		}
+		stats.addRows(numOfRows, numOfTooFewColumns, numOfBadCoordinates, parseTime, documentTime, addTime);
+		return numOfRows;
 	}
 }
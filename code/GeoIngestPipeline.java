@@ -0,0 +1,232 @@
+package edu.cornell.georeference;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.index.IndexWriter;
+
+/**
+ * This class adds the rows of a data source file to an index using several threads. The calling
+ * thread scans the file for lines and hands batches of lines to a pool of workers, which parse the
+ * lines into their own reusable documents and add them to the (thread-safe) index writers. The queue
+ * between the reader and the workers is bounded, so the memory used does not depend on the size of
+ * the file. Every so many lines the reader waits for the workers to finish the lines read so far and
+ * commits the index with a checkpoint, so a failed build can continue from there.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+class GeoIngestPipeline {
+
+	// Marks the end of the input for a worker
+	private static final GeoDataScanner.LineBatch END_OF_INPUT = new GeoDataScanner.LineBatch();
+
+	// How long the reader waits for room in the queue before checking for failed workers
+	private static final long QUEUE_POLL_MILLIS = 100;
+
+	private GeoIndexWriter geoIndexWriter;
+	private GeoDataSource dataSource;
+	private GeoDataScanner scanner;
+	private IndexWriter[] indexWriters;
+	private int numOfThreads;
+	private int batchSize;
+	private GeoBuildCheckpoint checkpoint;
+	private long checkpointInterval;
+	private GeoBuildStats stats;
+
+	private BlockingQueue<GeoDataScanner.LineBatch> queue;
+	private AtomicLong numOfRowsIndexed;
+	private AtomicReference<Throwable> failure;
+
+	// The number of batches that are read but not yet added to the index
+	private final Object pendingLock = new Object();
+	private int numOfPendingBatches;
+
+	/**
+	 * Create a pipeline that adds the rows of the data source to the index writer
+	 *
+	 * @param geoIndexWriter  the writer that creates the documents
+	 * @param dataSource  the data source the rows come from
+	 * @param scanner  the scanner of the data source file the rows come from
+	 * @param indexWriters  the writers of the index (or the shards of the index) the documents are added to
+	 * @param numOfThreads  the number of worker threads
+	 * @param batchSize  the number of lines handed to a worker at once
+	 * @param checkpoint  the checkpoint the build started from, which is moved forward as the lines are added
+	 * @param checkpointInterval  the number of lines between commits (0 to only commit at the end)
+	 * @param stats  the statistics of the build
+	 */
+	GeoIngestPipeline(GeoIndexWriter geoIndexWriter, GeoDataSource dataSource, GeoDataScanner scanner, 
+			IndexWriter[] indexWriters, int numOfThreads, int batchSize, GeoBuildCheckpoint checkpoint, 
+			long checkpointInterval, GeoBuildStats stats) {
+		this.geoIndexWriter = geoIndexWriter;
+		this.dataSource = dataSource;
+		this.scanner = scanner;
+		this.indexWriters = indexWriters;
+		this.numOfThreads = numOfThreads;
+		this.batchSize = batchSize;
+		this.checkpoint = checkpoint;
+		this.checkpointInterval = checkpointInterval;
+		this.stats = stats;
+		this.queue = new ArrayBlockingQueue<GeoDataScanner.LineBatch>(numOfThreads * 2);
+		this.numOfRowsIndexed = new AtomicLong();
+		this.failure = new AtomicReference<Throwable>();
+	}
+
+	/**
+	 * Read all lines and add them to the index; returns once every worker has finished. The checkpoint is
+	 * then at the end of the file, but the last part of the file is not committed yet.
+	 *
+	 * @return the number of rows added to the index
+	 * @throws IOException
+	 */
+	long run() throws IOException {
+		long startNumOfLines = checkpoint.numOfLines;
+		long startNumOfRows = checkpoint.numOfRows;
+		long numOfLines = 0;
+		long numOfLinesSinceCheckpoint = 0;
+
+		Thread[] workers = new Thread[numOfThreads];
+		for (int i = 0; i < numOfThreads; i++) {
+			workers[i] = new Thread(new Worker(), "GeoIngestWorker-" + i);
+			workers[i].start();
+		}
+
+		try {
+			// Read the file in batches of lines
+			GeoDataScanner.LineBatch batch;
+			long readStartTime = System.nanoTime();
+			while (failure.get() == null && (batch = scanner.nextBatch(batchSize)) != null) {
+				stats.addRead(batch.size, System.nanoTime() - readStartTime);
+				synchronized (pendingLock) {
+					numOfPendingBatches++;
+				}
+				enqueue(batch);
+				numOfLines += batch.size;
+				numOfLinesSinceCheckpoint += batch.size;
+				
+				// Commit once all lines read so far are in the index
+				if (checkpointInterval > 0 && numOfLinesSinceCheckpoint >= checkpointInterval) {
+					awaitPendingBatches();
+					if (failure.get() == null) {
+						checkpoint.offset = scanner.getOffset();
+						checkpoint.numOfLines = startNumOfLines + numOfLines;
+						checkpoint.numOfRows = startNumOfRows + numOfRowsIndexed.get();
+						long commitStartTime = System.nanoTime();
+						checkpoint.commit(indexWriters);
+						stats.addCommit(System.nanoTime() - commitStartTime);
+					}
+					numOfLinesSinceCheckpoint = 0;
+				}
+				stats.progress();
+				readStartTime = System.nanoTime();
+			}
+		} finally {
+			// Stop the workers; if something failed, the remaining batches are dropped
+			if (failure.get() != null) {
+				queue.clear();
+			}
+			for (int i = 0; i < numOfThreads; i++) {
+				enqueue(END_OF_INPUT);
+			}
+			joinWorkers(workers);
+		}
+
+		rethrowFailure();
+		checkpoint.offset = scanner.getOffset();
+		checkpoint.numOfLines = startNumOfLines + numOfLines;
+		checkpoint.numOfRows = startNumOfRows + numOfRowsIndexed.get();
+		return numOfRowsIndexed.get();
+	}
+
+	// All methods below are private helper methods
+
+	// Put a batch on the queue; gives up if a worker has failed
+	private void enqueue(GeoDataScanner.LineBatch batch) throws IOException {
+		try {
+			while (!queue.offer(batch, QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (failure.get() != null) {
+					if (batch != END_OF_INPUT) {
+						return;
+					}
+					// Make room for the end markers in case no worker is left to take batches
+					queue.clear();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while reading the data source");
+		}
+	}
+
+	// Wait until the workers have added all batches read so far or one of them has failed
+	private void awaitPendingBatches() throws IOException {
+		try {
+			synchronized (pendingLock) {
+				while (numOfPendingBatches > 0 && failure.get() == null) {
+					pendingLock.wait(QUEUE_POLL_MILLIS);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for the index workers");
+		}
+	}
+
+	// Wait for all workers to finish
+	private void joinWorkers(Thread[] workers) throws IOException {
+		try {
+			for (int i = 0; i < workers.length; i++) {
+				workers[i].join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for the index workers");
+		}
+	}
+
+	// Throw the first failure of the workers in the calling thread
+	private void rethrowFailure() throws IOException {
+		Throwable t = failure.get();
+		if (t == null) {
+			return;
+		}
+		if (t instanceof IOException) {
+			throw (IOException) t;
+		}
+		if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		}
+		if (t instanceof Error) {
+			throw (Error) t;
+		}
+		IOException e = new IOException("failed to index the data source");
+		e.initCause(t);
+		throw e;
+	}
+
+	// Parses batches of lines and adds them to the index
+	private class Worker implements Runnable {
+
+		// Override
+		public void run() {
+			try {
+				GeoRow row = new GeoRow();
+				GeoDocumentTemplate template = geoIndexWriter.createDocumentTemplate(dataSource, checkpoint.layout);
+				GeoDataScanner.LineBatch batch;
+				while ((batch = queue.take()) != END_OF_INPUT) {
+					numOfRowsIndexed.addAndGet(geoIndexWriter.addDocs(scanner, batch, row, template, indexWriters, stats));
+					synchronized (pendingLock) {
+						numOfPendingBatches--;
+						pendingLock.notifyAll();
+					}
+				}
+			} catch (Throwable t) {
+				failure.compareAndSet(null, t);
+			}
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package edu.cornell.georeference;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Version;
+
+/**
+ * This class builds the query that finds places by name. The name is analyzed the same way as the names in
+ * the index and every term is looked up in the name and alternate name fields, so that names with spaces,
+ * punctuation or characters of the query syntax are found without a query parser.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+class GeoNameQueryBuilder {
+
+	// The name fields that are searched
+	private static final String[] NAME_FIELDS = {
+		GeoIndexWriter.NAME_FIELD, GeoIndexWriter.ALT_NAME1_FIELD, GeoIndexWriter.ALT_NAME2_FIELD
+	};
+
+	// The terms of the query are created from these, which share the interned field names
+	private Term[] termTemplates;
+
+	// The analyzer the names are indexed with
+	private Analyzer analyzer;
+
+	/**
+	 * Create a builder that analyzes names the same way as the GeoIndexWriter
+	 */
+	GeoNameQueryBuilder() {
+		this.analyzer = new StandardAnalyzer(Version.LUCENE_34);
+		this.termTemplates = new Term[NAME_FIELDS.length];
+		for (int i = 0; i < NAME_FIELDS.length; i++) {
+			termTemplates[i] = new Term(NAME_FIELDS[i]);
+		}
+	}
+
+	/**
+	 * Create the query that matches places that have any of the terms of the name in any of their names
+	 *
+	 * @param name  the name of the place
+	 * @return the query, or null if there is no name
+	 */
+	Query createQuery(String name) {
+		if (name == null || name.equals("")) {
+			return null;
+		}
+		List<String> terms = analyze(name);
+
+		// A name without terms (e.g. only stop words) is looked up as it is, so that it finds nothing instead
+		// of everything
+		if (terms.isEmpty()) {
+			terms.add(name.toLowerCase());
+		}
+
+		BooleanQuery nameQueries = new BooleanQuery();
+		for (int i = 0; i < termTemplates.length; i++) {
+			nameQueries.add(createFieldQuery(termTemplates[i], terms), BooleanClause.Occur.SHOULD);
+		}
+		return nameQueries;
+	}
+
+	// All methods below are private helper methods
+
+	// Create the query that matches any of the terms in one field
+	private static Query createFieldQuery(Term termTemplate, List<String> terms) {
+		if (terms.size() == 1) {
+			return new TermQuery(termTemplate.createTerm(terms.get(0)));
+		}
+		BooleanQuery fieldQuery = new BooleanQuery();
+		for (String term : terms) {
+			fieldQuery.add(new TermQuery(termTemplate.createTerm(term)), BooleanClause.Occur.SHOULD);
+		}
+		return fieldQuery;
+	}
+
+	// Split the name into the terms it is indexed as
+	private List<String> analyze(String name) {
+		List<String> terms = new ArrayList<String>(4);
+		try {
+			TokenStream tokenStream = analyzer.reusableTokenStream(GeoIndexWriter.NAME_FIELD, new StringReader(name));
+			CharTermAttribute termAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+			tokenStream.reset();
+			while (tokenStream.incrementToken()) {
+				terms.add(termAttribute.toString());
+			}
+			tokenStream.end();
+			tokenStream.close();
+		} catch (IOException e) {
+			// Cannot happen when reading from a string
+			throw new IllegalStateException(e);
+		}
+		return terms;
+	}
+}
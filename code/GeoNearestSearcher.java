@@ -0,0 +1,156 @@
+package edu.cornell.georeference;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.spatial.DistanceUtils;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.ReaderUtil;
+
+/**
+ * This class finds the places nearest to a point with the KD-trees of the segments of the indices (see
+ * GeoPointIndex), so the cost of a search grows with the number of places it returns rather than with the
+ * size of the indices. The score of a hit is 1 / (1 + its distance in miles), so the hits are in order of
+ * distance, and pages continue after the last hit of the previous page the same way as other searches.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+class GeoNearestSearcher {
+
+	private GeoNearestSearcher() {
+	}
+
+	/**
+	 * Find the places nearest to a point
+	 *
+	 * @param searcher  the searcher of the indices
+	 * @param latitude  the latitude of the point
+	 * @param longitude  the longitude of the point
+	 * @param numHits  the max number of places
+	 * @param excludedQuery  the places that match this query are left out (can be null)
+	 * @param after  the last hit of the previous page (found with the same searcher), or null for the first page
+	 * @param indexNanos  if not null, the time the search of each index of the searcher took (in nanoseconds)
+	 * is put here in the order of the indices
+	 * @return the nearest places; the total hits is more than the number of hits if there are more places
+	 * @throws IOException
+	 */
+	static TopDocs search(IndexSearcher searcher, double latitude, double longitude, int numHits,
+			Query excludedQuery, ScoreDoc after, long[] indexNanos) throws IOException {
+		IndexReader reader = searcher.getIndexReader();
+		IndexReader[] indexReaders = reader instanceof MultiReader ? reader.getSequentialSubReaders() : null;
+		if (indexReaders == null) {
+			indexReaders = new IndexReader[] { reader };
+		}
+
+		// One more hit than needed is kept to tell whether there are more
+		double[] point = new double[3];
+		GeoPointIndex.toPoint(latitude, longitude, point);
+		GeoPageCollector.HitQueue queue = new GeoPageCollector.HitQueue(Math.max(numHits, 1) + 1);
+		int docBase = 0;
+		for (int i = 0; i < indexReaders.length; i++) {
+			long start = System.nanoTime();
+			List<IndexReader> segments = new ArrayList<IndexReader>();
+			ReaderUtil.gatherSubReaders(segments, indexReaders[i]);
+			for (IndexReader segment : segments) {
+				HitVisitor visitor = new HitVisitor(queue, segment, docBase, getDocs(segment, excludedQuery), after);
+				GeoPointIndex.get(segment).search(point, visitor);
+				docBase += segment.maxDoc();
+			}
+			if (indexNanos != null) {
+				indexNanos[i] = System.nanoTime() - start;
+			}
+		}
+		int totalHits = queue.size();
+		while (queue.size() > numHits) {
+			queue.pop();
+		}
+		ScoreDoc[] hits = new ScoreDoc[queue.size()];
+		for (int i = hits.length - 1; i >= 0; i--) {
+			hits[i] = queue.pop();
+		}
+		return new TopDocs(totalHits, hits, hits.length > 0 ? hits[0].score : Float.NaN);
+	}
+
+	/**
+	 * Get the score of a place from its distance
+	 *
+	 * @param squaredDistance  the squared straight-line distance between the points of the place and the
+	 * searched point on the unit sphere
+	 * @return the score
+	 */
+	static float getScore(double squaredDistance) {
+		double miles = 2 * DistanceUtils.EARTH_MEAN_RADIUS_MI * Math.asin(Math.min(Math.sqrt(squaredDistance) / 2, 1));
+		return (float) (1 / (1 + miles));
+	}
+
+	// All methods below are private helper methods
+
+	// Get the docs of a segment that match a query; null if there is no query
+	private static OpenBitSet getDocs(IndexReader segment, Query query) throws IOException {
+		if (query == null) {
+			return null;
+		}
+		OpenBitSet docs = new OpenBitSet(segment.maxDoc());
+		DocIdSet docIdSet = new QueryWrapperFilter(query).getDocIdSet(segment);
+		DocIdSetIterator iterator = docIdSet != null ? docIdSet.iterator() : null;
+		if (iterator != null) {
+			for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+				docs.fastSet(doc);
+			}
+		}
+		return docs;
+	}
+
+	// Keeps the nearest places of a segment in the queue of the search, in the same order as the hits of
+	// other searches: by score and then by doc id
+	private static class HitVisitor implements GeoPointIndex.Visitor {
+		private GeoPageCollector.HitQueue queue;
+		private IndexReader segment;
+		private int docBase;
+		private OpenBitSet excludedDocs;
+		private ScoreDoc after;
+
+		HitVisitor(GeoPageCollector.HitQueue queue, IndexReader segment, int docBase, OpenBitSet excludedDocs,
+				ScoreDoc after) {
+			this.queue = queue;
+			this.segment = segment;
+			this.docBase = docBase;
+			this.excludedDocs = excludedDocs;
+			this.after = after;
+		}
+
+		// Override
+		public boolean accepts(double squaredDistance) {
+			return !queue.isFull() || getScore(squaredDistance) >= queue.top().score;
+		}
+
+		// Override
+		public void visit(int doc, double squaredDistance) throws IOException {
+			float score = getScore(squaredDistance);
+			int globalDoc = docBase + doc;
+			if (after != null && (score > after.score || (score == after.score && globalDoc <= after.doc))) {
+				return;
+			}
+			ScoreDoc top = queue.top();
+			if (queue.isFull() && (score < top.score || (score == top.score && globalDoc > top.doc))) {
+				return;
+			}
+			if ((excludedDocs != null && excludedDocs.fastGet(doc)) 
+					|| (segment.hasDeletions() && segment.isDeleted(doc))) {
+				return;
+			}
+			queue.insertWithOverflow(new ScoreDoc(globalDoc, score));
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package edu.cornell.georeference;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.PriorityQueue;
+
+/**
+ * This collector keeps the top hits of a page of search results. The page starts after the last hit of the
+ * previous page, in order of score and then doc id, so only the hits of the page are kept no matter how
+ * deep the page is.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+class GeoPageCollector extends Collector {
+
+	// Keeps the best hits with the worst on top
+	static class HitQueue extends PriorityQueue<ScoreDoc> {
+		private int maxSize;
+
+		HitQueue(int size) {
+			initialize(size);
+			maxSize = size;
+		}
+
+		boolean isFull() {
+			return size() == maxSize;
+		}
+
+		// Override
+		protected boolean lessThan(ScoreDoc a, ScoreDoc b) {
+			return a.score != b.score ? a.score < b.score : a.doc > b.doc;
+		}
+	}
+
+	private HitQueue queue;
+	private int numHits;
+	private ScoreDoc after;
+	private int baseDoc;
+	private int docBase;
+	private Scorer scorer;
+	private int totalHits;
+
+	/**
+	 * Create a collector of a page
+	 *
+	 * @param numHits  the number of hits of the page
+	 * @param after  the last hit of the previous page, or null for the first page
+	 * @param baseDoc  added to the doc ids of the searched index to get the doc ids the hits are compared by
+	 * (the doc base of the index in the searcher it is part of)
+	 */
+	GeoPageCollector(int numHits, ScoreDoc after, int baseDoc) {
+		this.numHits = Math.max(numHits, 1);
+		this.queue = new HitQueue(this.numHits);
+		this.after = after;
+		this.baseDoc = baseDoc;
+	}
+
+	/**
+	 * Get the hits of the page in order of score and then doc id; the doc ids are those of the searched index
+	 *
+	 * @return the hits, and the number of hits after the previous page
+	 */
+	TopDocs topDocs() {
+		ScoreDoc[] hits = new ScoreDoc[queue.size()];
+		for (int i = hits.length - 1; i >= 0; i--) {
+			hits[i] = queue.pop();
+			hits[i].doc -= baseDoc;
+		}
+		return new TopDocs(totalHits, hits, hits.length > 0 ? hits[0].score : Float.NaN);
+	}
+
+	// Override
+	public void setScorer(Scorer scorer) throws IOException {
+		this.scorer = scorer;
+	}
+
+	// Override
+	public void collect(int doc) throws IOException {
+		float score = scorer.score();
+		int globalDoc = baseDoc + docBase + doc;
+		if (after != null && (score > after.score || (score == after.score && globalDoc <= after.doc))) {
+			return;
+		}
+		totalHits++;
+		ScoreDoc top = queue.top();
+		if (queue.size() == numHits
+				&& (score < top.score || (score == top.score && globalDoc > top.doc))) {
+			return;
+		}
+		queue.insertWithOverflow(new ScoreDoc(globalDoc, score));
+	}
+
+	// Override
+	public void setNextReader(IndexReader reader, int docBase) throws IOException {
+		this.docBase = docBase;
+	}
+
+	// Override
+	public boolean acceptsDocsOutOfOrder() {
+		return true;
+	}
+}
@@ -0,0 +1,216 @@
+package edu.cornell.georeference;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.Weight;
+
+/**
+ * This class runs a search on a searcher that combines several indices by searching each index on a
+ * thread pool and merging the top results by score. The query is weighted against the combined
+ * searcher, so the scores are the same as when the indices are searched together.
+ *
+ * The distance filters of the Lucene Spatial keep state while they are searching, so a query cannot be
+ * shared between threads; every index is searched with its own copy of the query instead. The copy is
+ * created for the index, so it can use the fields that index was built with.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+public class GeoParallelSearcher {
+
+	/**
+	 * Creates a new copy of the query for each index that is searched
+	 */
+	public interface QuerySource {
+		/**
+		 * Create the query for an index
+		 * 
+		 * @param reader  the reader of the index (one directory) the query is run on
+		 * @return the query
+		 * @throws IOException
+		 * @throws ParseException
+		 */
+		Query createQuery(IndexReader reader) throws IOException, ParseException;
+	}
+
+	// Orders hits by score and then by doc id, the same as the Lucene collectors
+	private static final Comparator<ScoreDoc> SCORE_ORDER = new Comparator<ScoreDoc>() {
+		// Override
+		public int compare(ScoreDoc a, ScoreDoc b) {
+			if (a.score != b.score) {
+				return a.score > b.score ? -1 : 1;
+			}
+			return a.doc - b.doc;
+		}
+	};
+
+	private ExecutorService executor;
+
+	/**
+	 * Create a parallel searcher that searches on the threads of the executor
+	 *
+	 * @param executor  the thread pool the indices are searched on
+	 */
+	public GeoParallelSearcher(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Find the top hits of a query
+	 *
+	 * @param searcher  the searcher; if it combines several indices, they are searched in parallel
+	 * @param querySource  creates the query
+	 * @param numHits  the max number of hits
+	 * @return the top hits
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	public TopDocs search(IndexSearcher searcher, QuerySource querySource, int numHits)
+			throws IOException, ParseException {
+		return search(searcher, querySource, numHits, null, null);
+	}
+
+	/**
+	 * Find the top hits of a query that come after a hit of a previous search, in order of score and then
+	 * doc id. Only numHits hits are kept while searching, so a page deep into the hits costs the same as the
+	 * first page.
+	 *
+	 * @param searcher  the searcher; if it combines several indices, they are searched in parallel
+	 * @param querySource  creates the query
+	 * @param numHits  the max number of hits
+	 * @param after  the last hit of the previous page (found with the same searcher), or null for the first page
+	 * @param indexNanos  if not null, the time the search of each index of the searcher took (in nanoseconds) 
+	 * is put here in the order of the indices
+	 * @return the top hits after the hit; the total hits is the number of hits after it
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	public TopDocs search(final IndexSearcher searcher, final QuerySource querySource, final int numHits, 
+			final ScoreDoc after, final long[] indexNanos) throws IOException, ParseException {
+		IndexReader reader = searcher.getIndexReader();
+		IndexReader[] subReaders = reader.getSequentialSubReaders();
+		if (!(reader instanceof MultiReader) || subReaders == null || subReaders.length < 2) {
+			long start = System.nanoTime();
+			IndexReader indexReader = reader instanceof MultiReader && subReaders != null && subReaders.length == 1 
+					? subReaders[0] : reader;
+			Query query = querySource.createQuery(indexReader);
+			TopDocs topDocs;
+			if (after == null) {
+				topDocs = searcher.search(query, null, numHits);
+			}
+			else {
+				GeoPageCollector collector = new GeoPageCollector(numHits, after, 0);
+				searcher.search(query, collector);
+				topDocs = collector.topDocs();
+			}
+			if (indexNanos != null) {
+				indexNanos[0] = System.nanoTime() - start;
+			}
+			return topDocs;
+		}
+
+		// Search each index on its own thread
+		List<Future<TopDocs>> futures = new ArrayList<Future<TopDocs>>(subReaders.length);
+		int docBase = 0;
+		for (int i = 0; i < subReaders.length; i++) {
+			final IndexReader subReader = subReaders[i];
+			final int subDocBase = docBase;
+			final int indexNum = i;
+			futures.add(executor.submit(new Callable<TopDocs>() {
+				// Override
+				public TopDocs call() throws Exception {
+					long start = System.nanoTime();
+					TopDocs topDocs = searchIndex(searcher, subReader, subDocBase, querySource.createQuery(subReader), 
+							numHits, after);
+					if (indexNanos != null) {
+						indexNanos[indexNum] = System.nanoTime() - start;
+					}
+					return topDocs;
+				}
+			}));
+			docBase += subReader.maxDoc();
+		}
+
+		// Merge the top hits of all indices
+		List<ScoreDoc> hits = new ArrayList<ScoreDoc>();
+		int totalHits = 0;
+		for (Future<TopDocs> future : futures) {
+			TopDocs topDocs = getResult(future);
+			totalHits += topDocs.totalHits;
+			hits.addAll(Arrays.asList(topDocs.scoreDocs));
+		}
+		ScoreDoc[] scoreDocs = hits.toArray(new ScoreDoc[hits.size()]);
+		Arrays.sort(scoreDocs, SCORE_ORDER);
+		if (scoreDocs.length > numHits) {
+			scoreDocs = Arrays.copyOf(scoreDocs, numHits);
+		}
+		float maxScore = scoreDocs.length > 0 ? scoreDocs[0].score : Float.NaN;
+		return new TopDocs(totalHits, scoreDocs, maxScore);
+	}
+
+	// All methods below are private helper methods
+
+	// Search one of the indices of the searcher; the doc ids of the hits are the doc ids in the searcher
+	private static TopDocs searchIndex(IndexSearcher searcher, IndexReader subReader, int docBase, Query query,
+			int numHits, ScoreDoc after) throws IOException {
+		Weight weight = searcher.createNormalizedWeight(query);
+		TopDocs topDocs;
+		if (after == null) {
+			TopScoreDocCollector collector = TopScoreDocCollector.create(numHits, !weight.scoresDocsOutOfOrder());
+			new IndexSearcher(subReader).search(weight, null, collector);
+			topDocs = collector.topDocs();
+		}
+		else {
+			GeoPageCollector collector = new GeoPageCollector(numHits, after, docBase);
+			new IndexSearcher(subReader).search(weight, null, collector);
+			topDocs = collector.topDocs();
+		}
+		for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+			scoreDoc.doc += docBase;
+		}
+		return topDocs;
+	}
+
+	// Wait for a search on another thread and pass on its exception
+	static <T> T getResult(Future<T> future) throws IOException, ParseException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while searching");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof ParseException) {
+				throw (ParseException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			IOException ioe = new IOException("failed to search");
+			ioe.initCause(cause);
+			throw ioe;
+		}
+	}
+}
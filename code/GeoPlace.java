@@ -0,0 +1,53 @@
+package edu.cornell.georeference;
+
+/**
+ * A place found by a search, as decoded from a response by the GeoResultReader
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+public class GeoPlace {
+
+	private String placeName;
+	private double latitude;
+	private double longitude;
+	private float score;
+
+	/**
+	 * Create a place
+	 *
+	 * @param placeName  the name of the place
+	 * @param latitude  the latitude of the place
+	 * @param longitude  the longitude of the place
+	 * @param score  the score of the place in the search
+	 */
+	public GeoPlace(String placeName, double latitude, double longitude, float score) {
+		this.placeName = placeName;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.score = score;
+	}
+
+	// Getters
+
+	public String getPlaceName() {
+		return placeName;
+	}
+
+	public double getLatitude() {
+		return latitude;
+	}
+
+	public double getLongitude() {
+		return longitude;
+	}
+
+	public float getScore() {
+		return score;
+	}
+
+	// Override
+	public String toString() {
+		return placeName + " (" + latitude + ", " + longitude + "): " + score;
+	}
+}
@@ -0,0 +1,47 @@
+package edu.cornell.georeference;
+
+import java.util.ArrayList;
+
+/**
+ * The places of a page of search results, as decoded from a response by the GeoResultReader, and the 
+ * cursor of the next page
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+public class GeoPlaceList extends ArrayList<GeoPlace> {
+
+	private static final long serialVersionUID = 1L;
+
+	private String cursor;
+
+	/**
+	 * Create an empty list
+	 */
+	public GeoPlaceList() {
+	}
+
+	/**
+	 * Create an empty list
+	 *
+	 * @param initialCapacity  the number of places the list has room for
+	 */
+	public GeoPlaceList(int initialCapacity) {
+		super(initialCapacity);
+	}
+
+	// Getters and setters
+
+	/**
+	 * Get the cursor that continues the search after the places of this page
+	 *
+	 * @return the cursor, or null if this is the last page
+	 */
+	public String getCursor() {
+		return cursor;
+	}
+
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
+}
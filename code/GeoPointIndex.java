@@ -0,0 +1,252 @@
+package edu.cornell.georeference;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+
+/**
+ * This class keeps the places of a segment of an index in a KD-tree, so the places nearest to a point are
+ * found by visiting a few of them instead of all of them. The places are kept as points on the unit sphere
+ * (float x, y and z), where the straight-line distance between two points grows with the great-circle
+ * distance between the places; this makes the tree exact across the date line and near the poles.
+ *
+ * The tree is implicit: the points are arranged so that the middle point of every range splits the range
+ * on one of the axes. A tree is built once for every segment and shared by all the readers of the segment,
+ * the same way the FieldCache shares its arrays; deleted documents are skipped while searching.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+class GeoPointIndex {
+
+	// Ranges of at most this many points are scanned instead of split further
+	private static final int LEAF_SIZE = 8;
+
+	// The trees of the segments, keyed by the core cache key of the segment readers
+	private static final Map<Object, GeoPointIndex> trees = new WeakHashMap<Object, GeoPointIndex>();
+
+	private int[] docs;
+	private float[] xs;
+	private float[] ys;
+	private float[] zs;
+
+	// The axis that the middle point of a range splits it on (0 for x, 1 for y and 2 for z)
+	private byte[] splitAxes;
+
+	/**
+	 * Get the tree of a segment, building it if it has not been built yet
+	 *
+	 * @param segment  the reader of the segment
+	 * @return the tree
+	 * @throws IOException if the latitudes and longitudes can't be loaded
+	 */
+	static GeoPointIndex get(IndexReader segment) throws IOException {
+		Object key = segment.getCoreCacheKey();
+		synchronized (trees) {
+			GeoPointIndex tree = trees.get(key);
+			if (tree != null) {
+				return tree;
+			}
+		}
+
+		// The tree is built without the lock, so that the searches of other segments are not held up while
+		// a new segment is warmed; if two threads build the tree of a segment, the first one is kept
+		GeoPointIndex tree = new GeoPointIndex(FieldCache.DEFAULT.getDoubles(segment, GeoIndexWriter.LATITUDE_FIELD),
+				FieldCache.DEFAULT.getDoubles(segment, GeoIndexWriter.LONGITUDE_FIELD));
+		synchronized (trees) {
+			GeoPointIndex builtTree = trees.get(key);
+			if (builtTree != null) {
+				return builtTree;
+			}
+			trees.put(key, tree);
+			return tree;
+		}
+	}
+
+	// Build the tree of the places with the latitudes and longitudes, indexed by doc id
+	private GeoPointIndex(double[] latitudes, double[] longitudes) {
+		int numOfPoints = latitudes.length;
+		docs = new int[numOfPoints];
+		xs = new float[numOfPoints];
+		ys = new float[numOfPoints];
+		zs = new float[numOfPoints];
+		splitAxes = new byte[numOfPoints];
+		double[] point = new double[3];
+		for (int doc = 0; doc < numOfPoints; doc++) {
+			toPoint(latitudes[doc], longitudes[doc], point);
+			docs[doc] = doc;
+			xs[doc] = (float) point[0];
+			ys[doc] = (float) point[1];
+			zs[doc] = (float) point[2];
+		}
+		build(0, numOfPoints);
+	}
+
+	/**
+	 * Put the point on the unit sphere of a latitude and longitude into an array
+	 *
+	 * @param latitude  the latitude in degrees
+	 * @param longitude  the longitude in degrees
+	 * @param point  the array the x, y and z of the point are put in
+	 */
+	static void toPoint(double latitude, double longitude, double[] point) {
+		double lat = Math.toRadians(latitude);
+		double lng = Math.toRadians(longitude);
+		point[0] = Math.cos(lat) * Math.cos(lng);
+		point[1] = Math.cos(lat) * Math.sin(lng);
+		point[2] = Math.sin(lat);
+	}
+
+	/**
+	 * Visit the points of the tree nearest to a point. The parts of the tree that can't have points nearer
+	 * than the points the visitor has kept so far are skipped.
+	 *
+	 * @param point  the point on the unit sphere (see toPoint())
+	 * @param visitor  keeps the nearest points
+	 * @throws IOException
+	 */
+	void search(double[] point, Visitor visitor) throws IOException {
+		search(point, visitor, 0, docs.length);
+	}
+
+	/**
+	 * Keeps the nearest points of a search
+	 */
+	interface Visitor {
+		/**
+		 * Visit a point
+		 *
+		 * @param doc  the doc id of the place in the segment
+		 * @param squaredDistance  the squared straight-line distance of the point from the searched point
+		 * @throws IOException
+		 */
+		void visit(int doc, double squaredDistance) throws IOException;
+
+		/**
+		 * Check whether points at a distance could still be kept; the points of a part of the tree are only
+		 * visited if the visitor accepts the distance of the part
+		 *
+		 * @param squaredDistance  the squared straight-line distance from the searched point
+		 * @return false if all points at least this far can be skipped
+		 */
+		boolean accepts(double squaredDistance);
+	}
+
+	// All methods below are private helper methods
+
+	// Search the points in the range
+	private void search(double[] point, Visitor visitor, int from, int to) throws IOException {
+		if (to - from <= LEAF_SIZE) {
+			for (int i = from; i < to; i++) {
+				visit(point, visitor, i);
+			}
+			return;
+		}
+
+		// Search the half of the range the point is in first, then the other half if it can have nearer points
+		int mid = (from + to) >>> 1;
+		double diff = point[splitAxes[mid]] - getCoordinate(splitAxes[mid], mid);
+		if (diff < 0) {
+			search(point, visitor, from, mid);
+		}
+		else {
+			search(point, visitor, mid + 1, to);
+		}
+		if (visitor.accepts(diff * diff)) {
+			visit(point, visitor, mid);
+			if (diff < 0) {
+				search(point, visitor, mid + 1, to);
+			}
+			else {
+				search(point, visitor, from, mid);
+			}
+		}
+	}
+
+	// Pass a point to the visitor
+	private void visit(double[] point, Visitor visitor, int i) throws IOException {
+		double dx = point[0] - xs[i];
+		double dy = point[1] - ys[i];
+		double dz = point[2] - zs[i];
+		visitor.visit(docs[i], dx * dx + dy * dy + dz * dz);
+	}
+
+	// Arrange the points of the range into a tree, splitting it on the axis it is widest on
+	private void build(int from, int to) {
+		if (to - from <= LEAF_SIZE) {
+			return;
+		}
+		int axis = 0;
+		float widest = -1;
+		for (int a = 0; a < 3; a++) {
+			float min = Float.MAX_VALUE;
+			float max = -Float.MAX_VALUE;
+			for (int i = from; i < to; i++) {
+				float c = getCoordinate(a, i);
+				min = Math.min(min, c);
+				max = Math.max(max, c);
+			}
+			if (max - min > widest) {
+				widest = max - min;
+				axis = a;
+			}
+		}
+		int mid = (from + to) >>> 1;
+		select(from, to - 1, mid, axis);
+		splitAxes[mid] = (byte) axis;
+		build(from, mid);
+		build(mid + 1, to);
+	}
+
+	// Move the point that is the nth along the axis in the range to n, with the points before it not after
+	// it along the axis and the points after it not before it
+	private void select(int from, int to, int n, int axis) {
+		while (to > from) {
+			float pivot = getCoordinate(axis, (from + to) >>> 1);
+			int i = from;
+			int j = to;
+			while (i <= j) {
+				while (getCoordinate(axis, i) < pivot) {
+					i++;
+				}
+				while (getCoordinate(axis, j) > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+			if (n <= j) {
+				to = j;
+			}
+			else if (n >= i) {
+				from = i;
+			}
+			else {
+				return;
+			}
+		}
+	}
+
+	private float getCoordinate(int axis, int i) {
+		return axis == 0 ? xs[i] : axis == 1 ? ys[i] : zs[i];
+	}
+
+	private void swap(int i, int j) {
+		int doc = docs[i];
+		docs[i] = docs[j];
+		docs[j] = doc;
+		float c = xs[i];
+		xs[i] = xs[j];
+		xs[j] = c;
+		c = ys[i];
+		ys[i] = ys[j];
+		ys[j] = c;
+		c = zs[i];
+		zs[i] = zs[j];
+		zs[j] = c;
+	}
+}
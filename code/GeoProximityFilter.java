@@ -0,0 +1,101 @@
+package edu.cornell.georeference;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.spatial.DistanceUtils;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * This filter finds the places that match a query and are in range of any of a number of points. The query
+ * is run once, and every place it matches is checked against all the points in a single pass with its
+ * latitude and longitude from the FieldCache, instead of the query being run once for every point.
+ * Distances are computed the same way as the Lucene Spatial does, so a place is found if it is less than
+ * the range of a point away from the point.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+@SuppressWarnings("serial")
+class GeoProximityFilter extends Filter {
+
+	// Radius of the earth that the Lucene Spatial computes distances with, in miles
+	private static final double EARTH_RADIUS_MI = 3963.205;
+
+	// A place is at least this many miles away from a point for every degree of latitude between them; it is
+	// a little less than the exact value to allow for rounding
+	private static final double MIN_MILES_PER_DEGREE = Math.toRadians(EARTH_RADIUS_MI) * 0.9999;
+
+	private Query query;
+
+	// The latitude, longitude and range in miles of every point
+	private double[][] points;
+
+	/**
+	 * Create a filter of the places that match a query and are in range of any of the points
+	 *
+	 * @param query  the query
+	 * @param points  the latitude, longitude and range in miles of every point
+	 */
+	GeoProximityFilter(Query query, double[][] points) {
+		this.query = query;
+		this.points = points;
+	}
+
+	// Override
+	public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+		DocIdSet candidates = new QueryWrapperFilter(query).getDocIdSet(reader);
+		DocIdSetIterator iterator = candidates != null ? candidates.iterator() : null;
+		if (iterator == null) {
+			return DocIdSet.EMPTY_DOCIDSET;
+		}
+		double[] latitudes = FieldCache.DEFAULT.getDoubles(reader, GeoIndexWriter.LATITUDE_FIELD);
+		double[] longitudes = FieldCache.DEFAULT.getDoubles(reader, GeoIndexWriter.LONGITUDE_FIELD);
+		OpenBitSet docs = new OpenBitSet(reader.maxDoc());
+		for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+			if (isInRange(points, latitudes[doc], longitudes[doc])) {
+				docs.fastSet(doc);
+			}
+		}
+		return docs;
+	}
+
+	// Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("GeoProximityFilter(");
+		for (double[] point : points) {
+			builder.append(point[2]).append(" miles of ").append(point[0]).append(',').append(point[1]).append(", ");
+		}
+		return builder.append(query).append(')').toString();
+	}
+
+	/**
+	 * Check whether a place is in range of a point
+	 *
+	 * @param point  the latitude, longitude and range in miles of the point
+	 * @param latitude  the latitude of the place
+	 * @param longitude  the longitude of the place
+	 * @return true if the place is less than the range of the point away from the point
+	 */
+	static boolean isInRange(double[] point, double latitude, double longitude) {
+		// Points that are too far away in latitude alone are skipped without computing the distance
+		return Math.abs(latitude - point[0]) * MIN_MILES_PER_DEGREE < point[2]
+				&& DistanceUtils.getDistanceMi(point[0], point[1], latitude, longitude) < point[2];
+	}
+
+	// Check whether a place is in range of any of the points
+	private static boolean isInRange(double[][] points, double latitude, double longitude) {
+		for (double[] point : points) {
+			if (isInRange(point, latitude, longitude)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
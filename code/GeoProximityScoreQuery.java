@@ -0,0 +1,78 @@
+package edu.cornell.georeference;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.function.CustomScoreProvider;
+import org.apache.lucene.search.function.CustomScoreQuery;
+
+/**
+ * This query finds the places that match a query and are in range of any of a number of points (see
+ * GeoProximityFilter), and scores them the way a boolean query of one distance query for every point would:
+ * every point a place is in range of adds to its score, less the farther the place is from the point if the
+ * distance affects the score, and the sum is scaled by the share of the points the place is in range of.
+ * So places in range of more of the points are ranked higher.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+@SuppressWarnings("serial")
+class GeoProximityScoreQuery extends CustomScoreQuery {
+
+	// The latitude, longitude and range in miles of every point
+	private double[][] points;
+	private int scoreOption;
+
+	/**
+	 * Create a query of the places that match a query and are in range of any of the points
+	 *
+	 * @param query  the query
+	 * @param points  the latitude, longitude and range in miles of every point
+	 * @param scoreOption  controls how the distances affect the score (see DistanceScoreQuery), or 0 if
+	 * they don't
+	 */
+	GeoProximityScoreQuery(Query query, double[][] points, int scoreOption) {
+		super(new ConstantScoreQuery(new GeoProximityFilter(query, points)));
+		this.points = points;
+		this.scoreOption = scoreOption;
+	}
+
+	// Override
+	protected CustomScoreProvider getCustomScoreProvider(IndexReader reader) throws IOException {
+		final double[] latitudes = FieldCache.DEFAULT.getDoubles(reader, GeoIndexWriter.LATITUDE_FIELD);
+		final double[] longitudes = FieldCache.DEFAULT.getDoubles(reader, GeoIndexWriter.LONGITUDE_FIELD);
+		return new CustomScoreProvider(reader) {
+			// Override
+			public float customScore(int doc, float subQueryScore, float valSrcScore) {
+				int numOfPointsInRange = 0;
+				float score = 0;
+				for (double[] point : points) {
+					if (GeoProximityFilter.isInRange(point, latitudes[doc], longitudes[doc])) {
+						numOfPointsInRange++;
+						score += DistanceScoreProvider.scoreDistance(subQueryScore, 
+								DistanceScoreProvider.getDistance(point, latitudes[doc], longitudes[doc]), scoreOption);
+					}
+				}
+				return score * numOfPointsInRange / points.length;
+			}
+		};
+	}
+
+	// Override
+	public boolean equals(Object o) {
+		if (!super.equals(o)) {
+			return false;
+		}
+		GeoProximityScoreQuery other = (GeoProximityScoreQuery) o;
+		return Arrays.deepEquals(points, other.points) && scoreOption == other.scoreOption;
+	}
+
+	// Override
+	public int hashCode() {
+		return (super.hashCode() * 31 + Arrays.deepHashCode(points)) * 31 + scoreOption;
+	}
+}
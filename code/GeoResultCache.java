@@ -0,0 +1,275 @@
+package edu.cornell.georeference;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class caches the encoded results of searches. The least recently used results are evicted when the
+ * cache holds too many results or too many bytes, and results expire after a time to live. All results are
+ * dropped when the indices are reopened, so that searches see the changes.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+public class GeoResultCache {
+
+	// Default limits of the cache
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+	public static final long DEFAULT_MAX_WEIGHT = 32 * 1024 * 1024;
+	public static final long DEFAULT_TIME_TO_LIVE_MILLIS = 10 * 60 * 1000;
+
+	// A cached result and when it was added
+	private static class Entry {
+		private byte[] result;
+		private long createdTime;
+
+		Entry(byte[] result, long createdTime) {
+			this.result = result;
+			this.createdTime = createdTime;
+		}
+	}
+
+	/**
+	 * Passes a result on to the output while keeping a copy of it for the cache, as long as the result is
+	 * small enough to be cached
+	 */
+	public static class RecordingOutputStream extends FilterOutputStream {
+		private ByteArrayOutputStream recording;
+		private long maxLength;
+
+		RecordingOutputStream(OutputStream out, long maxLength) {
+			super(out);
+			this.recording = new ByteArrayOutputStream();
+			this.maxLength = maxLength;
+		}
+
+		/**
+		 * Get the copy of what has been written
+		 *
+		 * @return the copy, or null if it was too large for the cache
+		 */
+		public byte[] getRecording() {
+			return recording != null ? recording.toByteArray() : null;
+		}
+
+		// Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			if (record(1)) {
+				recording.write(b);
+			}
+		}
+
+		// Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			if (record(len)) {
+				recording.write(b, off, len);
+			}
+		}
+
+		// Whether or not to copy more bytes; the copy is dropped once it gets too large
+		private boolean record(int len) {
+			if (recording != null && recording.size() + len > maxLength) {
+				recording = null;
+			}
+			return recording != null;
+		}
+	}
+
+	private int maxEntries;
+	private long maxWeight;
+	private long timeToLiveMillis;
+
+	// The results in order of access, the least recently used first
+	private LinkedHashMap<String, Entry> entries;
+	private long weight;
+
+	// Incremented every time the cache is invalidated; results of searches started before are not added
+	private long generation;
+
+	private long numOfHits;
+	private long numOfMisses;
+	private long numOfEvictions;
+	private long numOfExpirations;
+	private long numOfInvalidations;
+
+	/**
+	 * Create a cache with the default limits
+	 */
+	public GeoResultCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_WEIGHT, DEFAULT_TIME_TO_LIVE_MILLIS);
+	}
+
+	/**
+	 * Create a cache
+	 *
+	 * @param maxEntries  the max number of results in the cache
+	 * @param maxWeight  the max number of characters of the keys and bytes of the results in the cache
+	 * @param timeToLiveMillis  how long a result is kept (in milliseconds); 0 to keep it until it is evicted
+	 */
+	public GeoResultCache(int maxEntries, long maxWeight, long timeToLiveMillis) {
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+		this.timeToLiveMillis = timeToLiveMillis;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	// Getters
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	public long getTimeToLiveMillis() {
+		return timeToLiveMillis;
+	}
+
+	public synchronized int getNumOfEntries() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the size of the cache
+	 *
+	 * @return the number of characters of the keys and bytes of the results in the cache
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized long getNumOfHits() {
+		return numOfHits;
+	}
+
+	public synchronized long getNumOfMisses() {
+		return numOfMisses;
+	}
+
+	/**
+	 * Get the number of results that were evicted to make room for other results
+	 *
+	 * @return the number of evictions
+	 */
+	public synchronized long getNumOfEvictions() {
+		return numOfEvictions;
+	}
+
+	public synchronized long getNumOfExpirations() {
+		return numOfExpirations;
+	}
+
+	public synchronized long getNumOfInvalidations() {
+		return numOfInvalidations;
+	}
+
+	/**
+	 * Get the generation of the cache, which has to be passed to put() when the result is added
+	 *
+	 * @return the generation
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Get a cached result
+	 *
+	 * @param key  the key of the search
+	 * @return the result, or null if it is not cached
+	 */
+	public synchronized byte[] get(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null && isExpired(entry, System.currentTimeMillis())) {
+			remove(key, entry);
+			numOfExpirations++;
+			entry = null;
+		}
+		if (entry == null) {
+			numOfMisses++;
+			return null;
+		}
+		numOfHits++;
+		return entry.result;
+	}
+
+	/**
+	 * Add the result of a search to the cache. It is not added if the cache has been invalidated since the
+	 * search started, since it may have been found on the old indices.
+	 *
+	 * @param key  the key of the search
+	 * @param result  the result
+	 * @param generation  the generation of the cache when the search started
+	 */
+	public synchronized void put(String key, byte[] result, long generation) {
+		long entryWeight = key.length() + result.length;
+		if (generation != this.generation || entryWeight > maxWeight || maxEntries <= 0) {
+			return;
+		}
+		Entry old = entries.remove(key);
+		if (old != null) {
+			weight -= key.length() + old.result.length;
+		}
+		entries.put(key, new Entry(result, System.currentTimeMillis()));
+		weight += entryWeight;
+
+		// Evict the least recently used results until the cache is within its limits
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while ((entries.size() > maxEntries || weight > maxWeight) && iterator.hasNext()) {
+			Map.Entry<String, Entry> eldest = iterator.next();
+			iterator.remove();
+			weight -= eldest.getKey().length() + eldest.getValue().result.length;
+			numOfEvictions++;
+		}
+	}
+
+	/**
+	 * Create an output stream that keeps a copy of a result that is written to an output, so that it can be
+	 * added to the cache afterwards without holding results that are too large for the cache
+	 *
+	 * @param out  the output
+	 * @param key  the key of the search
+	 * @return the output stream
+	 */
+	public RecordingOutputStream createRecordingOutputStream(OutputStream out, String key) {
+		return new RecordingOutputStream(out, maxWeight - key.length());
+	}
+
+	/**
+	 * Drop all results, e.g. because the indices have been reopened
+	 */
+	public synchronized void invalidate() {
+		entries.clear();
+		weight = 0;
+		generation++;
+		numOfInvalidations++;
+	}
+
+	// Override
+	public synchronized String toString() {
+		return String.format("%d results, %d bytes; %d hits, %d misses, %d evictions, %d expirations, %d invalidations",
+				entries.size(), weight, numOfHits, numOfMisses, numOfEvictions, numOfExpirations, numOfInvalidations);
+	}
+
+	// All methods below are private helper methods
+
+	// Whether or not a result has been in the cache for longer than the time to live
+	private boolean isExpired(Entry entry, long now) {
+		return timeToLiveMillis > 0 && now - entry.createdTime > timeToLiveMillis;
+	}
+
+	// Remove a result from the cache
+	private void remove(String key, Entry entry) {
+		entries.remove(key);
+		weight -= key.length() + entry.result.length;
+	}
+}
@@ -0,0 +1,400 @@
+package edu.cornell.georeference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class decodes the JSON and binary responses of the Georeference servlet (see GeoResultWriter) for
+ * Java clients. Unknown fields of the JSON objects are skipped. The lists of places have the cursor of the
+ * next page if there is one.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+public class GeoResultReader {
+
+	private GeoResultReader() {
+	}
+
+	/**
+	 * Decode a response
+	 *
+	 * @param in  the response
+	 * @param format  GeoResultWriter.JSON or GeoResultWriter.BINARY
+	 * @return the places in order of score, with the cursor of the next page
+	 * @throws IOException  if the response cannot be read or is not in the format
+	 */
+	public static GeoPlaceList read(InputStream in, int format) throws IOException {
+		switch (format) {
+		case GeoResultWriter.JSON:
+			return readJSON(new InputStreamReader(in, GeoResultWriter.UTF8));
+		case GeoResultWriter.BINARY:
+			return readBinary(in);
+		default:
+			throw new IllegalArgumentException("unsupported response format: " + format);
+		}
+	}
+
+	/**
+	 * Decode the response of a batch of searches
+	 *
+	 * @param in  the response
+	 * @param format  GeoResultWriter.JSON or GeoResultWriter.BINARY
+	 * @return the places of each search in the order of the batch
+	 * @throws IOException  if the response cannot be read or is not in the format
+	 */
+	public static List<GeoPlaceList> readBatch(InputStream in, int format) throws IOException {
+		switch (format) {
+		case GeoResultWriter.JSON:
+			return readJSONBatch(new InputStreamReader(in, GeoResultWriter.UTF8));
+		case GeoResultWriter.BINARY:
+			return readBinaryBatch(in);
+		default:
+			throw new IllegalArgumentException("unsupported response format: " + format);
+		}
+	}
+
+	/**
+	 * Decode a binary response
+	 *
+	 * @param in  the response
+	 * @return the places in order of score, with the cursor of the next page
+	 * @throws IOException  if the response cannot be read or is not in the binary format
+	 */
+	public static GeoPlaceList readBinary(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		int version = readBinaryVersion(data);
+		return readBinaryPlaces(data, version, new byte[64]);
+	}
+
+	/**
+	 * Decode the binary response of a batch of searches
+	 *
+	 * @param in  the response
+	 * @return the places of each search in the order of the batch
+	 * @throws IOException  if the response cannot be read or is not in the binary format
+	 */
+	public static List<GeoPlaceList> readBinaryBatch(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		int version = readBinaryVersion(data);
+		int numOfResults = data.readInt();
+		List<GeoPlaceList> results = new ArrayList<GeoPlaceList>(numOfResults);
+		byte[] buffer = new byte[64];
+		for (int i = 0; i < numOfResults; i++) {
+			results.add(readBinaryPlaces(data, version, buffer));
+		}
+		return results;
+	}
+
+	/**
+	 * Decode a JSON response
+	 *
+	 * @param in  the response
+	 * @return the places in order of score, with the cursor of the next page
+	 * @throws IOException  if the response cannot be read or is not in the JSON format
+	 */
+	public static GeoPlaceList readJSON(Reader in) throws IOException {
+		return readJSONPlaces(new JSONParser(in));
+	}
+
+	/**
+	 * Decode the JSON response of a batch of searches
+	 *
+	 * @param in  the response
+	 * @return the places of each search in the order of the batch
+	 * @throws IOException  if the response cannot be read or is not in the JSON format
+	 */
+	public static List<GeoPlaceList> readJSONBatch(Reader in) throws IOException {
+		JSONParser parser = new JSONParser(in);
+		List<GeoPlaceList> results = new ArrayList<GeoPlaceList>();
+		parser.expect('{');
+		if (!parser.skipIf('}')) {
+			do {
+				String key = parser.readString();
+				parser.expect(':');
+				if (key.equals("results")) {
+					parser.expect('[');
+					if (!parser.skipIf(']')) {
+						do {
+							results.add(readJSONPlaces(parser));
+						} while (parser.skipIf(','));
+						parser.expect(']');
+					}
+				}
+				else {
+					parser.skipValue();
+				}
+			} while (parser.skipIf(','));
+			parser.expect('}');
+		}
+		return results;
+	}
+
+	// All classes and methods below are private helpers
+
+	// Read the version byte of a binary response
+	private static int readBinaryVersion(DataInputStream data) throws IOException {
+		int version = data.readUnsignedByte();
+		if (version < 1 || version > GeoResultWriter.BINARY_VERSION) {
+			throw new IOException("unsupported version of the binary format: " + version);
+		}
+		return version;
+	}
+
+	// Read the places of a search in the binary format after the version byte
+	private static GeoPlaceList readBinaryPlaces(DataInputStream data, int version, byte[] buffer) 
+			throws IOException {
+		String cursor = null;
+		if (version >= 2) {
+			int cursorLength = data.readUnsignedShort();
+			buffer = readBytes(data, cursorLength, buffer);
+			cursor = cursorLength > 0 ? new String(buffer, 0, cursorLength, GeoResultWriter.UTF8) : null;
+		}
+		int numOfPlaces = data.readInt();
+		GeoPlaceList places = new GeoPlaceList(numOfPlaces);
+		places.setCursor(cursor);
+		for (int i = 0; i < numOfPlaces; i++) {
+			int nameLength = data.readUnsignedShort();
+			buffer = readBytes(data, nameLength, buffer);
+			String placeName = new String(buffer, 0, nameLength, GeoResultWriter.UTF8);
+			double latitude = data.readDouble();
+			double longitude = data.readDouble();
+			float score = data.readFloat();
+			places.add(new GeoPlace(placeName, latitude, longitude, score));
+		}
+		return places;
+	}
+
+	// Read an object with the places of a search
+	private static GeoPlaceList readJSONPlaces(JSONParser parser) throws IOException {
+		GeoPlaceList places = new GeoPlaceList();
+		parser.expect('{');
+		if (!parser.skipIf('}')) {
+			do {
+				String key = parser.readString();
+				parser.expect(':');
+				if (key.equals("places")) {
+					readJSONPlaceArray(parser, places);
+				}
+				else if (key.equals("cursor")) {
+					places.setCursor(parser.readString());
+				}
+				else {
+					parser.skipValue();
+				}
+			} while (parser.skipIf(','));
+			parser.expect('}');
+		}
+		return places;
+	}
+
+	// Read some bytes into the buffer, or into a larger buffer if they do not fit
+	private static byte[] readBytes(DataInputStream data, int length, byte[] buffer) throws IOException {
+		if (length > buffer.length) {
+			buffer = new byte[length];
+		}
+		data.readFully(buffer, 0, length);
+		return buffer;
+	}
+
+	// Read the array of places
+	private static void readJSONPlaceArray(JSONParser parser, GeoPlaceList places) throws IOException {
+		parser.expect('[');
+		if (parser.skipIf(']')) {
+			return;
+		}
+		do {
+			String placeName = null;
+			double latitude = Double.NaN;
+			double longitude = Double.NaN;
+			float score = Float.NaN;
+			parser.expect('{');
+			if (!parser.skipIf('}')) {
+				do {
+					String key = parser.readString();
+					parser.expect(':');
+					if (key.equals("name")) {
+						placeName = parser.readString();
+					}
+					else if (key.equals("lat")) {
+						latitude = parser.readNumber();
+					}
+					else if (key.equals("lng")) {
+						longitude = parser.readNumber();
+					}
+					else if (key.equals("score")) {
+						score = (float) parser.readNumber();
+					}
+					else {
+						parser.skipValue();
+					}
+				} while (parser.skipIf(','));
+				parser.expect('}');
+			}
+			places.add(new GeoPlace(placeName, latitude, longitude, score));
+		} while (parser.skipIf(','));
+		parser.expect(']');
+	}
+
+	// Reads the tokens of a JSON text one character at a time
+	private static class JSONParser {
+		private Reader in;
+		private int next;
+		private StringBuilder buffer;
+
+		JSONParser(Reader in) throws IOException {
+			this.in = in.markSupported() ? in : new BufferedReader(in);
+			this.buffer = new StringBuilder();
+			this.next = this.in.read();
+		}
+
+		// Skip the character if it is next (after white space)
+		boolean skipIf(char c) throws IOException {
+			skipWhitespace();
+			if (next == c) {
+				next = in.read();
+				return true;
+			}
+			return false;
+		}
+
+		// Skip the character, which has to be next
+		void expect(char c) throws IOException {
+			if (!skipIf(c)) {
+				throw error("'" + c + "' expected");
+			}
+		}
+
+		// Read a string; null if it is null
+		String readString() throws IOException {
+			skipWhitespace();
+			if (next == 'n') {
+				readLiteral("null");
+				return null;
+			}
+			expect('"');
+			buffer.setLength(0);
+			while (next != '"') {
+				if (next < 0) {
+					throw error("unterminated string");
+				}
+				if (next == '\\') {
+					next = in.read();
+					switch (next) {
+					case 'b':
+						buffer.append('\b');
+						break;
+					case 'f':
+						buffer.append('\f');
+						break;
+					case 'n':
+						buffer.append('\n');
+						break;
+					case 'r':
+						buffer.append('\r');
+						break;
+					case 't':
+						buffer.append('\t');
+						break;
+					case 'u':
+						char[] hex = new char[4];
+						for (int i = 0; i < 4; i++) {
+							hex[i] = (char) in.read();
+						}
+						try {
+							buffer.append((char) Integer.parseInt(new String(hex), 16));
+						} catch (NumberFormatException e) {
+							throw error("bad escape");
+						}
+						break;
+					default:
+						buffer.append((char) next);
+					}
+				}
+				else {
+					buffer.append((char) next);
+				}
+				next = in.read();
+			}
+			next = in.read();
+			return buffer.toString();
+		}
+
+		// Read a number; NaN if it is null
+		double readNumber() throws IOException {
+			skipWhitespace();
+			if (next == 'n') {
+				readLiteral("null");
+				return Double.NaN;
+			}
+			buffer.setLength(0);
+			while (next == '-' || next == '+' || next == '.' || next == 'e' || next == 'E' || (next >= '0' && next <= '9')) {
+				buffer.append((char) next);
+				next = in.read();
+			}
+			try {
+				return Double.parseDouble(buffer.toString());
+			} catch (NumberFormatException e) {
+				throw error("number expected");
+			}
+		}
+
+		// Skip a value of any type
+		void skipValue() throws IOException {
+			skipWhitespace();
+			if (next == '"') {
+				readString();
+			}
+			else if (next == '{' || next == '[') {
+				char close = next == '{' ? '}' : ']';
+				next = in.read();
+				if (!skipIf(close)) {
+					do {
+						if (close == '}') {
+							readString();
+							expect(':');
+						}
+						skipValue();
+					} while (skipIf(','));
+					expect(close);
+				}
+			}
+			else if (next == 't') {
+				readLiteral("true");
+			}
+			else if (next == 'f') {
+				readLiteral("false");
+			}
+			else {
+				readNumber();
+			}
+		}
+
+		// Read a literal such as null
+		private void readLiteral(String literal) throws IOException {
+			for (int i = 0; i < literal.length(); i++) {
+				if (next != literal.charAt(i)) {
+					throw error(literal + " expected");
+				}
+				next = in.read();
+			}
+		}
+
+		private void skipWhitespace() throws IOException {
+			while (next == ' ' || next == '\t' || next == '\n' || next == '\r') {
+				next = in.read();
+			}
+		}
+
+		private IOException error(String message) {
+			return new IOException("invalid JSON response: " + message);
+		}
+	}
+}
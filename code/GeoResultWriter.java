@@ -0,0 +1,437 @@
+package edu.cornell.georeference;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * This class writes the result of a search in one of the response formats. The places are written to the
+ * output as their documents are loaded, so the result is never held in memory as a whole. Only the stored
+ * fields the responses need are loaded, a batch of hits at a time in order of doc id so that the stored
+ * fields are read front to back. The writers hold no state of their own and are shared by all searches.
+ *
+ * The XML format is described by georeferencing.xsd. The JSON format is an object with a "places" array of
+ * objects with the name, lat, lng and score of each place. The binary format is a version byte, the cursor
+ * (an unsigned short byte length, 0 if there is none, and UTF-8 bytes) and the number of places (an int),
+ * followed by the name (an unsigned short byte length and UTF-8 bytes), the latitude and longitude (doubles)
+ * and the score (a float) of each place, all in big endian. The JSON and binary formats can be decoded by
+ * the GeoResultReader.
+ *
+ * If there are more places than the page holds, the response has a cursor that is passed to the next
+ * search to get the next page: the cursor attribute of the places element in XML, the "cursor" string in
+ * JSON.
+ *
+ * The results of a batch of searches are written in order in one response: a batch element with a places
+ * element for each search in XML, an object with a "results" array of the objects of the searches in JSON,
+ * and the version byte and the number of searches (an int) followed by the result of each search without
+ * its version byte in the binary format.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+public abstract class GeoResultWriter {
+
+	// Response formats
+	public static final int XML = 1;
+	public static final int JSON = 2;
+	public static final int BINARY = 3;
+
+	// Version of the binary format; version 1 had no cursor
+	static final int BINARY_VERSION = 2;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// The stored fields of a place the responses need
+	private static final FieldSelector PLACE_FIELD_SELECTOR = new MapFieldSelector(GeoIndexWriter.NAME_FIELD, 
+			GeoIndexWriter.LATITUDE_FIELD, GeoIndexWriter.LONGITUDE_FIELD);
+
+	// The number of hits whose documents are loaded together
+	private static final int LOAD_BATCH_SIZE = 256;
+
+	/**
+	 * Create the writer of a format
+	 *
+	 * @param format  XML, JSON or BINARY
+	 * @return the writer
+	 */
+	public static GeoResultWriter createResultWriter(int format) {
+		switch (format) {
+		case XML:
+			return new XMLResultWriter();
+		case JSON:
+			return new JSONResultWriter();
+		case BINARY:
+			return new BinaryResultWriter();
+		default:
+			throw new IllegalArgumentException("unknown response format: " + format);
+		}
+	}
+
+	/**
+	 * Write the places of the hits
+	 *
+	 * @param searcher  the searcher the hits were found with (can be null if there are no hits)
+	 * @param hits  the hits in order of score
+	 * @param cursor  the cursor of the next page, or null if this is the last page
+	 * @param out  the output; it is flushed but not closed
+	 * @throws IOException
+	 */
+	public void write(IndexSearcher searcher, ScoreDoc[] hits, String cursor, OutputStream out) throws IOException {
+		write(searcher, hits, cursor, false, out);
+	}
+
+	/**
+	 * Write the start of the results of a batch of searches
+	 *
+	 * @param numOfResults  the number of searches in the batch
+	 * @param out  the output; it is not flushed
+	 * @throws IOException
+	 */
+	public abstract void writeBatchStart(int numOfResults, OutputStream out) throws IOException;
+
+	/**
+	 * Write the result of one search of a batch
+	 *
+	 * @param index  the number of the search in the batch, starting at 0
+	 * @param result  the result of the search, as written by write() for a batch entry
+	 * @param out  the output; it is not flushed
+	 * @throws IOException
+	 */
+	public abstract void writeBatchEntry(int index, byte[] result, OutputStream out) throws IOException;
+
+	/**
+	 * Write the end of the results of a batch of searches
+	 *
+	 * @param out  the output; it is flushed but not closed
+	 * @throws IOException
+	 */
+	public abstract void writeBatchEnd(OutputStream out) throws IOException;
+
+	/**
+	 * Write the places of the hits
+	 *
+	 * @param searcher  the searcher the hits were found with (can be null if there are no hits)
+	 * @param hits  the hits in order of score
+	 * @param cursor  the cursor of the next page, or null if this is the last page
+	 * @param batchEntry  whether the result is one of a batch (see writeBatchEntry()) rather than a response
+	 * @param out  the output; it is flushed but not closed
+	 * @throws IOException
+	 */
+	abstract void write(IndexSearcher searcher, ScoreDoc[] hits, String cursor, boolean batchEntry, OutputStream out) 
+			throws IOException;
+
+	/**
+	 * Load the stored fields of the places of some hits that the responses need, in order of doc id
+	 *
+	 * @param searcher  the searcher the hits were found with
+	 * @param hits  the hits
+	 * @param from  the first hit to load
+	 * @param to  the hit after the last hit to load
+	 * @param documents  the documents of the hits from 'from' are put here in the order of the hits
+	 * @throws IOException
+	 */
+	static void loadDocuments(IndexSearcher searcher, ScoreDoc[] hits, int from, int to, Document[] documents) 
+			throws IOException {
+		// Sort the hits by doc id, keeping their positions in the low bits
+		long[] order = new long[to - from];
+		for (int i = from; i < to; i++) {
+			order[i - from] = ((long) hits[i].doc << 32) | (i - from);
+		}
+		Arrays.sort(order);
+		for (int i = 0; i < order.length; i++) {
+			documents[(int) order[i]] = searcher.doc((int) (order[i] >>> 32), PLACE_FIELD_SELECTOR);
+		}
+	}
+
+	// All classes and methods below are private helpers
+
+	// Writes the XML format
+	private static class XMLResultWriter extends GeoResultWriter {
+		// Override
+		void write(IndexSearcher searcher, ScoreDoc[] hits, String cursor, boolean batchEntry, OutputStream out) 
+				throws IOException {
+			Document[] documents = createDocumentBatch(hits);
+			Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+			writer.write(batchEntry ? "<places" : "<?xml version=\"1.0\"?>\n<places");
+			if (cursor != null) {
+				writer.write(" cursor=\"");
+				writeEscaped(cursor, writer);
+				writer.write('"');
+			}
+			writer.write(">\n");
+			for (int i = 0; i < hits.length; i++) {
+				Document document = getDocument(searcher, hits, i, documents);
+				writer.write("<place>\n");
+				writeElement("place_name", document.get(GeoIndexWriter.NAME_FIELD), writer);
+				writeElement("doc_id", Integer.toString(hits[i].doc), writer);
+				writeElement("latitude", document.get(GeoIndexWriter.LATITUDE_FIELD), writer);
+				writeElement("longitude", document.get(GeoIndexWriter.LONGITUDE_FIELD), writer);
+				writeElement("score", Float.toString(hits[i].score), writer);
+				writer.write("</place>\n");
+			}
+			writer.write(batchEntry ? "</places>\n" : "</places>");
+			writer.flush();
+		}
+
+		// Override
+		public void writeBatchStart(int numOfResults, OutputStream out) throws IOException {
+			out.write("<?xml version=\"1.0\"?>\n<batch>\n".getBytes(UTF8));
+		}
+
+		// Override
+		public void writeBatchEntry(int index, byte[] result, OutputStream out) throws IOException {
+			out.write(result);
+		}
+
+		// Override
+		public void writeBatchEnd(OutputStream out) throws IOException {
+			out.write("</batch>".getBytes(UTF8));
+			out.flush();
+		}
+
+		// Write an element with an escaped text
+		private static void writeElement(String name, String text, Writer out) throws IOException {
+			out.write('<');
+			out.write(name);
+			out.write('>');
+			if (text != null) {
+				writeEscaped(text, out);
+			}
+			out.write("</");
+			out.write(name);
+			out.write(">\n");
+		}
+
+		// Write a text with the XML special characters escaped and the characters XML does not allow left out;
+		// runs of characters that need no escaping are written at once
+		private static void writeEscaped(String text, Writer out) throws IOException {
+			int start = 0;
+			int length = text.length();
+			for (int i = 0; i < length; i++) {
+				char c = text.charAt(i);
+				String replacement;
+				switch (c) {
+				case '<':
+					replacement = "&lt;";
+					break;
+				case '>':
+					replacement = "&gt;";
+					break;
+				case '&':
+					replacement = "&amp;";
+					break;
+				case '"':
+					replacement = "&quot;";
+					break;
+				case '\'':
+					replacement = "&apos;";
+					break;
+				default:
+					replacement = isAllowed(c) ? null : "";
+				}
+				if (replacement != null) {
+					out.write(text, start, i - start);
+					out.write(replacement);
+					start = i + 1;
+				}
+			}
+			out.write(text, start, length - start);
+		}
+
+		// Whether or not a character is allowed in XML 1.0 (surrogates are allowed, since they come in pairs)
+		private static boolean isAllowed(char c) {
+			return c >= 0x20 ? c != 0xFFFE && c != 0xFFFF : c == '\t' || c == '\n' || c == '\r';
+		}
+	}
+
+	// Writes the JSON format
+	private static class JSONResultWriter extends GeoResultWriter {
+		private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+		// Override
+		void write(IndexSearcher searcher, ScoreDoc[] hits, String cursor, boolean batchEntry, OutputStream out) 
+				throws IOException {
+			Document[] documents = createDocumentBatch(hits);
+			Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+			if (cursor != null) {
+				writer.write("{\"cursor\":");
+				writeString(cursor, writer);
+				writer.write(",\"places\":[");
+			}
+			else {
+				writer.write("{\"places\":[");
+			}
+			for (int i = 0; i < hits.length; i++) {
+				Document document = getDocument(searcher, hits, i, documents);
+				writer.write(i == 0 ? "{\"name\":" : ",{\"name\":");
+				writeString(document.get(GeoIndexWriter.NAME_FIELD), writer);
+				writer.write(",\"lat\":");
+				writeNumber(getCoordinate(document, GeoIndexWriter.LATITUDE_FIELD), writer);
+				writer.write(",\"lng\":");
+				writeNumber(getCoordinate(document, GeoIndexWriter.LONGITUDE_FIELD), writer);
+				writer.write(",\"score\":");
+				writeNumber(hits[i].score, writer);
+				writer.write('}');
+			}
+			writer.write("]}");
+			writer.flush();
+		}
+
+		// Override
+		public void writeBatchStart(int numOfResults, OutputStream out) throws IOException {
+			out.write("{\"results\":[".getBytes(UTF8));
+		}
+
+		// Override
+		public void writeBatchEntry(int index, byte[] result, OutputStream out) throws IOException {
+			if (index > 0) {
+				out.write(',');
+			}
+			out.write(result);
+		}
+
+		// Override
+		public void writeBatchEnd(OutputStream out) throws IOException {
+			out.write("]}".getBytes(UTF8));
+			out.flush();
+		}
+
+		// Write a string with the JSON special characters escaped
+		private static void writeString(String text, Writer out) throws IOException {
+			if (text == null) {
+				out.write("null");
+				return;
+			}
+			out.write('"');
+			int start = 0;
+			int length = text.length();
+			for (int i = 0; i < length; i++) {
+				char c = text.charAt(i);
+				if (c == '"' || c == '\\' || c < 0x20) {
+					out.write(text, start, i - start);
+					out.write('\\');
+					if (c == '"' || c == '\\') {
+						out.write(c);
+					}
+					else {
+						out.write("u00");
+						out.write(HEX_DIGITS[c >> 4]);
+						out.write(HEX_DIGITS[c & 0xF]);
+					}
+					start = i + 1;
+				}
+			}
+			out.write(text, start, length - start);
+			out.write('"');
+		}
+
+		// Write a number; JSON has no NaN or infinity, so they are written as null
+		private static void writeNumber(double number, Writer out) throws IOException {
+			if (Double.isNaN(number) || Double.isInfinite(number)) {
+				out.write("null");
+			}
+			else {
+				out.write(Double.toString(number));
+			}
+		}
+
+		// Write a score as the float it is, without the digits of the conversion to double
+		private static void writeNumber(float number, Writer out) throws IOException {
+			if (Float.isNaN(number) || Float.isInfinite(number)) {
+				out.write("null");
+			}
+			else {
+				out.write(Float.toString(number));
+			}
+		}
+	}
+
+	// Writes the binary format
+	private static class BinaryResultWriter extends GeoResultWriter {
+		// Override
+		void write(IndexSearcher searcher, ScoreDoc[] hits, String cursor, boolean batchEntry, OutputStream out) 
+				throws IOException {
+			Document[] documents = createDocumentBatch(hits);
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+			if (!batchEntry) {
+				data.writeByte(BINARY_VERSION);
+			}
+			writeString(cursor, data);
+			data.writeInt(hits.length);
+			for (int i = 0; i < hits.length; i++) {
+				Document document = getDocument(searcher, hits, i, documents);
+				writeString(document.get(GeoIndexWriter.NAME_FIELD), data);
+				data.writeDouble(getCoordinate(document, GeoIndexWriter.LATITUDE_FIELD));
+				data.writeDouble(getCoordinate(document, GeoIndexWriter.LONGITUDE_FIELD));
+				data.writeFloat(hits[i].score);
+			}
+			data.flush();
+		}
+
+		// Override
+		public void writeBatchStart(int numOfResults, OutputStream out) throws IOException {
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeByte(BINARY_VERSION);
+			data.writeInt(numOfResults);
+		}
+
+		// Override
+		public void writeBatchEntry(int index, byte[] result, OutputStream out) throws IOException {
+			out.write(result);
+		}
+
+		// Override
+		public void writeBatchEnd(OutputStream out) throws IOException {
+			out.flush();
+		}
+
+		// Write a string as its UTF-8 byte length and bytes; null is written as an empty string. A string of more
+		// than 0xFFFF bytes is cut before the first character that does not fit, so no character is split
+		private static void writeString(String text, DataOutputStream out) throws IOException {
+			byte[] bytes = text != null ? text.getBytes(UTF8) : new byte[0];
+			int length = bytes.length;
+			if (length > 0xFFFF) {
+				length = 0xFFFF;
+				while ((bytes[length] & 0xC0) == 0x80) {
+					length--;
+				}
+			}
+			out.writeShort(length);
+			out.write(bytes, 0, length);
+		}
+	}
+
+	// Get the document of a hit; the documents are loaded a batch at a time when the first hit of the batch
+	// is reached
+	private static Document getDocument(IndexSearcher searcher, ScoreDoc[] hits, int i, Document[] documents) 
+			throws IOException {
+		int offset = i % documents.length;
+		if (offset == 0) {
+			loadDocuments(searcher, hits, i, Math.min(i + documents.length, hits.length), documents);
+		}
+		return documents[offset];
+	}
+
+	// Create the documents of a batch of hits
+	private static Document[] createDocumentBatch(ScoreDoc[] hits) {
+		return new Document[Math.max(Math.min(hits.length, LOAD_BATCH_SIZE), 1)];
+	}
+
+	// Get a coordinate of a place; NaN if it is missing
+	private static double getCoordinate(Document document, String field) {
+		String value = document.get(field);
+		return value != null ? Double.parseDouble(value) : Double.NaN;
+	}
+}
@@ -0,0 +1,21 @@
+package edu.cornell.georeference;
+
+/**
+ * This class holds the values of one row of a data source file that are needed to build a document.
+ * An object is reused for many rows, so it must not be shared between threads.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+class GeoRow {
+
+	String id;
+	String name;
+	String altName1;
+	String altName2;
+	double latitude;
+	double longitude;
+
+	// Scratch space for copying the bytes of a column out of the file
+	byte[] scratch = new byte[256];
+}
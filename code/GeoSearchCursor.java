@@ -0,0 +1,86 @@
+package edu.cornell.georeference;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * The position of the last hit of a page of search results, from which the next page continues. It is
+ * only valid for the version of the indices the page was found on, since the scores and doc ids of the hits
+ * change when the indices change. It is passed to clients as an opaque string.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+class GeoSearchCursor {
+
+	private long indexVersion;
+	private ScoreDoc lastHit;
+
+	/**
+	 * Create the cursor after a hit
+	 *
+	 * @param indexVersion  the version of the indices (see getIndexVersion())
+	 * @param lastHit  the last hit of the page
+	 */
+	GeoSearchCursor(long indexVersion, ScoreDoc lastHit) {
+		this.indexVersion = indexVersion;
+		this.lastHit = lastHit;
+	}
+
+	/**
+	 * Parse a cursor
+	 *
+	 * @param cursor  the cursor string from a response
+	 * @return the cursor
+	 * @throws IllegalArgumentException  if the string is not a cursor
+	 */
+	static GeoSearchCursor parse(String cursor) {
+		String[] parts = cursor.split("-");
+		if (parts.length != 3) {
+			throw new IllegalArgumentException("invalid cursor: " + cursor);
+		}
+		try {
+			long indexVersion = Long.parseLong(parts[0], 16);
+			float score = Float.intBitsToFloat((int) Long.parseLong(parts[1], 16));
+			int doc = Integer.parseInt(parts[2], 16);
+			return new GeoSearchCursor(indexVersion, new ScoreDoc(doc, score));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid cursor: " + cursor);
+		}
+	}
+
+	/**
+	 * Get the version of the indices of a searcher, which changes every time one of them is reopened
+	 *
+	 * @param reader  the reader of the searcher
+	 * @return the version
+	 */
+	static long getIndexVersion(IndexReader reader) {
+		IndexReader[] subReaders = reader.getSequentialSubReaders();
+		if (!(reader instanceof MultiReader) || subReaders == null) {
+			return reader.getVersion();
+		}
+		long version = 1;
+		for (int i = 0; i < subReaders.length; i++) {
+			version = version * 31 + subReaders[i].getVersion();
+		}
+		return version & Long.MAX_VALUE;
+	}
+
+	// Getters
+
+	long getIndexVersion() {
+		return indexVersion;
+	}
+
+	ScoreDoc getLastHit() {
+		return lastHit;
+	}
+
+	// Override
+	public String toString() {
+		return Long.toHexString(indexVersion) + "-" + Integer.toHexString(Float.floatToIntBits(lastHit.score)) + "-"
+				+ Integer.toHexString(lastHit.doc);
+	}
+}
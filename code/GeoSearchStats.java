@@ -0,0 +1,62 @@
+package edu.cornell.georeference;
+
+/**
+ * This class holds the latency of the searches on one gazetteer: how many searches ran on it, and how long
+ * they took on average and at most. The time of a search is the time its gazetteer took, which is measured
+ * separately from the other gazetteers that were searched at the same time; a sharded gazetteer takes as long
+ * as its slowest shard.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+public class GeoSearchStats {
+
+	private String gazetteerName;
+	private long numOfSearches;
+	private long totalNanos;
+	private long maxNanos;
+
+	GeoSearchStats(String gazetteerName) {
+		this.gazetteerName = gazetteerName;
+	}
+
+	// Record the time of a search
+	synchronized void record(long nanos) {
+		numOfSearches++;
+		totalNanos += nanos;
+		maxNanos = Math.max(maxNanos, nanos);
+	}
+
+	// Getters
+
+	public String getGazetteerName() {
+		return gazetteerName;
+	}
+
+	public synchronized long getNumOfSearches() {
+		return numOfSearches;
+	}
+
+	public synchronized double getAverageMillis() {
+		return numOfSearches > 0 ? totalNanos / 1e6 / numOfSearches : 0;
+	}
+
+	public synchronized double getMaxMillis() {
+		return maxNanos / 1e6;
+	}
+
+	/**
+	 * Start counting from zero again
+	 */
+	public synchronized void reset() {
+		numOfSearches = 0;
+		totalNanos = 0;
+		maxNanos = 0;
+	}
+
+	// Override
+	public synchronized String toString() {
+		return String.format("%s: %d searches, %.3f ms average, %.3f ms max", gazetteerName, numOfSearches, 
+				getAverageMillis(), getMaxMillis());
+	}
+}
@@ -0,0 +1,282 @@
+package edu.cornell.georeference;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+
+/**
+ * This class keeps long-lived, shared searchers over a fixed list of indices/directories. Each index
+ * is opened once, the first time a searcher on it is acquired, and the combined searchers (for
+ * searching several indices at once) are built once then reused by all queries. Every search must
+ * acquire a searcher and release it when it is done, so that a refresh can swap in reopened readers
+ * without closing them under in-flight queries. A refresh reopens and warms the changed readers
+ * before they are swapped in, while searches keep running on the old readers.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+public class GeoSearcherManager {
+
+	/**
+	 * Warms up a reopened index before it is used for searching (e.g. by running some typical queries,
+	 * which loads the parts of the index they need)
+	 */
+	public interface Warmer {
+		void warm(IndexSearcher searcher) throws IOException;
+	}
+
+	private Directory[] indices;
+	private Warmer warmer;
+
+	// The reader for each index (null until the index is first searched) and the searchers built on top
+	// of them, keyed by the set of index numbers they search on
+	private IndexReader[] readers;
+	private Map<BitSet, IndexSearcher> searchers;
+	private boolean closed;
+
+	// Only one refresh runs at a time
+	private final Object refreshLock = new Object();
+
+	/**
+	 * Create a searcher manager for the indices; an index is not opened until a searcher on it is acquired
+	 *
+	 * @param indices  the indices/directories to search on; the position of an index in this list is
+	 * its index number
+	 */
+	public GeoSearcherManager(Directory... indices) {
+		this.indices = indices;
+		this.readers = new IndexReader[indices.length];
+		this.searchers = new HashMap<BitSet, IndexSearcher>();
+	}
+
+	/**
+	 * Set the warmer that is run on every reader that a refresh reopens before the reader is used
+	 *
+	 * @param warmer  the warmer (can be null)
+	 */
+	public void setWarmer(Warmer warmer) {
+		this.warmer = warmer;
+	}
+
+	/**
+	 * Get the number of indices managed by this object
+	 *
+	 * @return the number of indices
+	 */
+	public int getNumOfIndices() {
+		return indices.length;
+	}
+
+	/**
+	 * Acquire a searcher that searches on the specified indices. The searcher must be passed to
+	 * release() once the search is done.
+	 *
+	 * @param indexNums  the index numbers of the indices to search on
+	 * @return the searcher
+	 * @throws CorruptIndexException
+	 * @throws IOException
+	 */
+	public IndexSearcher acquire(int... indexNums) throws CorruptIndexException, IOException {
+		BitSet indexSet = new BitSet(indices.length);
+		for (int i = 0; i < indexNums.length; i++) {
+			indexSet.set(indexNums[i]);
+		}
+		return acquire(indexSet);
+	}
+
+	/**
+	 * Acquire a searcher that searches on the specified indices. The searcher must be passed to
+	 * release() once the search is done.
+	 *
+	 * @param indexSet  the set of index numbers of the indices to search on
+	 * @return the searcher
+	 * @throws CorruptIndexException
+	 * @throws IOException
+	 */
+	public synchronized IndexSearcher acquire(BitSet indexSet) throws CorruptIndexException, IOException {
+		if (closed) {
+			throw new AlreadyClosedException("this GeoSearcherManager is closed");
+		}
+		if (indexSet.isEmpty() || indexSet.length() > indices.length) {
+			throw new IllegalArgumentException("invalid index numbers: " + indexSet);
+		}
+		for (int i = indexSet.nextSetBit(0); i >= 0; i = indexSet.nextSetBit(i + 1)) {
+			if (readers[i] == null) {
+				readers[i] = IndexReader.open(indices[i], true);
+			}
+		}
+
+		// Reuse the searcher if one has already been built for these indices
+		IndexSearcher searcher = searchers.get(indexSet);
+		if (searcher == null) {
+			searcher = createSearcher(indexSet);
+			searchers.put((BitSet) indexSet.clone(), searcher);
+		}
+
+		// The reader stays open until the query that acquired it releases it
+		searcher.getIndexReader().incRef();
+		return searcher;
+	}
+
+	/**
+	 * Release a searcher that was acquired from this manager
+	 *
+	 * @param searcher  the searcher that was returned by acquire()
+	 * @throws IOException
+	 */
+	public void release(IndexSearcher searcher) throws IOException {
+		if (searcher != null) {
+			searcher.getIndexReader().decRef();
+		}
+	}
+
+	/**
+	 * Reopen the readers of the indices that have changed since they were opened (e.g. after a rebuild).
+	 * The reopened readers are warmed before they are swapped in; searches are not blocked meanwhile and 
+	 * use the old readers. Searches that already acquired a searcher keep using the old readers; the old 
+	 * readers are closed once all of them are released.
+	 *
+	 * @return whether or not any of the readers has been reopened
+	 * @throws CorruptIndexException
+	 * @throws IOException
+	 */
+	public boolean refresh() throws CorruptIndexException, IOException {
+		synchronized (refreshLock) {
+			// Hold a reference on the current readers while they are reopened outside of the lock
+			IndexReader[] oldReaders;
+			synchronized (this) {
+				if (closed) {
+					throw new AlreadyClosedException("this GeoSearcherManager is closed");
+				}
+				oldReaders = readers.clone();
+				for (int i = 0; i < oldReaders.length; i++) {
+					if (oldReaders[i] != null) {
+						oldReaders[i].incRef();
+					}
+				}
+			}
+			
+			// Reopen and warm every reader first, so nothing is swapped if one of them fails
+			IndexReader[] newReaders = new IndexReader[oldReaders.length];
+			boolean changed = false;
+			boolean success = false;
+			try {
+				for (int i = 0; i < oldReaders.length; i++) {
+					if (oldReaders[i] == null) {
+						continue;
+					}
+					newReaders[i] = oldReaders[i].reopen();
+					if (newReaders[i] != oldReaders[i]) {
+						changed = true;
+						if (warmer != null) {
+							warmer.warm(new IndexSearcher(newReaders[i]));
+						}
+					}
+				}
+				success = true;
+			} finally {
+				if (!success) {
+					releaseReopened(oldReaders, newReaders);
+				}
+				for (int i = 0; i < oldReaders.length; i++) {
+					if (oldReaders[i] != null) {
+						oldReaders[i].decRef();
+					}
+				}
+			}
+			if (!changed) {
+				return false;
+			}
+			
+			synchronized (this) {
+				if (closed) {
+					releaseReopened(oldReaders, newReaders);
+					return false;
+				}
+				
+				// Readers that did not change are carried over, so they need an extra reference to survive the
+				// release of the old ones; readers that were first opened during the refresh are carried over
+				// as they are
+				for (int i = 0; i < readers.length; i++) {
+					if (oldReaders[i] == null) {
+						newReaders[i] = readers[i];
+					}
+					else if (newReaders[i] == readers[i]) {
+						newReaders[i].incRef();
+					}
+				}
+				
+				// Swap in the new readers, then drop the references held by this manager on the old ones
+				Map<BitSet, IndexSearcher> oldSearchers = searchers;
+				readers = newReaders;
+				searchers = new HashMap<BitSet, IndexSearcher>();
+				releaseAll(oldReaders, oldSearchers);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Close the manager. Searchers that are still acquired stay usable until they are released.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		releaseAll(readers, searchers);
+		readers = null;
+		searchers = null;
+	}
+
+	// All methods below are private helper methods
+
+	// Create a searcher on one index or on a combination of indices
+	private IndexSearcher createSearcher(BitSet indexSet) {
+		if (indexSet.cardinality() == 1) {
+			return new IndexSearcher(readers[indexSet.nextSetBit(0)]);
+		}
+
+		// The multi reader takes its own reference on each sub reader, so the sub readers stay open as
+		// long as the multi reader is in use
+		IndexReader[] subReaders = new IndexReader[indexSet.cardinality()];
+		int j = 0;
+		for (int i = indexSet.nextSetBit(0); i >= 0; i = indexSet.nextSetBit(i + 1)) {
+			subReaders[j++] = readers[i];
+		}
+		return new IndexSearcher(new MultiReader(subReaders, false));
+	}
+
+	// Close the readers that were reopened by a refresh that is not swapped in
+	private void releaseReopened(IndexReader[] oldReaders, IndexReader[] newReaders) throws IOException {
+		for (int i = 0; i < newReaders.length; i++) {
+			if (newReaders[i] != null && newReaders[i] != oldReaders[i]) {
+				newReaders[i].decRef();
+			}
+		}
+	}
+
+	// Drop the references held by this manager on the readers that are open and the combined searchers
+	private void releaseAll(IndexReader[] oldReaders, Map<BitSet, IndexSearcher> oldSearchers) throws IOException {
+		for (Map.Entry<BitSet, IndexSearcher> entry : oldSearchers.entrySet()) {
+			if (entry.getKey().cardinality() > 1) {
+				entry.getValue().getIndexReader().decRef();
+			}
+		}
+		for (int i = 0; i < oldReaders.length; i++) {
+			if (oldReaders[i] != null) {
+				oldReaders[i].decRef();
+			}
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package edu.cornell.georeference;
+
+import java.util.BitSet;
+
+import org.apache.lucene.store.Directory;
+
+/**
+ * This class represents an index that is split into several indices/directories (shards) by longitude.
+ * The shards are bands of equal width from -180 to 180 degrees, so a search that is limited to a region
+ * only needs to search on the shards that overlap the region.
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+public class GeoShardedIndex {
+
+	// The shards are stored in the sub directories shard0, shard1, ... of the index directory
+	public static final String SHARD_DIRECTORY_PREFIX = "shard";
+
+	// Miles per degree of latitude
+	private static final double MILES_PER_DEGREE = 69.09;
+
+	private Directory[] shards;
+
+	/**
+	 * Create a sharded index from its shards
+	 *
+	 * @param shards  the indices/directories of the shards, in order of longitude
+	 */
+	public GeoShardedIndex(Directory[] shards) {
+		this.shards = shards;
+	}
+
+	// Getters
+
+	public Directory[] getShards() {
+		return shards;
+	}
+
+	public int getNumOfShards() {
+		return shards.length;
+	}
+
+	/**
+	 * Get the shard that a place belongs to
+	 *
+	 * @param longitude  the longitude of the place
+	 * @param numOfShards  the number of shards
+	 * @return the shard number
+	 */
+	public static int getShardNum(double longitude, int numOfShards) {
+		int shardNum = (int) Math.floor((longitude + 180) * numOfShards / 360);
+		return Math.min(Math.max(shardNum, 0), numOfShards - 1);
+	}
+
+	/**
+	 * Get the shards that overlap a longitude range
+	 *
+	 * @param minLongitude  the west end of the range
+	 * @param maxLongitude  the east end of the range
+	 * @return the set of shard numbers
+	 */
+	public BitSet getShardsInRange(double minLongitude, double maxLongitude) {
+		BitSet shardSet = new BitSet(shards.length);
+		if (minLongitude <= maxLongitude) {
+			shardSet.set(getShardNum(minLongitude, shards.length), getShardNum(maxLongitude, shards.length) + 1);
+		}
+		return shardSet;
+	}
+
+	/**
+	 * Get the shards that overlap a circle around a point
+	 *
+	 * @param latitude  the latitude of the center of the circle
+	 * @param longitude  the longitude of the center of the circle
+	 * @param rangeInMiles  the radius of the circle (in miles)
+	 * @return the set of shard numbers
+	 */
+	public BitSet getShardsNear(double latitude, double longitude, double rangeInMiles) {
+		BitSet shardSet = new BitSet(shards.length);
+
+		// The circle covers all longitudes if it reaches a pole
+		double latitudeRange = rangeInMiles / MILES_PER_DEGREE;
+		if (Math.abs(latitude) + latitudeRange >= 90) {
+			shardSet.set(0, shards.length);
+			return shardSet;
+		}
+		double longitudeRange = latitudeRange / Math.cos(Math.toRadians(Math.abs(latitude) + latitudeRange));
+		if (longitudeRange >= 180) {
+			shardSet.set(0, shards.length);
+			return shardSet;
+		}
+
+		// Split the range if it crosses the 180th meridian
+		double minLongitude = longitude - longitudeRange;
+		double maxLongitude = longitude + longitudeRange;
+		if (minLongitude < -180) {
+			shardSet.or(getShardsInRange(minLongitude + 360, 180));
+			minLongitude = -180;
+		}
+		if (maxLongitude > 180) {
+			shardSet.or(getShardsInRange(-180, maxLongitude - 360));
+			maxLongitude = 180;
+		}
+		shardSet.or(getShardsInRange(minLongitude, maxLongitude));
+		return shardSet;
+	}
+}
@@ -1,44 +1,93 @@
 package edu.cornell.georeference;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.KeywordAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.queryParser.ParseException;
-import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
-import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.spatial.tier.DistanceQueryBuilder;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.util.Version;
 
 /**
- * This class allows the user to query through their indices to find desired places.
+ * This class allows the user to query through their indices to find desired places. The places come from 
+ * named gazetteers, each of which is an index or a sharded index (e.g. the GeoNames places as the "modern" 
+ * gazetteer, the Pleiades places as the "historical" gazetteer and local gazetteers under their own names). 
+ * A search picks the gazetteers it searches on; they are searched concurrently and their top results are 
+ * merged by score, and the time each gazetteer takes is kept in its GeoSearchStats.
+ * 
+ * A bound is given by two opposite corners; longitudes beyond -180 or 180 (e.g. 50,170;60,190) make a bound
+ * that crosses the date line. The places in a bound are kept in a GeoBoundFilterCache, so searches in the 
+ * same regions don't look them up again.
  * 
  * @author Yang Yang Zheng
  *
  */
 public class Georeference {
 	
-	// Index Directories
-	Directory modernIndex;
-	Directory histIndex;
+	// Names of the gazetteers of the modern and the historical places
+	public static final String MODERN_GAZETTEER = "modern";
+	public static final String HIST_GAZETTEER = "historical";
+	
+	// Default max number of places a nearest search can ask for
+	public static final int DEFAULT_MAX_NEAREST_PLACES = 1000;
 	
-	// Search options
+	// The gazetteers that can be searched and the searcher manager that keeps the readers of their indices 
+	// open between searches; they are replaced together, not changed, when a gazetteer is added or removed, 
+	// so a search that reads them once always searches on the indices of the gazetteers it picked
+	private volatile GazetteerSet gazetteerSet = new GazetteerSet(new Gazetteer[0], new GeoSearcherManager());
+	
+	/**
+	 * Search option that searches on the modern gazetteer
+	 * 
+	 * @deprecated  use the gazetteer set of MODERN_GAZETTEER instead
+	 */
+	@Deprecated
 	public static final int MODERN_INDEX_ONLY = 1;
+	
+	/**
+	 * Search option that searches on the historical gazetteer
+	 * 
+	 * @deprecated  use the gazetteer set of HIST_GAZETTEER instead
+	 */
+	@Deprecated
 	public static final int HIST_INDEX_ONLY = 2;
+	
+	/**
+	 * Search option that searches on the modern and the historical gazetteers
+	 * 
+	 * @deprecated  use the gazetteer set of MODERN_GAZETTEER and HIST_GAZETTEER instead
+	 */
+	@Deprecated
 	public static final int BOTH = 3;
 	
     private String locSplitString;
@@ -46,12 +95,43 @@ public class Georeference {
     private int hitsPerPage;
     private double defaultRange;
     
-    private Analyzer nameAnalyzer;
+    // The max number of places a nearest search can ask for (see searchNearestPlaces())
+    private int maxNearestPlaces = DEFAULT_MAX_NEAREST_PLACES;
+    
+    // Builds the queries that find places by name
+    private GeoNameQueryBuilder nameQueryBuilder;
+    
+    // Names searched for to warm up an index that is reopened by refresh()
+    private String[] warmupPlaceNames;
+    
+    // Caches the results of searchLocation(), or null if they are not cached
+    private GeoResultCache resultCache;
+    
+    // Caches the places in the bounds of searches, or null if they are not cached
+    private GeoBoundFilterCache boundFilterCache;
+    
+    // Write the results of searches in each response format
+    private GeoResultWriter[] resultWriters = {
+    	GeoResultWriter.createResultWriter(GeoResultWriter.XML), 
+    	GeoResultWriter.createResultWriter(GeoResultWriter.JSON),
+    	GeoResultWriter.createResultWriter(GeoResultWriter.BINARY)
+    };
+    
+    // Searches the indices of a combined searcher in parallel
+    private ExecutorService searchExecutor;
+    private GeoParallelSearcher parallelSearcher;
     
-    // The distance scoring capability is bugged; it worked when used on a smaller index and breaks
-    // on big index.
+    // Runs the searches of batches; it is separate from the searchExecutor, since the searches of a batch
+    // wait for the searches of the indices
+    private ExecutorService batchExecutor;
+    
+    // Whether the distances from the near points affect the score (see setDistanceScore())
     private boolean distanceScore; 
     
+    // Whether there have been nearest searches, so the spatial trees of reopened indices are built when they
+    // are warmed up
+    private volatile boolean nearestSearched;
+    
     /**
      * Create a georeference object by specifying the indices and a bunch of details
      * 
@@ -67,18 +147,18 @@ public class Georeference {
      */
     public Georeference(Directory modernIndex, Directory histIndex, String locSplitString, 
     		String latLngSplitString, int hitsPerPage, double defaultRange) {
-    	this.modernIndex = modernIndex;
-    	this.histIndex = histIndex;
+    	putGazetteer(MODERN_GAZETTEER, modernIndex, null);
+    	putGazetteer(HIST_GAZETTEER, histIndex, null);
     	this.locSplitString = locSplitString;
     	this.latLngSplitString = latLngSplitString;
     	this.hitsPerPage = hitsPerPage;
     	this.defaultRange = defaultRange;
+    	this.resultCache = new GeoResultCache();
+    	this.boundFilterCache = new GeoBoundFilterCache();
+    	createParallelSearcher();
     	
-    	// Choose a default analyzer for name queries
-    	nameAnalyzer = new KeywordAnalyzer();
-    	
-    	// Set distanceScore to false, because it is not fully working
-    	distanceScore = false;
+    	// Name queries are analyzed the same way as the names in the index
+    	nameQueryBuilder = new GeoNameQueryBuilder();
     }
     
 	/**
@@ -88,38 +168,130 @@ public class Georeference {
      * @param histIndex  the index/directory that stores the historical places
      */
     public Georeference(Directory modernIndex, Directory histIndex) {
-    	this.modernIndex = modernIndex;
-    	this.histIndex = histIndex;
-    	
+    	this();
+    	putGazetteer(MODERN_GAZETTEER, modernIndex, null);
+    	putGazetteer(HIST_GAZETTEER, histIndex, null);
+    }
+    
+	/**
+     * Create a georeference object without gazetteers and use default values for other fields. The
+     * gazetteers are added with addGazetteer().
+     */
+    public Georeference() {
     	// Set these to some default values;
     	locSplitString = ";";
     	latLngSplitString = ",";
     	hitsPerPage = 20;
     	defaultRange = Double.MAX_VALUE;
+    	resultCache = new GeoResultCache();
+    	boundFilterCache = new GeoBoundFilterCache();
+    	createParallelSearcher();
     	
-    	// Choose a default analyzer for name queries
-    	nameAnalyzer = new KeywordAnalyzer();
+    	// Name queries are analyzed the same way as the names in the index
+    	nameQueryBuilder = new GeoNameQueryBuilder();
+    }
     
-    	// Set distanceScore to false, because it is not fully working
-    	distanceScore = false;
+    /**
+     * Create a georeference object with a modern index that is split by longitude and use default
+     * values for other fields. Searches that are limited to a region only search on the shards that
+     * overlap the region.
+     * 
+     * @param modernIndex  the sharded index that stores the modern day places
+     * @param histIndex  the index/directory that stores the historical places
+     */
+    public Georeference(GeoShardedIndex modernIndex, Directory histIndex) {
+    	this();
+    	putGazetteer(MODERN_GAZETTEER, null, modernIndex);
+    	putGazetteer(HIST_GAZETTEER, histIndex, null);
     }
     
     // Getters and setters
     
     public Directory getModernIndex() {
-		return modernIndex;
+    	Gazetteer gazetteer = getGazetteer(MODERN_GAZETTEER);
+		return gazetteer != null ? gazetteer.index : null;
 	}
 
 	public void setModernIndex(Directory modernIndex) {
-		this.modernIndex = modernIndex;
+		putGazetteer(MODERN_GAZETTEER, modernIndex, null);
+	}
+
+	public GeoShardedIndex getModernShards() {
+    	Gazetteer gazetteer = getGazetteer(MODERN_GAZETTEER);
+		return gazetteer != null ? gazetteer.shards : null;
+	}
+
+	public void setModernShards(GeoShardedIndex modernShards) {
+		putGazetteer(MODERN_GAZETTEER, null, modernShards);
 	}
 
 	public Directory getHistIndex() {
-		return histIndex;
+    	Gazetteer gazetteer = getGazetteer(HIST_GAZETTEER);
+		return gazetteer != null ? gazetteer.index : null;
 	}
 
 	public void setHistIndex(Directory histIndex) {
-		this.histIndex = histIndex;
+		putGazetteer(HIST_GAZETTEER, histIndex, null);
+	}
+	
+	/**
+	 * Add a gazetteer that can be searched, or replace the index of a gazetteer that has already been added
+	 * 
+	 * @param name  the name of the gazetteer, which searches use to pick it
+	 * @param index  the index/directory that stores the places of the gazetteer
+	 */
+	public void addGazetteer(String name, Directory index) {
+		putGazetteer(name, index, null);
+	}
+	
+	/**
+	 * Add a gazetteer whose index is split by longitude, or replace the index of a gazetteer that has already
+	 * been added. Searches that are limited to a region only search on the shards that overlap the region.
+	 * 
+	 * @param name  the name of the gazetteer, which searches use to pick it
+	 * @param index  the sharded index that stores the places of the gazetteer
+	 */
+	public void addGazetteer(String name, GeoShardedIndex index) {
+		putGazetteer(name, null, index);
+	}
+	
+	/**
+	 * Remove a gazetteer
+	 * 
+	 * @param name  the name of the gazetteer
+	 * @return whether or not the gazetteer had been added
+	 */
+	public boolean removeGazetteer(String name) {
+		if (getGazetteer(name) == null) {
+			return false;
+		}
+		putGazetteer(name, null, null);
+		return true;
+	}
+	
+	/**
+	 * Get the names of the gazetteers that can be searched
+	 * 
+	 * @return the names in the order the gazetteers were added
+	 */
+	public List<String> getGazetteerNames() {
+		Gazetteer[] current = gazetteerSet.gazetteers;
+		List<String> names = new ArrayList<String>(current.length);
+		for (Gazetteer gazetteer : current) {
+			names.add(gazetteer.name);
+		}
+		return names;
+	}
+	
+	/**
+	 * Get the latency of the searches on a gazetteer
+	 * 
+	 * @param name  the name of the gazetteer
+	 * @return the statistics, or null if there is no such gazetteer
+	 */
+	public GeoSearchStats getSearchStats(String name) {
+		Gazetteer gazetteer = getGazetteer(name);
+		return gazetteer != null ? gazetteer.stats : null;
 	}
 
 	public String getLocSplitString() {
@@ -153,6 +325,106 @@ public class Georeference {
 	public void setDefaultRange(double defaultRange) {
 		this.defaultRange = defaultRange;
 	}
+	
+	public String[] getWarmupPlaceNames() {
+		return warmupPlaceNames;
+	}
+
+	/**
+	 * Set the place names that are searched for on an index reopened by refresh() before the index is used,
+	 * so that the first searches on it are not slowed down by loading it
+	 * 
+	 * @param warmupPlaceNames  the place names
+	 */
+	public void setWarmupPlaceNames(String... warmupPlaceNames) {
+		this.warmupPlaceNames = warmupPlaceNames;
+	}
+	
+	public GeoResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Set the cache of the results of searchLocation(); the results are cached by default
+	 * 
+	 * @param resultCache  the cache, or null to not cache the results
+	 */
+	public void setResultCache(GeoResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+	
+	public int getMaxNearestPlaces() {
+		return maxNearestPlaces;
+	}
+
+	/**
+	 * Set the max number of places a nearest search can ask for; the searches that ask for more are rejected
+	 * 
+	 * @param maxNearestPlaces  the max number of places
+	 */
+	public void setMaxNearestPlaces(int maxNearestPlaces) {
+		this.maxNearestPlaces = maxNearestPlaces;
+	}
+	
+	public GeoBoundFilterCache getBoundFilterCache() {
+		return boundFilterCache;
+	}
+
+	/**
+	 * Set the cache of the places in the bounds of searches; the places are cached by default
+	 * 
+	 * @param boundFilterCache  the cache, or null to look the places up for every search
+	 */
+	public void setBoundFilterCache(GeoBoundFilterCache boundFilterCache) {
+		this.boundFilterCache = boundFilterCache;
+	}
+	
+	public boolean isDistanceScore() {
+		return distanceScore;
+	}
+
+	/**
+	 * Set whether the places found near points are ranked by their distance from the points, using the 
+	 * distanceScoreOption of the search (see DistanceScoreQuery). It is off by default, so places are only
+	 * ranked by how well their names match.
+	 * 
+	 * @param distanceScore  whether to rank the places by distance
+	 */
+	public void setDistanceScore(boolean distanceScore) {
+		this.distanceScore = distanceScore;
+	}
+	
+	/**
+	 * Reopen the indices if they have changed (e.g. after they are rebuilt or updated) so that new searches
+	 * see the changes. The reopened indices are warmed up first (see setWarmupPlaceNames()), and searches
+	 * use the old indices until then. Searches that are already running finish on the old indices.
+	 * 
+	 * @return whether or not any of the indices has been reopened
+	 * @throws CorruptIndexException
+	 * @throws IOException
+	 */
+	public boolean refresh() throws CorruptIndexException, IOException {
+		boolean refreshed = gazetteerSet.searcherManager.refresh();
+		if (refreshed) {
+			invalidateResultCache();
+		}
+		return refreshed;
+	}
+	
+	/**
+	 * Close the indices that are opened for searching. Searches that are already running can still finish.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		searchExecutor.shutdown();
+		synchronized (this) {
+			if (batchExecutor != null) {
+				batchExecutor.shutdown();
+			}
+		}
+		gazetteerSet.searcherManager.close();
+	}
     
     /**
      * This method can search through the indices to find the latitude-longitude coordinate of the place 
@@ -174,20 +446,312 @@ public class Georeference {
      */
     public String searchLocation(String placeName, String bound, String nearPoints, int searchOption, 
     		int distanceScoreOption) throws CorruptIndexException, IOException, ParseException {
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	searchLocation(placeName, bound, nearPoints, searchOption, distanceScoreOption, null, GeoResultWriter.XML, out);
+    	return out.toString("UTF-8");
+    }
+    
+    /**
+     * This method can search through the indices to find the latitude-longitude coordinate of the place 
+     * you are looking for by returning a page of the list of possible matching results. The page continues
+     * after the page the cursor was returned with.
+     * 
+     * @param placeName  the name of the place you want to search for
+     * @param bound  a boundary box that filters out places outside of the box (default format: 0,0;1,1)
+     * @param nearPoints  points and their ranges (in miles) so that they can affect the score (default 
+     * format(0,0,100;1,1,1000;...); if the ranges are not specified, the method will use the default
+     * range value
+     * @param searchOption  controls with index to search on
+     * @param distanceScoreOption  how distances from the near points affect the score
+     * @param cursor  the cursor attribute of the places of the previous page, or null for the first page
+     * @return a string in xml format that lists out the places of the page; the places element has the 
+     * cursor of the next page if there are more places
+     * @throws CorruptIndexException
+     * @throws IOException
+     * @throws ParseException 
+     * @throws IllegalArgumentException  if the cursor is invalid or the indices have changed since it was returned
+     */
+    public String searchLocation(String placeName, String bound, String nearPoints, int searchOption, 
+    		int distanceScoreOption, String cursor) throws CorruptIndexException, IOException, ParseException {
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	searchLocation(placeName, bound, nearPoints, searchOption, distanceScoreOption, cursor, GeoResultWriter.XML, 
+    			out);
+    	return out.toString("UTF-8");
+    }
+    
+    /**
+     * This method can search through the indices to find the latitude-longitude coordinate of the place 
+     * you are looking for and writes the list of possible matching results to an output in a response format 
+     * as they are found, so that large results are not held in memory. 
+     * 
+     * @param placeName  the name of the place you want to search for
+     * @param bound  a boundary box that filters out places outside of the box (default format: 0,0;1,1)
+     * @param nearPoints  points and their ranges (in miles) so that they can affect the score (default 
+     * format(0,0,100;1,1,1000;...); if the ranges are not specified, the method will use the default
+     * range value
+     * @param searchOption  controls with index to search on
+     * @param distanceScoreOption  how distances from the near points affect the score
+     * @param format  the response format (GeoResultWriter.XML, JSON or BINARY)
+     * @param out  the output the places are written to
+     * @throws CorruptIndexException
+     * @throws IOException
+     * @throws ParseException 
+     */
+    public void searchLocation(String placeName, String bound, String nearPoints, int searchOption, 
+    		int distanceScoreOption, int format, OutputStream out) throws CorruptIndexException, IOException, 
+    		ParseException {
+    	searchLocation(placeName, bound, nearPoints, searchOption, distanceScoreOption, null, format, out);
+    }
+    
+    /**
+     * This method can search through the indices to find the latitude-longitude coordinate of the place 
+     * you are looking for and writes a page of the list of possible matching results to an output in a 
+     * response format as they are found. The page continues after the page the cursor was returned with;
+     * a page deep into the results costs the same as the first page.
+     * 
+     * @param placeName  the name of the place you want to search for
+     * @param bound  a boundary box that filters out places outside of the box (default format: 0,0;1,1)
+     * @param nearPoints  points and their ranges (in miles) so that they can affect the score (default 
+     * format(0,0,100;1,1,1000;...); if the ranges are not specified, the method will use the default
+     * range value
+     * @param searchOption  controls with index to search on
+     * @param distanceScoreOption  how distances from the near points affect the score
+     * @param cursor  the cursor of the previous page, or null for the first page
+     * @param format  the response format (GeoResultWriter.XML, JSON or BINARY)
+     * @param out  the output the places are written to
+     * @throws CorruptIndexException
+     * @throws IOException
+     * @throws ParseException 
+     * @throws IllegalArgumentException  if the cursor is invalid or the indices have changed since it was 
+     * returned; nothing is written then
+     */
+    public void searchLocation(String placeName, String bound, String nearPoints, int searchOption, 
+    		int distanceScoreOption, String cursor, int format, OutputStream out) throws CorruptIndexException, 
+    		IOException, ParseException {
+    	searchLocation(placeName, bound, nearPoints, getGazetteerNames(searchOption), distanceScoreOption, cursor, 
+    			format, out);
+    }
+    
+    /**
+     * This method can search through the gazetteers to find the latitude-longitude coordinate of the place 
+     * you are looking for by returning a list of possible matching results. 
+     * 
+     * @param placeName  the name of the place you want to search for
+     * @param bound  a boundary box that filters out places outside of the box (default format: 0,0;1,1)
+     * @param nearPoints  points and their ranges (in miles) so that they can affect the score (default 
+     * format(0,0,100;1,1,1000;...); if the ranges are not specified, the method will use the default
+     * range value
+     * @param gazetteerNames  the names of the gazetteers to search on, or null to search on all of them
+     * @param distanceScoreOption  how distances from the near points affect the score
+     * @return a string in xml format that lists out all places (name and their latitude and longitude) 
+     * that match the search; each search result is scored; the search result list is sorted by their
+     * score
+     * @throws CorruptIndexException
+     * @throws IOException
+     * @throws ParseException 
+     * @throws IllegalArgumentException  if one of the gazetteers does not exist
+     */
+    public String searchLocation(String placeName, String bound, String nearPoints, Set<String> gazetteerNames, 
+    		int distanceScoreOption) throws CorruptIndexException, IOException, ParseException {
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	searchLocation(placeName, bound, nearPoints, gazetteerNames, distanceScoreOption, null, GeoResultWriter.XML, 
+    			out);
+    	return out.toString("UTF-8");
+    }
+    
+    /**
+     * This method can search through the gazetteers to find the latitude-longitude coordinate of the place 
+     * you are looking for and writes a page of the list of possible matching results to an output in a 
+     * response format as they are found. The gazetteers are searched concurrently. The page continues 
+     * after the page the cursor was returned with.
+     * 
+     * @param placeName  the name of the place you want to search for
+     * @param bound  a boundary box that filters out places outside of the box (default format: 0,0;1,1)
+     * @param nearPoints  points and their ranges (in miles) so that they can affect the score (default 
+     * format(0,0,100;1,1,1000;...); if the ranges are not specified, the method will use the default
+     * range value
+     * @param gazetteerNames  the names of the gazetteers to search on, or null to search on all of them
+     * @param distanceScoreOption  how distances from the near points affect the score
+     * @param cursor  the cursor of the previous page, or null for the first page
+     * @param format  the response format (GeoResultWriter.XML, JSON or BINARY)
+     * @param out  the output the places are written to
+     * @throws CorruptIndexException
+     * @throws IOException
+     * @throws ParseException 
+     * @throws IllegalArgumentException  if one of the gazetteers does not exist, or if the cursor is invalid 
+     * or the indices have changed since it was returned; nothing is written then
+     */
+    public void searchLocation(String placeName, String bound, String nearPoints, Set<String> gazetteerNames, 
+    		int distanceScoreOption, String cursor, int format, OutputStream out) throws CorruptIndexException, 
+    		IOException, ParseException {
+    	searchLocation(placeName, bound, nearPoints, gazetteerNames, distanceScoreOption, cursor, format, false, out, 
+    			null);
+    }
+    
+    /**
+     * This method runs a batch of searches for places by name, such as all the place names of a document, and
+     * writes their results to an output in a response format, in the order of the batch. The searches run on
+     * a bounded pool of threads and share the searchers of the indices, and each result is written as soon as
+     * it and the results before it are done.
+     * 
+     * @param entries  the place names, bounds and near points of the searches (see searchLocation())
+     * @param searchOption  controls with index to search on
+     * @param distanceScoreOption  how distances from the near points affect the score
+     * @param format  the response format (GeoResultWriter.XML, JSON or BINARY)
+     * @param out  the output the results are written to
+     * @throws CorruptIndexException
+     * @throws IOException
+     * @throws ParseException 
+     */
+    public void searchLocations(List<GeoBatchEntry> entries, int searchOption, int distanceScoreOption, int format, 
+    		OutputStream out) throws CorruptIndexException, IOException, ParseException {
+    	searchLocations(entries, getGazetteerNames(searchOption), distanceScoreOption, format, out);
+    }
+    
+    /**
+     * This method runs a batch of searches for places by name on the gazetteers, such as all the place names 
+     * of a document, and writes their results to an output in a response format, in the order of the batch. 
+     * The searches run on a bounded pool of threads and share the searchers of the indices, and each result 
+     * is written as soon as it and the results before it are done.
+     * 
+     * @param entries  the place names, bounds and near points of the searches (see searchLocation())
+     * @param gazetteerNames  the names of the gazetteers to search on, or null to search on all of them
+     * @param distanceScoreOption  how distances from the near points affect the score
+     * @param format  the response format (GeoResultWriter.XML, JSON or BINARY)
+     * @param out  the output the results are written to
+     * @throws CorruptIndexException
+     * @throws IOException
+     * @throws ParseException 
+     * @throws IllegalArgumentException  if one of the gazetteers does not exist, or if the bound or the near
+     * points of one of the searches are invalid; nothing is written then
+     */
+    public void searchLocations(List<GeoBatchEntry> entries, final Set<String> gazetteerNames, 
+    		final int distanceScoreOption, final int format, OutputStream out) throws CorruptIndexException, 
+    		IOException, ParseException {
+    	GeoResultWriter resultWriter = getResultWriter(format);
+    	
+    	// The whole batch is checked before any result is written, since an error can't be reported once the
+    	// results are being streamed
+    	getIndexSet(gazetteerSet.gazetteers, gazetteerNames, null, null);
+    	for (int i = 0; i < entries.size(); i++) {
+    		checkBatchEntry(i, entries.get(i));
+    	}
+    	final BatchSearchers searchers = new BatchSearchers();
+    	ExecutorService executor = getBatchExecutor();
+    	
+    	// Only a few searches are queued ahead of the result that is written next, so that a large batch 
+    	// does not hold all of its results in memory
+    	int maxPending = 2 * Runtime.getRuntime().availableProcessors();
+    	LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+    	try {
+    		resultWriter.writeBatchStart(entries.size(), out);
+    		int next = 0;
+    		for (int i = 0; i < entries.size(); i++) {
+    			while (next < entries.size() && pending.size() < maxPending) {
+    				final GeoBatchEntry entry = entries.get(next++);
+    				pending.add(executor.submit(new Callable<byte[]>() {
+    					// Override
+    					public byte[] call() throws Exception {
+    						ByteArrayOutputStream result = new ByteArrayOutputStream();
+    						searchLocation(entry.getPlaceName(), entry.getBound(), entry.getNearPoints(), gazetteerNames, 
+    								distanceScoreOption, null, format, true, result, searchers);
+    						return result.toByteArray();
+    					}
+    				}));
+    			}
+    			resultWriter.writeBatchEntry(i, GeoParallelSearcher.getResult(pending.removeFirst()), out);
+    			out.flush();
+    		}
+    		resultWriter.writeBatchEnd(out);
+    	} finally {
+    		// The searches that have not started are cancelled and the running ones are waited for, since they
+    		// use the searchers; they are not interrupted, as an interrupt closes the channels of NIO directories
+    		for (Future<byte[]> future : pending) {
+    			if (!future.cancel(false)) {
+    				awaitSearch(future);
+    			}
+    		}
+    		searchers.release();
+    	}
+    }
+    
+    // Wait for a search of a batch to finish, whatever its result
+    private static void awaitSearch(Future<byte[]> future) {
+    	boolean interrupted = false;
+    	while (true) {
+    		try {
+    			future.get();
+    			break;
+    		} catch (InterruptedException e) {
+    			interrupted = true;
+    		} catch (ExecutionException e) {
+    			break;
+    		}
+    	}
+    	if (interrupted) {
+    		Thread.currentThread().interrupt();
+    	}
+    }
+    
+    // Check that the bound and the near points of a search of a batch can be parsed
+    private void checkBatchEntry(int i, GeoBatchEntry entry) {
+    	try {
+    		getBoundary(entry.getBound());
+    		if (entry.getNearPoints() != null && !entry.getNearPoints().equals("")) {
+    			getNearbyPoints(entry.getNearPoints());
+    		}
+    	} catch (RuntimeException e) {
+    		throw new IllegalArgumentException("invalid search " + (i + 1) + " of the batch: " + entry, e);
+    	}
+    }
+    
+    // Search for a place by name; the result is written as an entry of a batch if batchEntry is true; the
+    // searchers of a batch are shared by its searches, or null if the search is not part of a batch
+    private void searchLocation(final String placeName, final String bound, final String nearPoints, 
+    		Set<String> gazetteerNames, final int distanceScoreOption, String cursor, int format, boolean batchEntry, 
+    		OutputStream out, BatchSearchers searchers) throws CorruptIndexException, IOException, ParseException {
+    	GeoResultWriter resultWriter = getResultWriter(format);
+    	GeoSearchCursor after = parseCursor(cursor);
+    	
+    	// Use the cached result of the same search
+    	GeoResultCache cache = resultCache;
+    	String cacheKey = null;
+    	long cacheGeneration = 0;
+    	GeoResultCache.RecordingOutputStream recorder = null;
+    	if (cache != null) {
+    		cacheKey = createCacheKey(placeName, bound, nearPoints, gazetteerNames, distanceScoreOption, cursor, format, 
+    				batchEntry);
+    		cacheGeneration = cache.getGeneration();
+    		byte[] result = cache.get(cacheKey);
+    		if (result != null) {
+    			out.write(result);
+    			out.flush();
+    			return;
+    		}
+    		
+    		// Keep a copy of the result as it is written, so it can be cached
+    		recorder = cache.createRecordingOutputStream(out, cacheKey);
+    		out = recorder;
+    	}
+		
+	    // Build the query; every index that is searched in parallel gets its own copy
+    	GeoParallelSearcher.QuerySource querySource = new GeoParallelSearcher.QuerySource() {
+    		// Override
+    		public Query createQuery(IndexReader reader) {
+    			GeoIndexLayout layout = GeoIndexLayout.read(reader);
+    			Query query = createNameBoundQuery(placeName, bound, layout);
+    			return includeDistanceQueries(query, nearPoints, distanceScoreOption, layout);
+    		}
+    	};
 		
-    	IndexSearcher searcher = createSearcher(searchOption);
-	    
-	    // Build the query
-		Query query = createNameBoundQuery(placeName, bound);
-		List<DistanceQueryBuilder> distanceQueries = createDistanceQueries(nearPoints);
-		query = includeDistanceQueries(query, distanceQueries, distanceScoreOption);
+		// Only search on the shards of sharded gazetteers that can have results
+    	double[][] points = nearPoints != null && !nearPoints.equals("") ? getNearbyPoints(nearPoints) : null;
 		
 		// Perform the search
-		TopScoreDocCollector collector = TopScoreDocCollector.create(hitsPerPage, true);
-		searcher.search(query, collector);
-		ScoreDoc[] hits = collector.topDocs().scoreDocs;
-	    
-		return getXMLFromHits(searcher, hits);
+		search(querySource, gazetteerNames, getBoundary(bound), points, after, resultWriter, batchEntry, out, searchers);
+		if (recorder != null && recorder.getRecording() != null) {
+			cache.put(cacheKey, recorder.getRecording(), cacheGeneration);
+		}
 	}
     
     // Other versions of the same method above
@@ -251,37 +815,159 @@ public class Georeference {
      * @throws IOException
      * @throws ParseException 
      */
-    public String searchNearbyPlaces(String placeName, double latitude, double longitude, double rangeInMiles, boolean inclusive, int searchOption ,int distanceScoreOption) throws IOException, ParseException {
-    	IndexSearcher searcher = createSearcher(searchOption);
+    public String searchNearbyPlaces(String placeName, double latitude, double longitude, double rangeInMiles, boolean inclusive, int searchOption, int distanceScoreOption) throws IOException, ParseException {
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	searchNearbyPlaces(placeName, latitude, longitude, rangeInMiles, inclusive, searchOption, distanceScoreOption, 
+    			null, GeoResultWriter.XML, out);
+    	return out.toString("UTF-8");
+    }
+    
+    /**
+     * This method finds a page of the list of nearby places to the specified place. The page continues after 
+     * the page the cursor was returned with. The score depends on the distance of the result from the 
+     * specified place.
+     * 
+     * @param placeName  the name of the place you want to search for
+     * @param latitude  the latitude of the place you want to search for
+     * @param longitude the longitude of the place you want to search for
+     * @param rangeInMiles  only return results in the specified range (in miles)
+     * @param inclusive  whether or not to include the specified place in the result list
+     * @param searchOption  controls with index to search on
+     * @param distanceScoreOption  how the distance from the specified place to the result affects the score
+     * @param cursor  the cursor attribute of the places of the previous page, or null for the first page
+     * @return a string in xml format that lists out the places of the page; the places element has the 
+     * cursor of the next page if there are more places
+     * @throws IOException
+     * @throws ParseException 
+     * @throws IllegalArgumentException  if the cursor is invalid or the indices have changed since it was returned
+     */
+    public String searchNearbyPlaces(String placeName, double latitude, double longitude, double rangeInMiles, 
+    		boolean inclusive, int searchOption, int distanceScoreOption, String cursor) throws IOException, 
+    		ParseException {
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	searchNearbyPlaces(placeName, latitude, longitude, rangeInMiles, inclusive, searchOption, distanceScoreOption, 
+    			cursor, GeoResultWriter.XML, out);
+    	return out.toString("UTF-8");
+    }
+    
+    /**
+     * This method finds a list of nearby places to the specified place and writes it to an output in a 
+     * response format as the places are found, so that large results are not held in memory. The score depends on the distance
+     * of the result from the specified place.
+     * 
+     * @param placeName  the name of the place you want to search for
+     * @param latitude  the latitude of the place you want to search for
+     * @param longitude the longitude of the place you want to search for
+     * @param rangeInMiles  only return results in the specified range (in miles)
+     * @param inclusive  whether or not to include the specified place in the result list
+     * @param searchOption  controls with index to search on
+     * @param distanceScoreOption  how the distance from the specified place to the result affects the score
+     * @param format  the response format (GeoResultWriter.XML, JSON or BINARY)
+     * @param out  the output the places are written to
+     * @throws IOException
+     * @throws ParseException 
+     */
+    public void searchNearbyPlaces(String placeName, double latitude, double longitude, double rangeInMiles, boolean inclusive, int searchOption, int distanceScoreOption, int format, OutputStream out) throws IOException, ParseException {
+    	searchNearbyPlaces(placeName, latitude, longitude, rangeInMiles, inclusive, searchOption, distanceScoreOption, 
+    			null, format, out);
+    }
+    
+    /**
+     * This method finds a page of the list of nearby places to the specified place and writes it to an output 
+     * in a response format as the places are found. The page continues after the page the cursor was 
+     * returned with; a page deep into the results costs the same as the first page. The score depends on 
+     * the distance of the result from the specified place.
+     * 
+     * @param placeName  the name of the place you want to search for
+     * @param latitude  the latitude of the place you want to search for
+     * @param longitude the longitude of the place you want to search for
+     * @param rangeInMiles  only return results in the specified range (in miles)
+     * @param inclusive  whether or not to include the specified place in the result list
+     * @param searchOption  controls with index to search on
+     * @param distanceScoreOption  how the distance from the specified place to the result affects the score
+     * @param cursor  the cursor of the previous page, or null for the first page
+     * @param format  the response format (GeoResultWriter.XML, JSON or BINARY)
+     * @param out  the output the places are written to
+     * @throws IOException
+     * @throws ParseException 
+     * @throws IllegalArgumentException  if the cursor is invalid or the indices have changed since it was 
+     * returned; nothing is written then
+     */
+    public void searchNearbyPlaces(String placeName, double latitude, double longitude, double rangeInMiles, 
+    		boolean inclusive, int searchOption, int distanceScoreOption, String cursor, int format, OutputStream out) 
+    		throws IOException, ParseException {
+    	searchNearbyPlaces(placeName, latitude, longitude, rangeInMiles, inclusive, getGazetteerNames(searchOption), 
+    			distanceScoreOption, cursor, format, out);
+    }
+    
+    /**
+     * This method finds a list of nearby places to the specified place in the gazetteers. The score depends 
+     * on the distance of the result from the specified place.
+     * 
+     * @param placeName  the name of the place you want to search for
+     * @param latitude  the latitude of the place you want to search for
+     * @param longitude the longitude of the place you want to search for
+     * @param rangeInMiles  only return results in the specified range (in miles)
+     * @param inclusive  whether or not to include the specified place in the result list
+     * @param gazetteerNames  the names of the gazetteers to search on, or null to search on all of them
+     * @param distanceScoreOption  how the distance from the specified place to the result affects the score
+     * @return a string in xml format that lists out all places (name and their latitude and longitude) 
+     * that are in the range; each search result is scored; the search result list is sorted by their
+     * score
+     * @throws IOException
+     * @throws ParseException 
+     * @throws IllegalArgumentException  if one of the gazetteers does not exist
+     */
+    public String searchNearbyPlaces(String placeName, double latitude, double longitude, double rangeInMiles, 
+    		boolean inclusive, Set<String> gazetteerNames, int distanceScoreOption) throws IOException, ParseException {
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	searchNearbyPlaces(placeName, latitude, longitude, rangeInMiles, inclusive, gazetteerNames, distanceScoreOption, 
+    			null, GeoResultWriter.XML, out);
+    	return out.toString("UTF-8");
+    }
+    
+    /**
+     * This method finds a page of the list of nearby places to the specified place in the gazetteers and 
+     * writes it to an output in a response format as the places are found. The gazetteers are searched 
+     * concurrently. The page continues after the page the cursor was returned with. The score depends on 
+     * the distance of the result from the specified place.
+     * 
+     * @param placeName  the name of the place you want to search for
+     * @param latitude  the latitude of the place you want to search for
+     * @param longitude the longitude of the place you want to search for
+     * @param rangeInMiles  only return results in the specified range (in miles)
+     * @param inclusive  whether or not to include the specified place in the result list
+     * @param gazetteerNames  the names of the gazetteers to search on, or null to search on all of them
+     * @param distanceScoreOption  how the distance from the specified place to the result affects the score
+     * @param cursor  the cursor of the previous page, or null for the first page
+     * @param format  the response format (GeoResultWriter.XML, JSON or BINARY)
+     * @param out  the output the places are written to
+     * @throws IOException
+     * @throws ParseException 
+     * @throws IllegalArgumentException  if one of the gazetteers does not exist, or if the cursor is invalid 
+     * or the indices have changed since it was returned; nothing is written then
+     */
+    public void searchNearbyPlaces(final String placeName, final double latitude, final double longitude, 
+    		final double rangeInMiles, final boolean inclusive, Set<String> gazetteerNames, 
+    		final int distanceScoreOption, String cursor, int format, OutputStream out) throws IOException, 
+    		ParseException {
+    	GeoResultWriter resultWriter = getResultWriter(format);
+    	GeoSearchCursor after = parseCursor(cursor);
     	
-    	// Build the query
-    	DistanceQueryBuilder dq = new DistanceQueryBuilder(latitude, longitude, rangeInMiles, 
-				GeoIndexWriter.SPT_LAT_FIELD, GeoIndexWriter.SPT_LNG_FIELD, GeoIndexWriter.TIER_PREFIX_FIELD, 
-				true, GeoIndexWriter.START_TIER, GeoIndexWriter.END_TIER);
-    	BooleanQuery bq = new BooleanQuery();
-    	bq.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
-    	if (!inclusive) {
-	    	Query nameQuery = createNameQuery(placeName);
-	    	if (nameQuery != null) {
-	    		bq.add(nameQuery, BooleanClause.Occur.MUST_NOT);
-	    	}
-    	}
+    	// Build the query; every index that is searched in parallel gets its own copy
+    	GeoParallelSearcher.QuerySource querySource = new GeoParallelSearcher.QuerySource() {
+    		// Override
+    		public Query createQuery(IndexReader reader) {
+    			return createNearbyQuery(placeName, latitude, longitude, rangeInMiles, inclusive, distanceScoreOption, 
+    					GeoIndexLayout.read(reader));
+    		}
+    	};
     	
-    	// Whether or not to use DistanceScoreQuery to allow it score the results by distance
-    	Query query = null;
-    	if (distanceScore) {
-    		query = new DistanceScoreQuery(dq.getQuery(bq), dq, distanceScoreOption);
-    	}
-    	else {
-    		query = dq.getQuery(bq);
-    	}
+    	// Only search on the shards of sharded gazetteers that are in range
+    	double[][] points = {{latitude, longitude, rangeInMiles}};
     	
     	// Perform the search
-    	TopScoreDocCollector collector = TopScoreDocCollector.create(hitsPerPage, true);
-    	searcher.search(query, collector);
-    	ScoreDoc[] hits = collector.topDocs().scoreDocs;
-    	
-    	return getXMLFromHits(searcher, hits);
+    	search(querySource, gazetteerNames, null, points, after, resultWriter, false, out, null);
     }
     
     // Other versions of the same method above
@@ -310,6 +996,86 @@ public class Georeference {
     	return searchNearbyPlaces(placeName, point[0][0], point[0][1], point[0][2], inclusive, searchOption, distanceScoreOption);
     }
     
+    /**
+     * This method finds a list of nearby places to the specified place and writes it to an output in a 
+     * response format as the places are found. The score depends on the distance of the result from the specified place.
+     * 
+     * @param placeName  the name of the place you want to search for
+     * @param pointInfo  the latitude and longitude of the specified place and the range/distance (in miles) you 
+     * want your results to be in (default format: 0,0,100)
+     * @param inclusive  whether or not to include the specified place in the result list
+     * @param searchOption  controls with index to search on
+     * @param distanceScoreOption  how the distance from the specified place to the result affects the score
+     * @param format  the response format (GeoResultWriter.XML, JSON or BINARY)
+     * @param out  the output the places are written to
+     * @return whether or not the point info is valid; nothing is written if it is not
+     * @throws IOException
+     * @throws ParseException 
+     */
+    public boolean searchNearbyPlaces(String placeName, String pointInfo, boolean inclusive, int searchOption, 
+    		int distanceScoreOption, int format, OutputStream out) throws IOException, ParseException {
+    	return searchNearbyPlaces(placeName, pointInfo, inclusive, searchOption, distanceScoreOption, null, format, out);
+    }
+    
+    /**
+     * This method finds a page of the list of nearby places to the specified place and writes it to an output 
+     * in a response format as the places are found. The page continues after the page the cursor was 
+     * returned with. The score depends on the distance of the result from the specified place.
+     * 
+     * @param placeName  the name of the place you want to search for
+     * @param pointInfo  the latitude and longitude of the specified place and the range/distance (in miles) you 
+     * want your results to be in (default format: 0,0,100)
+     * @param inclusive  whether or not to include the specified place in the result list
+     * @param searchOption  controls with index to search on
+     * @param distanceScoreOption  how the distance from the specified place to the result affects the score
+     * @param cursor  the cursor of the previous page, or null for the first page
+     * @param format  the response format (GeoResultWriter.XML, JSON or BINARY)
+     * @param out  the output the places are written to
+     * @return whether or not the point info is valid; nothing is written if it is not
+     * @throws IOException
+     * @throws ParseException 
+     * @throws IllegalArgumentException  if the cursor is invalid or the indices have changed since it was 
+     * returned; nothing is written then
+     */
+    public boolean searchNearbyPlaces(String placeName, String pointInfo, boolean inclusive, int searchOption, 
+    		int distanceScoreOption, String cursor, int format, OutputStream out) throws IOException, ParseException {
+    	return searchNearbyPlaces(placeName, pointInfo, inclusive, getGazetteerNames(searchOption), 
+    			distanceScoreOption, cursor, format, out);
+    }
+    
+    /**
+     * This method finds a page of the list of nearby places to the specified place in the gazetteers and 
+     * writes it to an output in a response format as the places are found. The page continues after the 
+     * page the cursor was returned with. The score depends on the distance of the result from the specified 
+     * place.
+     * 
+     * @param placeName  the name of the place you want to search for
+     * @param pointInfo  the latitude and longitude of the specified place and the range/distance (in miles) you 
+     * want your results to be in (default format: 0,0,100)
+     * @param inclusive  whether or not to include the specified place in the result list
+     * @param gazetteerNames  the names of the gazetteers to search on, or null to search on all of them
+     * @param distanceScoreOption  how the distance from the specified place to the result affects the score
+     * @param cursor  the cursor of the previous page, or null for the first page
+     * @param format  the response format (GeoResultWriter.XML, JSON or BINARY)
+     * @param out  the output the places are written to
+     * @return whether or not the point info is valid; nothing is written if it is not
+     * @throws IOException
+     * @throws ParseException 
+     * @throws IllegalArgumentException  if one of the gazetteers does not exist, or if the cursor is invalid 
+     * or the indices have changed since it was returned; nothing is written then
+     */
+    public boolean searchNearbyPlaces(String placeName, String pointInfo, boolean inclusive, 
+    		Set<String> gazetteerNames, int distanceScoreOption, String cursor, int format, OutputStream out) 
+    		throws IOException, ParseException {
+    	double[][] point = getNearbyPoints(pointInfo);
+    	if (point == null) {
+    		return false;
+    	}
+    	searchNearbyPlaces(placeName, point[0][0], point[0][1], point[0][2], inclusive, gazetteerNames, 
+    			distanceScoreOption, cursor, format, out);
+    	return true;
+    }
+    
     /**
      * This method finds a list of nearby places to the specified place. The score depends on the distance
      * of the result from the specified place. It uses the default searchOption BOTH and the default 
@@ -367,25 +1133,465 @@ public class Georeference {
     	return searchNearbyPlaces(placeName, latitude, longitude, rangeInMiles, false, BOTH, DistanceScoreQuery.SQUARE_ROOT);
     }
     
+    /**
+     * This method finds the places nearest to a point in the gazetteers, in order of distance. Instead of
+     * searching a range, it walks a spatial tree of the places that is built for each index segment the 
+     * first time it is searched this way, so the cost of the search grows with k rather than with the 
+     * size of the gazetteers. The score of a place is 1 / (1 + its distance in miles).
+     * 
+     * @param placeName  the name of the place at the point, which is left out unless inclusive is true
+     * (can be null)
+     * @param latitude  the latitude of the point
+     * @param longitude  the longitude of the point
+     * @param k  the number of places
+     * @param inclusive  whether or not to include the places with the name in the result list
+     * @param gazetteerNames  the names of the gazetteers to search on, or null to search on all of them
+     * @return a string in xml format that lists out the k nearest places (name and their latitude and 
+     * longitude), the nearest first
+     * @throws IOException
+     * @throws ParseException 
+     * @throws IllegalArgumentException  if one of the gazetteers does not exist, if k is less than 1 or more
+     * than the max number of nearest places (see setMaxNearestPlaces()), or if the point is not a valid
+     * latitude and longitude
+     */
+    public String searchNearestPlaces(String placeName, double latitude, double longitude, int k, boolean inclusive, 
+    		Set<String> gazetteerNames) throws IOException, ParseException {
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	searchNearestPlaces(placeName, latitude, longitude, k, inclusive, gazetteerNames, null, GeoResultWriter.XML, 
+    			out);
+    	return out.toString("UTF-8");
+    }
+    
+    /**
+     * This method finds a page of the places nearest to a point in the gazetteers, in order of distance, and
+     * writes it to an output in a response format. The page continues after the page the cursor was returned 
+     * with. See searchNearestPlaces() above.
+     * 
+     * @param placeName  the name of the place at the point, which is left out unless inclusive is true
+     * (can be null)
+     * @param latitude  the latitude of the point
+     * @param longitude  the longitude of the point
+     * @param k  the number of places in the page
+     * @param inclusive  whether or not to include the places with the name in the result list
+     * @param gazetteerNames  the names of the gazetteers to search on, or null to search on all of them
+     * @param cursor  the cursor of the previous page, or null for the first page
+     * @param format  the response format (GeoResultWriter.XML, JSON or BINARY)
+     * @param out  the output the places are written to
+     * @throws IOException
+     * @throws ParseException 
+     * @throws IllegalArgumentException  if one of the gazetteers does not exist, if k is less than 1 or more
+     * than the max number of nearest places (see setMaxNearestPlaces()), if the point is not a valid latitude
+     * and longitude, or if the cursor is invalid or the indices have changed since it was returned; nothing 
+     * is written then
+     */
+    public void searchNearestPlaces(String placeName, final double latitude, final double longitude, final int k, 
+    		boolean inclusive, Set<String> gazetteerNames, String cursor, int format, OutputStream out) 
+    		throws IOException, ParseException {
+    	if (k < 1 || k > maxNearestPlaces) {
+    		throw new IllegalArgumentException("k must be from 1 to " + maxNearestPlaces);
+    	}
+    	if (!(Math.abs(latitude) <= 90) || !(Math.abs(longitude) <= 180)) {
+    		throw new IllegalArgumentException("invalid point: " + latitude + "," + longitude);
+    	}
+    	GeoResultWriter resultWriter = getResultWriter(format);
+    	GeoSearchCursor after = parseCursor(cursor);
+    	final Query excludedQuery = !inclusive ? createNameQuery(placeName) : null;
+    	nearestSearched = true;
+    	
+    	// Every shard of sharded gazetteers is searched, since the nearest places can be in any of them
+    	HitSource hitSource = new HitSource() {
+    		// Override
+    		public TopDocs search(IndexSearcher searcher, ScoreDoc after, long[] indexNanos) throws IOException {
+    			return GeoNearestSearcher.search(searcher, latitude, longitude, k, excludedQuery, after, indexNanos);
+    		}
+    	};
+    	search(hitSource, gazetteerNames, null, null, after, resultWriter, false, out, null);
+    }
+    
     // All of methods below are private helper methods used by the public methods above.
     
-    // Create the index searcher differently depending on the search option
-    private IndexSearcher createSearcher(int searchOption) throws CorruptIndexException, IOException {    	
-    	IndexSearcher searcher = null;
-	    if (searchOption == MODERN_INDEX_ONLY) {
-	    	searcher = new IndexSearcher(modernIndex, true);
-	    }
-	    else if (searchOption == HIST_INDEX_ONLY) {
-	    	searcher = new IndexSearcher(histIndex, true);
-	    }
-	    else if (searchOption == BOTH) {
-	    	// Create a searcher for each index and then combine them
-	    	IndexReader[] readers = new IndexReader[2];
-	    	readers[0] = IndexReader.open(modernIndex, true);
-	    	readers[1] = IndexReader.open(histIndex, true);
-	    	searcher = new IndexSearcher(new MultiReader(readers));
-	    }
-	    return searcher;
+    // Finds the hits of a search on a searcher
+    private interface HitSource {
+    	TopDocs search(IndexSearcher searcher, ScoreDoc after, long[] indexNanos) throws IOException, ParseException;
+    }
+    
+    // Search on the gazetteers (all of them if gazetteerNames is null); only the shards of sharded gazetteers 
+    // that overlap the boundary and are in range of the points (if they are not null) are searched; the page 
+    // after the cursor (null for the first page) is written to the output with the cursor of the next page; 
+    // the searchers of a batch are used if searchers is not null
+    private void search(final GeoParallelSearcher.QuerySource querySource, Set<String> gazetteerNames, 
+    		double[][] boundary, double[][] points, GeoSearchCursor after, GeoResultWriter resultWriter, 
+    		boolean batchEntry, OutputStream out, BatchSearchers searchers) throws CorruptIndexException, IOException, 
+    		ParseException {
+    	HitSource hitSource = new HitSource() {
+    		// Override
+    		public TopDocs search(IndexSearcher searcher, ScoreDoc after, long[] indexNanos) throws IOException, 
+    				ParseException {
+    			return parallelSearcher.search(searcher, querySource, hitsPerPage, after, indexNanos);
+    		}
+    	};
+    	search(hitSource, gazetteerNames, boundary, points, after, resultWriter, batchEntry, out, searchers);
+    }
+    
+    // Search on the gazetteers with the hits of the hit source (see above)
+    private void search(HitSource hitSource, Set<String> gazetteerNames, double[][] boundary, double[][] points, 
+    		GeoSearchCursor after, GeoResultWriter resultWriter, boolean batchEntry, OutputStream out, 
+    		BatchSearchers searchers) throws CorruptIndexException, IOException, ParseException {
+    	// A search that runs while the gazetteers are replaced is run again on the new gazetteers if the old
+    	// searcher manager is closed before it acquires a searcher
+    	GazetteerSet current;
+    	BitSet indexSet;
+    	IndexSearcher searcher;
+    	while (true) {
+    		current = gazetteerSet;
+    		indexSet = getIndexSet(current.gazetteers, gazetteerNames, boundary, points);
+    		if (indexSet.isEmpty()) {
+    			resultWriter.write(null, new ScoreDoc[0], null, batchEntry, out);
+    			return;
+    		}
+    		try {
+    			searcher = searchers != null ? searchers.acquire(current, indexSet) 
+    					: current.searcherManager.acquire(indexSet);
+    			break;
+    		} catch (AlreadyClosedException e) {
+    			if (gazetteerSet == current) {
+    				throw e;
+    			}
+    		}
+    	}
+    	try {
+    		// The scores and doc ids of a cursor only mean the same on the same version of the indices
+    		long indexVersion = GeoSearchCursor.getIndexVersion(searcher.getIndexReader());
+    		if (after != null && after.getIndexVersion() != indexVersion) {
+    			throw new IllegalArgumentException("the cursor is from an earlier version of the index; " 
+    					+ "start again from the first page");
+    		}
+    		long[] indexNanos = new long[indexSet.cardinality()];
+    		TopDocs topDocs = hitSource.search(searcher, after != null ? after.getLastHit() : null, indexNanos);
+    		recordSearchStats(current.gazetteers, indexSet, indexNanos);
+    		ScoreDoc[] hits = topDocs.scoreDocs;
+    		String cursor = null;
+    		if (hits.length > 0 && topDocs.totalHits > hits.length) {
+    			cursor = new GeoSearchCursor(indexVersion, hits[hits.length - 1]).toString();
+    		}
+    		resultWriter.write(searcher, hits, cursor, batchEntry, out);
+    	} finally {
+    		if (searchers == null) {
+    			current.searcherManager.release(searcher);
+    		}
+    	}
+    }
+    
+    // The searchers of the indices that the searches of a batch share; each set of indices is acquired
+    // once from the searcher manager of the gazetteers and released at the end of the batch
+    private static class BatchSearchers {
+    	private Map<GazetteerSet, Map<BitSet, IndexSearcher>> searchers = 
+    			new HashMap<GazetteerSet, Map<BitSet, IndexSearcher>>();
+    	
+    	synchronized IndexSearcher acquire(GazetteerSet gazetteerSet, BitSet indexSet) throws IOException {
+    		Map<BitSet, IndexSearcher> indexSearchers = searchers.get(gazetteerSet);
+    		if (indexSearchers == null) {
+    			indexSearchers = new HashMap<BitSet, IndexSearcher>();
+    			searchers.put(gazetteerSet, indexSearchers);
+    		}
+    		IndexSearcher searcher = indexSearchers.get(indexSet);
+    		if (searcher == null) {
+    			searcher = gazetteerSet.searcherManager.acquire(indexSet);
+    			indexSearchers.put(indexSet, searcher);
+    		}
+    		return searcher;
+    	}
+    	
+    	synchronized void release() throws IOException {
+    		for (Map.Entry<GazetteerSet, Map<BitSet, IndexSearcher>> entry : searchers.entrySet()) {
+    			for (IndexSearcher searcher : entry.getValue().values()) {
+    				entry.getKey().searcherManager.release(searcher);
+    			}
+    		}
+    		searchers.clear();
+    	}
+    }
+    
+    // Get the thread pool that runs the searches of batches, which is created by the first batch
+    private synchronized ExecutorService getBatchExecutor() {
+    	if (batchExecutor == null) {
+    		final AtomicInteger threadCount = new AtomicInteger();
+    		batchExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), 
+    				new ThreadFactory() {
+    			// Override
+    			public Thread newThread(Runnable r) {
+    				Thread thread = new Thread(r, "GeoBatch-" + threadCount.incrementAndGet());
+    				thread.setDaemon(true);
+    				return thread;
+    			}
+    		});
+    	}
+    	return batchExecutor;
+    }
+    
+    // Parse the cursor of a search; null if there is none
+    private GeoSearchCursor parseCursor(String cursor) {
+    	return cursor != null && cursor.length() > 0 ? GeoSearchCursor.parse(cursor) : null;
+    }
+    
+    // Get the writer of a response format
+    private GeoResultWriter getResultWriter(int format) {
+    	if (format < GeoResultWriter.XML || format > GeoResultWriter.BINARY) {
+    		throw new IllegalArgumentException("unknown response format: " + format);
+    	}
+    	return resultWriters[format - GeoResultWriter.XML];
+    }
+    
+    // Get the gazetteers of a search option
+    private Set<String> getGazetteerNames(int searchOption) {
+    	switch (searchOption) {
+    	case MODERN_INDEX_ONLY:
+    		return Collections.singleton(MODERN_GAZETTEER);
+    	case HIST_INDEX_ONLY:
+    		return Collections.singleton(HIST_GAZETTEER);
+    	case BOTH:
+    		return new HashSet<String>(Arrays.asList(MODERN_GAZETTEER, HIST_GAZETTEER));
+    	default:
+    		throw new IllegalArgumentException("unknown search option: " + searchOption);
+    	}
+    }
+    
+    // Get the numbers of the indices to search on; every gazetteer has the index numbers from its first
+    // index number on, one for each shard if it is sharded
+    private BitSet getIndexSet(Gazetteer[] current, Set<String> gazetteerNames, double[][] boundary, 
+    		double[][] points) {
+    	BitSet indexSet = new BitSet();
+    	int numOfGazetteers = 0;
+    	for (Gazetteer gazetteer : current) {
+    		if (gazetteerNames != null && !gazetteerNames.contains(gazetteer.name)) {
+    			continue;
+    		}
+    		numOfGazetteers++;
+    		if (gazetteer.shards == null) {
+    			indexSet.set(gazetteer.firstIndexNum);
+    			continue;
+    		}
+    		BitSet shardSet = getShardsInBoundary(gazetteer.shards, boundary);
+    		if (points != null) {
+    			shardSet.and(getShardsNearPoints(gazetteer.shards, points));
+    		}
+    		for (int i = shardSet.nextSetBit(0); i >= 0; i = shardSet.nextSetBit(i + 1)) {
+    			indexSet.set(gazetteer.firstIndexNum + i);
+    		}
+    	}
+    	if (gazetteerNames != null && numOfGazetteers < gazetteerNames.size()) {
+    		throw new IllegalArgumentException("unknown gazetteers in " + gazetteerNames + "; the gazetteers are " 
+    				+ getGazetteerNames());
+    	}
+    	return indexSet;
+    }
+    
+    // Get the shards of a sharded index that overlap the boundary; all shards if there is no boundary
+    private BitSet getShardsInBoundary(GeoShardedIndex shards, double[][] boundary) {
+    	if (boundary == null) {
+    		BitSet shardSet = new BitSet();
+    		shardSet.set(0, shards.getNumOfShards());
+    		return shardSet;
+    	}
+    	if (boundary[1][0] > boundary[1][1]) {
+    		// The boundary crosses the date line
+    		BitSet shardSet = shards.getShardsInRange(boundary[1][0], 180);
+    		shardSet.or(shards.getShardsInRange(-180, boundary[1][1]));
+    		return shardSet;
+    	}
+    	return shards.getShardsInRange(boundary[1][0], boundary[1][1]);
+    }
+    
+    // Get the shards of a sharded index that are in range of any of the near points
+    private BitSet getShardsNearPoints(GeoShardedIndex shards, double[][] points) {
+    	BitSet shardSet = new BitSet();
+    	for (int i = 0; i < points.length; i++) {
+    		shardSet.or(shards.getShardsNear(points[i][0], points[i][1], points[i][2]));
+    	}
+    	return shardSet;
+    }
+    
+    // Record how long each gazetteer took in a search, given the time of each index searched in the order
+    // of the index numbers; a sharded gazetteer takes as long as its slowest shard
+    private void recordSearchStats(Gazetteer[] current, BitSet indexSet, long[] indexNanos) {
+    	int i = 0;
+    	int indexNum = indexSet.nextSetBit(0);
+    	for (Gazetteer gazetteer : current) {
+    		int end = gazetteer.firstIndexNum + gazetteer.getNumOfIndices();
+    		long nanos = -1;
+    		while (indexNum >= 0 && indexNum < end) {
+    			nanos = Math.max(nanos, indexNanos[i++]);
+    			indexNum = indexSet.nextSetBit(indexNum + 1);
+    		}
+    		if (nanos >= 0) {
+    			gazetteer.stats.record(nanos);
+    		}
+    	}
+    }
+    
+    // Get a gazetteer by name; null if there is none
+    private Gazetteer getGazetteer(String name) {
+    	for (Gazetteer gazetteer : gazetteerSet.gazetteers) {
+    		if (gazetteer.name.equals(name)) {
+    			return gazetteer;
+    		}
+    	}
+    	return null;
+    }
+    
+    // Add, replace or (if both indices are null) remove a gazetteer; a replaced gazetteer keeps its place and 
+    // its statistics; the index numbers of the gazetteers are assigned in order. The new gazetteers are
+    // published with a new searcher manager, and the old searcher manager is closed once they are
+    private synchronized void putGazetteer(String name, Directory index, GeoShardedIndex shards) {
+    	GazetteerSet old = gazetteerSet;
+    	List<Gazetteer> list = new ArrayList<Gazetteer>(Arrays.asList(old.gazetteers));
+    	Gazetteer oldGazetteer = getGazetteer(name);
+    	int position = oldGazetteer != null ? list.indexOf(oldGazetteer) : list.size();
+    	if (oldGazetteer != null) {
+    		list.remove(position);
+    	}
+    	if (index != null || shards != null) {
+    		Gazetteer gazetteer = new Gazetteer(name, index, shards, 
+    				oldGazetteer != null ? oldGazetteer.stats : new GeoSearchStats(name));
+    		list.add(position, gazetteer);
+    	}
+    	int indexNum = 0;
+    	for (Gazetteer gazetteer : list) {
+    		gazetteer.firstIndexNum = indexNum;
+    		indexNum += gazetteer.getNumOfIndices();
+    	}
+    	Gazetteer[] gazetteers = list.toArray(new Gazetteer[list.size()]);
+    	gazetteerSet = new GazetteerSet(gazetteers, createSearcherManager(gazetteers));
+    	try {
+    		old.searcherManager.close();
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    	}
+    	invalidateResultCache();
+    }
+    
+    // The gazetteers and the searcher manager of their indices, which are published together
+    private static class GazetteerSet {
+    	final Gazetteer[] gazetteers;
+    	final GeoSearcherManager searcherManager;
+    	
+    	GazetteerSet(Gazetteer[] gazetteers, GeoSearcherManager searcherManager) {
+    		this.gazetteers = gazetteers;
+    		this.searcherManager = searcherManager;
+    	}
+    }
+    
+    // A gazetteer and the index numbers of its indices in the searcher manager
+    private static class Gazetteer {
+    	String name;
+    	Directory index;
+    	GeoShardedIndex shards;
+    	GeoSearchStats stats;
+    	int firstIndexNum;
+    	
+    	Gazetteer(String name, Directory index, GeoShardedIndex shards, GeoSearchStats stats) {
+    		this.name = name;
+    		this.index = index;
+    		this.shards = shards;
+    		this.stats = stats;
+    	}
+    	
+    	int getNumOfIndices() {
+    		return shards != null ? shards.getNumOfShards() : 1;
+    	}
+    }
+    
+    // Create the searcher manager for the indices of the gazetteers
+    private GeoSearcherManager createSearcherManager(Gazetteer[] gazetteers) {
+    	List<Directory> indices = new ArrayList<Directory>();
+    	for (Gazetteer gazetteer : gazetteers) {
+    		if (gazetteer.shards != null) {
+    			indices.addAll(Arrays.asList(gazetteer.shards.getShards()));
+    		}
+    		else {
+    			indices.add(gazetteer.index);
+    		}
+    	}
+    	GeoSearcherManager manager = new GeoSearcherManager(indices.toArray(new Directory[indices.size()]));
+    	
+    	// Warm up reopened indices with the warm up place names, a nearby search and a nearest search
+    	manager.setWarmer(new GeoSearcherManager.Warmer() {
+    		// Override
+    		public void warm(IndexSearcher searcher) throws IOException {
+    			try {
+    				if (warmupPlaceNames != null) {
+    					for (String placeName : warmupPlaceNames) {
+    						Query query = createNameQuery(placeName);
+    						if (query != null) {
+    							loadDocs(searcher, searcher.search(query, hitsPerPage).scoreDocs);
+    						}
+    					}
+    				}
+    				GeoParallelSearcher.QuerySource nearbyQuery = new GeoParallelSearcher.QuerySource() {
+    					// Override
+    					public Query createQuery(IndexReader reader) {
+    						return createNearbyQuery(null, 0, 0, 100, true, DistanceScoreQuery.SQUARE_ROOT, 
+    								GeoIndexLayout.read(reader));
+    					}
+    				};
+    				loadDocs(searcher, parallelSearcher.search(searcher, nearbyQuery, hitsPerPage).scoreDocs);
+    				if (nearestSearched) {
+    					loadDocs(searcher, GeoNearestSearcher.search(searcher, 0, 0, hitsPerPage, null, null, null).scoreDocs);
+    				}
+    			} catch (ParseException e) {
+    				IOException ioe = new IOException("failed to warm up the index");
+    				ioe.initCause(e);
+    				throw ioe;
+    			}
+    		}
+    	});
+    	return manager;
+    }
+    
+    // Load the stored fields of the hits that the responses need
+    private void loadDocs(IndexSearcher searcher, ScoreDoc[] hits) throws IOException {
+    	GeoResultWriter.loadDocuments(searcher, hits, 0, hits.length, new Document[hits.length]);
+    }
+    
+    // Create the thread pool that searches the indices of a combined searcher in parallel
+    private void createParallelSearcher() {
+    	final AtomicInteger threadCount = new AtomicInteger();
+    	searchExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), 
+    			new ThreadFactory() {
+    		// Override
+    		public Thread newThread(Runnable r) {
+    			Thread thread = new Thread(r, "GeoSearch-" + threadCount.incrementAndGet());
+    			thread.setDaemon(true);
+    			return thread;
+    		}
+    	});
+    	parallelSearcher = new GeoParallelSearcher(searchExecutor);
+    }
+    
+    // Drop the cached results, which may have been found on indices that are no longer searched
+    private void invalidateResultCache() {
+    	GeoResultCache cache = resultCache;
+    	if (cache != null) {
+    		cache.invalidate();
+    	}
+    }
+    
+    // Create the key of a search in the result cache; searches that only differ in the case of the place name
+    // or in spaces around the bound and near points find the same places
+    private String createCacheKey(String placeName, String bound, String nearPoints, Set<String> gazetteerNames, 
+    		int distanceScoreOption, String cursor, int format, boolean batchEntry) {
+    	StringBuilder key = new StringBuilder();
+    	key.append(format).append(batchEntry ? "b" : "").append('\n');
+    	key.append(cursor != null ? cursor : "").append('\n');
+    	key.append(placeName != null ? placeName.toLowerCase() : "").append('\n');
+    	key.append(bound != null ? bound.trim() : "").append('\n');
+    	key.append(nearPoints != null ? nearPoints.trim() : "").append('\n');
+    	key.append(gazetteerNames != null ? new TreeSet<String>(gazetteerNames).toString() : "*").append('\n');
+    	key.append(distanceScore ? distanceScoreOption : 0).append('\n');
+    	key.append(hitsPerPage).append('\n');
+    	key.append(defaultRange).append('\n');
+    	key.append(locSplitString).append('\n').append(latLngSplitString);
+    	return key.toString();
     }
 	
     // Create the boundary from two points
@@ -413,6 +1619,19 @@ public class Georeference {
 			boundary[1][0] = point1b;
 			boundary[1][1] = point2b;
 		}
+		
+		// A boundary with a longitude beyond -180 or 180 crosses the date line; its min longitude is then 
+		// greater than its max longitude
+		if (boundary[1][1] - boundary[1][0] >= 360) {
+			boundary[1][0] = -180;
+			boundary[1][1] = 180;
+		}
+		else if (boundary[1][0] < -180) {
+			boundary[1][0] += 360;
+		}
+		else if (boundary[1][1] > 180) {
+			boundary[1][1] -= 360;
+		}
 		return boundary;
 	}
 	
@@ -450,8 +1669,46 @@ public class Georeference {
 		return out;
 	}
 	
+	// Create the query that finds places near a point in an index with the layout
+	private Query createNearbyQuery(String placeName, double latitude, double longitude, double rangeInMiles,
+			boolean inclusive, int distanceScoreOption, GeoIndexLayout layout) {
+		BooleanQuery bq = new BooleanQuery();
+		bq.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+		if (!inclusive) {
+			Query nameQuery = createNameQuery(placeName);
+			if (nameQuery != null) {
+				bq.add(nameQuery, BooleanClause.Occur.MUST_NOT);
+			}
+		}
+		return createDistanceQuery(bq, latitude, longitude, rangeInMiles, distanceScoreOption, layout);
+	}
+	
+	// Create the query that finds the places that match a query and are in range of a point in an index with
+	// the layout; an index with the geohash layout is searched on the geohash cells that cover the range,
+	// others on the Cartesian tiers
+	private Query createDistanceQuery(Query query, double latitude, double longitude, double rangeInMiles,
+			int distanceScoreOption, GeoIndexLayout layout) {
+		Query distanceQuery;
+		if (layout.hasGeohashField()) {
+			distanceQuery = new ConstantScoreQuery(GeoHashFilter.createDistanceFilter(query, latitude, longitude, 
+					rangeInMiles, layout.getGeohashLength()));
+		}
+		else {
+			DistanceQueryBuilder dq = new DistanceQueryBuilder(latitude, longitude, rangeInMiles, 
+					layout.getLatitudeField(), layout.getLongitudeField(), GeoIndexWriter.TIER_PREFIX_FIELD, 
+					true, layout.getStartTier(), layout.getEndTier());
+			distanceQuery = dq.getQuery(query);
+		}
+		
+		// Whether or not to use DistanceScoreQuery to allow it score the results by distance
+		if (distanceScore) {
+			return new DistanceScoreQuery(distanceQuery, latitude, longitude, distanceScoreOption);
+		}
+		return distanceQuery;
+	}
+	
 	// Create the part of the query involving name and boundary
-	private Query createNameBoundQuery(String nameTerm, String locationTerm) throws ParseException {
+	private Query createNameBoundQuery(String nameTerm, String locationTerm, GeoIndexLayout layout) {
 		BooleanQuery booleanQuery = new BooleanQuery();
 		
 		// Add the name query to the boolean query
@@ -460,142 +1717,60 @@ public class Georeference {
 			booleanQuery.add(nameQuery, BooleanClause.Occur.MUST);
 		}
 		
-		// Add the bound queries to the boolean query
-		Query[] boundQueries = createBoundQueries(locationTerm);
-		if (boundQueries != null) {
-			for (int i = 0; i < boundQueries.length; i++) {
-				booleanQuery.add(boundQueries[i], BooleanClause.Occur.MUST);
-			}
+		// Add the bound query to the boolean query
+		Query boundQuery = createBoundQuery(locationTerm, layout);
+		if (boundQuery != null) {
+			booleanQuery.add(boundQuery, BooleanClause.Occur.MUST);
 		}
 		
 		return booleanQuery;
 	}
 	
 	// Create the name query
-	private Query createNameQuery(String nameTerm) throws ParseException {
-		if (nameTerm != null) {
-			if (!nameTerm.equals("")) {
-				String nameTermLower = nameTerm.toLowerCase(); 
-				
-				// Create a term query for each name in the document
-				QueryParser parser = new QueryParser(Version.LUCENE_34, GeoIndexWriter.NAME_FIELD, nameAnalyzer);
-				String queryString = GeoIndexWriter.NAME_FIELD + ":" + nameTermLower;
-				Query nameQuery = parser.parse(queryString);
-				queryString = GeoIndexWriter.ALT_NAME1_FIELD + ":" + nameTermLower;
-				Query altName1Query = parser.parse(queryString);
-				queryString = GeoIndexWriter.ALT_NAME2_FIELD + ":" + nameTermLower;
-				Query altName2Query = parser.parse(queryString);
-				
-				// Add the term queries to a boolean query
-				BooleanQuery nameQueries = new BooleanQuery();
-				nameQueries.add(nameQuery, BooleanClause.Occur.SHOULD);
-				nameQueries.add(altName1Query, BooleanClause.Occur.SHOULD);
-				nameQueries.add(altName2Query, BooleanClause.Occur.SHOULD);
-				
-				return nameQueries;
-			}
-		}
-		return null;
+	private Query createNameQuery(String nameTerm) {
+		return nameQueryBuilder.createQuery(nameTerm);
 	}
 
-	// Create the bound query
-	private Query[] createBoundQueries(String locationTerm) {
+	// Create the boundary from a string; null if there is no boundary
+	private double[][] getBoundary(String locationTerm) {
 		if (locationTerm != null) {
 			if (!locationTerm.equals("")) {
 				String[] locationTerm1 = locationTerm.split(locSplitString);
 				if (locationTerm1.length == 2) {
 					String[] point1 = locationTerm1[0].split(latLngSplitString);
 					String[] point2 = locationTerm1[1].split(latLngSplitString);
-					double[][] boundary = mapBoundaryPoints(point1, point2);
-					
-					// Create an range query for latitude and one for longitude
-					NumericRangeQuery<Double> latitudeQuery = NumericRangeQuery.newDoubleRange(GeoIndexWriter.LATITUDE_FIELD, boundary[0][0], boundary[0][1], true, true);;
-					NumericRangeQuery<Double> longitudeQuery = NumericRangeQuery.newDoubleRange(GeoIndexWriter.LONGITUDE_FIELD, boundary[1][0], boundary[1][1], true, true);;
-					
-					// Add the range queries to the array
-					Query[] queries = new NumericRangeQuery[2];
-					queries[0] = latitudeQuery;
-					queries[1] = longitudeQuery;
-					
-					return queries;
+					return mapBoundaryPoints(point1, point2);
 				}
 			}
 		}
 		return null;
 	}
 	
-	// Create the distance part of the query
-	private List<DistanceQueryBuilder> createDistanceQueries(String locationTerm) {
-		ArrayList<DistanceQueryBuilder> list = new ArrayList<DistanceQueryBuilder>();
-		if (locationTerm != null) {
-			if (!locationTerm.equals("")) {
-				double[][] locationTerm1 = getNearbyPoints(locationTerm);
-				if (locationTerm1 == null) {
-					return list;
-				}
-				
-				// Make a distance query for each near point
-				DistanceQueryBuilder dq;
-				for (int i = 0; i < locationTerm1.length; i++) {
-					dq = new DistanceQueryBuilder(locationTerm1[i][0], locationTerm1[i][1], 
-							locationTerm1[i][2], GeoIndexWriter.SPT_LAT_FIELD, 
-							GeoIndexWriter.SPT_LNG_FIELD, GeoIndexWriter.TIER_PREFIX_FIELD, 
-							true, GeoIndexWriter.START_TIER, GeoIndexWriter.END_TIER);
-					list.add(dq);
-				}
-			}
+	// Create the bound query for an index with the layout; the places in the bound are looked up in the 
+	// geohash cells that cover it if the index has them, or else from the latitudes and longitudes
+	private Query createBoundQuery(String locationTerm, GeoIndexLayout layout) {
+		double[][] boundary = getBoundary(locationTerm);
+		if (boundary != null) {
+			return new ConstantScoreQuery(GeoBoundFilterCache.createFilter(boundary[0][0], boundary[0][1], 
+					boundary[1][0], boundary[1][1], layout.getGeohashLength(), boundFilterCache));
 		}
-		return list;
+		return null;
 	}
 	
-	// Add/combine the distance query to the current query
-	private Query includeDistanceQueries(Query query, List<DistanceQueryBuilder> dqs, int distanceScoreOption) {
-		if (dqs.size() != 0) {
-			BooleanQuery bq = new BooleanQuery();
-			
-			// Create a DistanceScoreQuery for each distance query
-			for (final DistanceQueryBuilder dq : dqs) {
-				
-				// Whether or not to use DistanceScoreQuery to allow it score the results by distance
-		    	Query q = null;
-		    	if (distanceScore) {
-		    		q = new DistanceScoreQuery(dq.getQuery(query), dq, distanceScoreOption);
-		    	}
-		    	else {
-		    		q = dq.getQuery(query);
-		    	}
-		    	bq.add(q, BooleanClause.Occur.SHOULD);
-			}
-			return bq;
-		}
-		else {
+	// Restrict the current query to the places in range of any of the near points for an index with the layout
+	private Query includeDistanceQueries(Query query, String locationTerm, int distanceScoreOption, 
+			GeoIndexLayout layout) {
+		double[][] points = locationTerm != null && !locationTerm.equals("") ? getNearbyPoints(locationTerm) : null;
+		if (points == null || points.length == 0) {
 			return query;
 		}
-	}
-	
-	// Convert the search result to a XML format
-	private String getXMLFromHits(IndexSearcher searcher, ScoreDoc[] hits) throws CorruptIndexException, IOException {
-		String out = "<?xml version=\"1.0\"?>\n<places>\n";
-		for(int i = 0; i < hits.length; i++) {
-			out += getXMLForGeoScoreDoc(searcher, hits[i]);
+		if (points.length == 1) {
+			return createDistanceQuery(query, points[0][0], points[0][1], points[0][2], distanceScoreOption, layout);
 		}
-		out += "</places>";
-		return out;
-	}
-	
-	// Convert a geolocation document to a XML format
-	private String getXMLForGeoScoreDoc(IndexSearcher searcher, ScoreDoc scoreDoc) throws CorruptIndexException, IOException {
-		int docId = scoreDoc.doc;
-		Document document = searcher.doc(docId);
-		String out = "";
-		out += "<place>\n";
-	    out += "<place_name>" + document.get(GeoIndexWriter.NAME_FIELD) + "</place_name>\n";
-	    out += "<doc_id>" + docId + "</doc_id>\n";
-	    out += "<latitude>" + document.get(GeoIndexWriter.LATITUDE_FIELD) + "</latitude>\n";
-	    out += "<longitude>" + document.get(GeoIndexWriter.LONGITUDE_FIELD) + "</longitude>\n";
-	    out += "<score>" + scoreDoc.score + "</score>\n";
-		out += "</place>\n";
-		return out;
+		
+		// The query is run once and the places it matches are checked against all the points, rather than the
+		// query being run again for every point; places in range of more of the points are ranked higher
+		return new GeoProximityScoreQuery(query, points, distanceScore ? distanceScoreOption : 0);
 	}
 	
 }
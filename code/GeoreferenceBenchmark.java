@@ -0,0 +1,448 @@
+package edu.cornell.georeference;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.lucene.analysis.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Version;
+/**
+ * Compares the index size and the query latency of the legacy, the slim and the geohash index layouts, the time it
+ * takes to build name queries with a query parser and with the GeoNameQueryBuilder, and the size and the
+ * client decoding time of the response formats, the cost of loading the documents of hits, nearest searches
+ * against ranking a range by distance, searches with and without cached bounds, and the
+ * throughput of the directory modes under concurrent searches
+ *
+ * @author Yang Yang Zheng
+ *
+ */
+public class GeoreferenceBenchmark {
+
+	// Number of times every query is run before and while it is timed
+	private static final int WARMUP_ROUNDS = 20;
+	private static final int TIMED_ROUNDS = 200;
+
+	// Numbers of threads that search at the same time in the directory mode benchmark
+	private static final int[] NUMS_OF_THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+	// Searches run on all gazetteers
+	private static final Set<String> ALL_GAZETTEERS = null;
+
+	// Sample searches: place name, bound and near points
+	private static final String[][] LOCATION_SEARCHES = {
+		{"new york", null, null},
+		{"london", "50,-2;53,1", null},
+		{"richmond", null, "42,-76,100;40,-80,100;40.8,-75.14,10"},
+		{"springfield", "30,-100;45,-70", "39.8,-89.6,50;42.1,-72.6,50"},
+		{"ebura", "30,-4;40,0", null}
+	};
+
+	// Sample nearby searches: latitude, longitude and range in miles
+	private static final double[][] NEARBY_SEARCHES = {
+		{40.71, -74.0, 10},
+		{51.5, -0.12, 50},
+		{41.9, 12.5, 200}
+	};
+
+	// Sample place names for building name queries
+	private static final String[] PLACE_NAMES = {
+		"london", "new york", "richmond", "springfield", "washington", "rio de janeiro", "ebura", "st. louis"
+	};
+
+	public static void main(String[] args) throws IOException, ParseException {
+		benchmarkNameQueries();
+		benchmarkLayouts(args);
+		benchmarkDirectoryModes("index/benchmark/slim");
+	}
+
+	// Time building the name queries of the sample place names with a query parser and with the builder
+	private static void benchmarkNameQueries() throws ParseException {
+		GeoNameQueryBuilder builder = new GeoNameQueryBuilder();
+		KeywordAnalyzer analyzer = new KeywordAnalyzer();
+		int rounds = 100000;
+		for (int pass = 0; pass < 2; pass++) {
+			long parserNanos = 0;
+			long builderNanos = 0;
+			for (int round = 0; round < rounds; round++) {
+				String placeName = PLACE_NAMES[round % PLACE_NAMES.length];
+				long startTime = System.nanoTime();
+				createParsedNameQuery(placeName, analyzer);
+				parserNanos += System.nanoTime() - startTime;
+				startTime = System.nanoTime();
+				builder.createQuery(placeName);
+				builderNanos += System.nanoTime() - startTime;
+			}
+
+			// The first pass warms up the JVM
+			if (pass == 1) {
+				System.out.println(String.format("name queries: query parser %.2f us, builder %.2f us per query",
+						parserNanos / 1000.0 / rounds, builderNanos / 1000.0 / rounds));
+			}
+		}
+		System.out.println("\n");
+	}
+
+	// Build a name query the way it was built before the GeoNameQueryBuilder
+	private static Query createParsedNameQuery(String placeName, KeywordAnalyzer analyzer) throws ParseException {
+		String nameTermLower = placeName.toLowerCase();
+		QueryParser parser = new QueryParser(Version.LUCENE_34, GeoIndexWriter.NAME_FIELD, analyzer);
+		BooleanQuery nameQueries = new BooleanQuery();
+		nameQueries.add(parser.parse(GeoIndexWriter.NAME_FIELD + ":" + nameTermLower), BooleanClause.Occur.SHOULD);
+		nameQueries.add(parser.parse(GeoIndexWriter.ALT_NAME1_FIELD + ":" + nameTermLower), BooleanClause.Occur.SHOULD);
+		nameQueries.add(parser.parse(GeoIndexWriter.ALT_NAME2_FIELD + ":" + nameTermLower), BooleanClause.Occur.SHOULD);
+		return nameQueries;
+	}
+
+	// Build the indices with all layouts and time searches on them
+	private static void benchmarkLayouts(String[] args) throws IOException, ParseException {
+		GeoDataSource modernDataSource = GeoDataSource.createGeoNamesDataSource(
+				args.length > 0 ? args[0] : "data/allCountries.txt");
+		GeoDataSource histDataSource = GeoDataSource.createPleiadesDataSource(
+				args.length > 1 ? args[1] : "data/pleiades-names.txt");
+
+		// Build the indices with all layouts; the geohash layout answers the bound and distance parts of the
+		// searches from the geohash cells instead of the Cartesian tiers
+		GeoIndexLayout[] layouts = {GeoIndexLayout.createLegacyLayout(), GeoIndexLayout.createSlimLayout(),
+				GeoIndexLayout.createGeohashLayout()};
+		String[] names = {"legacy", "slim", "geohash"};
+		Georeference[] geos = new Georeference[layouts.length];
+		GeoIndexWriter geoIndexWriter = new GeoIndexWriter();
+		for (int i = 0; i < layouts.length; i++) {
+			geoIndexWriter.setIndexLayout(layouts[i]);
+			String path = "index/benchmark/" + names[i];
+			GeoBuildStats modernStats = geoIndexWriter.buildIndex(modernDataSource, path + "/modname", null);
+			GeoBuildStats histStats = geoIndexWriter.buildIndex(histDataSource, path + "/histname", null);
+			System.out.println(String.format("%s layout (%s): %d bytes, %d segments, built in %.1f seconds",
+					names[i], layouts[i], modernStats.getIndexSize() + histStats.getIndexSize(),
+					modernStats.getNumOfSegments() + histStats.getNumOfSegments(),
+					(modernStats.getElapsedMillis() + histStats.getElapsedMillis()) / 1000.0));
+			benchmarkDocumentLoading(names[i], geoIndexWriter.getIndexFromFilePath(path + "/modname"));
+			geos[i] = new Georeference(geoIndexWriter.getIndexFromFilePath(path + "/modname"),
+					geoIndexWriter.getIndexFromFilePath(path + "/histname"));
+			geos[i].setHitsPerPage(10);
+
+			// Every search is run on the index, not taken from the result cache
+			geos[i].setResultCache(null);
+		}
+		System.out.println("\n");
+
+		// Time the searches on all layouts and check that they find the same places
+		for (final String[] search : LOCATION_SEARCHES) {
+			String[] results = new String[geos.length];
+			for (int i = 0; i < geos.length; i++) {
+				final Georeference geo = geos[i];
+				results[i] = time(label(names[i], "search " + Arrays.toString(search)), WARMUP_ROUNDS, TIMED_ROUNDS, 
+						new Callable<String>() {
+					public String call() throws Exception {
+						return geo.searchLocation(search[0], search[1], search[2]);
+					}
+				});
+			}
+			checkResults(results);
+		}
+		for (final double[] search : NEARBY_SEARCHES) {
+			String[] results = new String[geos.length];
+			for (int i = 0; i < geos.length; i++) {
+				final Georeference geo = geos[i];
+				results[i] = time(label(names[i], "nearby " + Arrays.toString(search)), WARMUP_ROUNDS, TIMED_ROUNDS, 
+						new Callable<String>() {
+					public String call() throws Exception {
+						return geo.searchNearbyPlaces(null, search[0], search[1], search[2], true, ALL_GAZETTEERS, 
+								DistanceScoreQuery.SQUARE_ROOT);
+					}
+				});
+			}
+			checkResults(results);
+		}
+
+		// The time each gazetteer took in the searches above
+		for (int i = 0; i < geos.length; i++) {
+			for (String gazetteerName : geos[i].getGazetteerNames()) {
+				System.out.println(names[i] + " layout: " + geos[i].getSearchStats(gazetteerName));
+			}
+		}
+
+		// The slim layout is the default one
+		benchmarkNearest(geos[1]);
+		benchmarkBoundCache(geos[1]);
+		benchmarkFormats(geos[1]);
+		for (Georeference geo : geos) {
+			geo.close();
+		}
+	}
+
+	// Open the indices built by benchmarkLayouts() in each directory mode and time the sample searches run by 
+	// an increasing number of threads at the same time
+	private static void benchmarkDirectoryModes(String path) throws IOException, ParseException {
+		int[] modes = {GeoIndexWriter.SIMPLE_FS_DIRECTORY, GeoIndexWriter.NIO_FS_DIRECTORY, 
+				GeoIndexWriter.MMAP_DIRECTORY, GeoIndexWriter.RAM_DIRECTORY};
+		String[] names = {"simple", "nio", "mmap", "ram"};
+		GeoIndexWriter geoIndexWriter = new GeoIndexWriter();
+		System.out.println("\n");
+		for (int i = 0; i < modes.length; i++) {
+			geoIndexWriter.setDirectoryMode(modes[i]);
+			final Georeference geo = new Georeference(geoIndexWriter.getIndexFromFilePath(path + "/modname"),
+					geoIndexWriter.getIndexFromFilePath(path + "/histname"));
+			geo.setHitsPerPage(10);
+			geo.setResultCache(null);
+			ExecutorService executor = Executors.newFixedThreadPool(NUMS_OF_THREADS[NUMS_OF_THREADS.length - 1]);
+			try {
+				for (int numOfThreads : NUMS_OF_THREADS) {
+					final CountDownLatch start = new CountDownLatch(1);
+					List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+					for (int thread = 0; thread < numOfThreads; thread++) {
+						final int firstSearch = thread;
+						futures.add(executor.submit(new Callable<long[]>() {
+							public long[] call() throws Exception {
+								for (int round = 0; round < WARMUP_ROUNDS; round++) {
+									runSearch(geo, firstSearch + round);
+								}
+								start.await();
+								long[] nanos = new long[TIMED_ROUNDS];
+								for (int round = 0; round < TIMED_ROUNDS; round++) {
+									long startTime = System.nanoTime();
+									runSearch(geo, firstSearch + round);
+									nanos[round] = System.nanoTime() - startTime;
+								}
+								return nanos;
+							}
+						}));
+					}
+					long startTime = System.nanoTime();
+					start.countDown();
+					long[] nanos = new long[numOfThreads * TIMED_ROUNDS];
+					for (int thread = 0; thread < numOfThreads; thread++) {
+						System.arraycopy(GeoParallelSearcher.getResult(futures.get(thread)), 0, nanos, 
+								thread * TIMED_ROUNDS, TIMED_ROUNDS);
+					}
+					double seconds = (System.nanoTime() - startTime) / 1000000000.0;
+					printLatency(label(names[i], String.format("%d threads, %.0f searches/s", numOfThreads, 
+							nanos.length / seconds)), nanos);
+				}
+			} finally {
+				executor.shutdown();
+				geo.close();
+			}
+		}
+	}
+
+	// Run one of the sample searches, picked by a number that cycles through them
+	private static void runSearch(Georeference geo, int search) throws IOException, ParseException {
+		search %= LOCATION_SEARCHES.length + NEARBY_SEARCHES.length;
+		if (search < LOCATION_SEARCHES.length) {
+			String[] location = LOCATION_SEARCHES[search];
+			geo.searchLocation(location[0], location[1], location[2]);
+		}
+		else {
+			double[] nearby = NEARBY_SEARCHES[search - LOCATION_SEARCHES.length];
+			geo.searchNearbyPlaces(null, nearby[0], nearby[1], nearby[2], true, ALL_GAZETTEERS, 
+					DistanceScoreQuery.SQUARE_ROOT);
+		}
+	}
+
+	// Compare loading whole documents of hits in order of score with loading only the fields the responses need
+	// in order of doc id; random doc ids stand in for the hits of a search
+	private static void benchmarkDocumentLoading(String name, Directory index) throws IOException, ParseException {
+		IndexReader reader = IndexReader.open(index, true);
+		final IndexSearcher searcher = new IndexSearcher(reader);
+		try {
+			Random random = new Random(0);
+			final ScoreDoc[] hits = new ScoreDoc[Math.min(1000, reader.maxDoc())];
+			for (int i = 0; i < hits.length; i++) {
+				hits[i] = new ScoreDoc(random.nextInt(reader.maxDoc()), 1);
+			}
+			final Document[] documents = new Document[hits.length];
+			String search = "load " + hits.length + " hits";
+			time(label(name, search + ", whole documents"), WARMUP_ROUNDS, TIMED_ROUNDS / 10, new Callable<Void>() {
+				public Void call() throws Exception {
+					for (int i = 0; i < hits.length; i++) {
+						documents[i] = searcher.doc(hits[i].doc);
+					}
+					return null;
+				}
+			});
+			time(label(name, search + ", needed fields in doc id order"), WARMUP_ROUNDS, TIMED_ROUNDS / 10, 
+					new Callable<Void>() {
+				public Void call() throws Exception {
+					GeoResultWriter.loadDocuments(searcher, hits, 0, hits.length, documents);
+					return null;
+				}
+			});
+		} finally {
+			searcher.close();
+			reader.close();
+		}
+	}
+
+	// Compare finding the k nearest places with the spatial trees and ranking all places in the range by distance
+	private static void benchmarkNearest(final Georeference geo) throws IOException, ParseException {
+		int hitsPerPage = geo.getHitsPerPage();
+		boolean distanceScore = geo.isDistanceScore();
+		geo.setDistanceScore(true);
+		System.out.println("\n");
+		for (final double[] search : NEARBY_SEARCHES) {
+			for (final int k : new int[] {1, 10, 100}) {
+				String name = String.format("nearest %s, k=%d", Arrays.toString(search), k);
+				geo.setHitsPerPage(k);
+				time(label("range", name), WARMUP_ROUNDS, TIMED_ROUNDS, new Callable<String>() {
+					public String call() throws Exception {
+						return geo.searchNearbyPlaces(null, search[0], search[1], search[2], true, ALL_GAZETTEERS, 
+								DistanceScoreQuery.LINEAR);
+					}
+				});
+				time(label("tree", name), WARMUP_ROUNDS, TIMED_ROUNDS, new Callable<String>() {
+					public String call() throws Exception {
+						return geo.searchNearestPlaces(null, search[0], search[1], k, true, ALL_GAZETTEERS);
+					}
+				});
+			}
+		}
+		geo.setHitsPerPage(hitsPerPage);
+		geo.setDistanceScore(distanceScore);
+	}
+
+	// Time the sample searches with bounds with and without the places in the bounds cached
+	private static void benchmarkBoundCache(final Georeference geo) throws IOException, ParseException {
+		GeoBoundFilterCache cache = geo.getBoundFilterCache();
+		GeoBoundFilterCache[] caches = {null, new GeoBoundFilterCache()};
+		String[] names = {"lookup", "cached"};
+		System.out.println("\n");
+		for (final String[] search : LOCATION_SEARCHES) {
+			if (search[1] == null) {
+				continue;
+			}
+			for (int i = 0; i < caches.length; i++) {
+				geo.setBoundFilterCache(caches[i]);
+				time(label(names[i], "bound " + Arrays.toString(search)), WARMUP_ROUNDS, TIMED_ROUNDS, 
+						new Callable<String>() {
+					public String call() throws Exception {
+						return geo.searchLocation(search[0], search[1], search[2]);
+					}
+				});
+			}
+		}
+		System.out.println("bound cache: " + caches[1]);
+		geo.setBoundFilterCache(cache);
+	}
+
+	// Compare the size of a large result in each response format and the time it takes a client to decode it
+	private static void benchmarkFormats(Georeference geo) throws IOException, ParseException {
+		int[] formats = {GeoResultWriter.XML, GeoResultWriter.JSON, GeoResultWriter.BINARY};
+		String[] names = {"xml", "json", "binary"};
+		int hitsPerPage = geo.getHitsPerPage();
+		geo.setHitsPerPage(1000);
+		System.out.println("\n");
+		
+		// Every format has the same places
+		ByteArrayOutputStream places = new ByteArrayOutputStream();
+		geo.searchNearbyPlaces(null, 51.5, -0.12, 500, true, ALL_GAZETTEERS, DistanceScoreQuery.SQUARE_ROOT, null, 
+				GeoResultWriter.BINARY, places);
+		int numOfPlaces = GeoResultReader.read(new ByteArrayInputStream(places.toByteArray()), GeoResultWriter.BINARY)
+				.size();
+		for (int i = 0; i < formats.length; i++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			geo.searchNearbyPlaces(null, 51.5, -0.12, 500, true, ALL_GAZETTEERS, DistanceScoreQuery.SQUARE_ROOT, null, 
+					formats[i], out);
+			final byte[] response = out.toByteArray();
+			final int format = formats[i];
+			final DocumentBuilder documentBuilder;
+			try {
+				documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			} catch (Exception e) {
+				IOException ioe = new IOException("failed to create the xml parser");
+				ioe.initCause(e);
+				throw ioe;
+			}
+			time(label(names[i], String.format("decode %d places, %d bytes", numOfPlaces, response.length)), 
+					WARMUP_ROUNDS, TIMED_ROUNDS, new Callable<Integer>() {
+				public Integer call() throws Exception {
+					if (format == GeoResultWriter.XML) {
+						return documentBuilder.parse(new ByteArrayInputStream(response))
+								.getElementsByTagName("place").getLength();
+					}
+					return GeoResultReader.read(new ByteArrayInputStream(response), format).size();
+				}
+			});
+		}
+		geo.setHitsPerPage(hitsPerPage);
+	}
+
+	// Run a task a number of times to warm up, then time the runs of the task and print the average and the 95th
+	// percentile of their times; the result of the last run is returned
+	private static <T> T time(String label, int warmups, int runs, Callable<T> task) throws IOException, 
+			ParseException {
+		long[] nanos = new long[runs];
+		T result = null;
+		try {
+			for (int round = -warmups; round < runs; round++) {
+				long startTime = System.nanoTime();
+				result = task.call();
+				if (round >= 0) {
+					nanos[round] = System.nanoTime() - startTime;
+				}
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (ParseException e) {
+			throw e;
+		} catch (Exception e) {
+			IOException ioe = new IOException("failed to run " + label.trim());
+			ioe.initCause(e);
+			throw ioe;
+		}
+		printLatency(label, nanos);
+		return result;
+	}
+
+	// The label of the times of a search with a name, such as a layout
+	private static String label(String name, String search) {
+		return String.format("%-7s %s", name, search);
+	}
+
+	// Print the average and the 95th percentile of the times of a search
+	private static void printLatency(String label, long[] nanos) {
+		long total = 0;
+		for (long n : nanos) {
+			total += n;
+		}
+		Arrays.sort(nanos);
+		System.out.println(String.format("%-78s avg %.3f ms, p95 %.3f ms", label,
+				total / 1000000.0 / nanos.length, nanos[(int) (nanos.length * 0.95)] / 1000000.0));
+	}
+
+	// Check that the layouts find the same places in the same order; the doc ids (and the cursors made from them) 
+	// can differ because the indices are built in parallel, and the scores are not compared, since the layouts
+	// only have to rank the places the same
+	private static void checkResults(String[] results) {
+		String ignored = "<doc_id>[0-9]+</doc_id>|<score>[^<]*</score>| cursor=\"[^\"]*\"";
+		String expected = results[0].replaceAll(ignored, "");
+		for (int i = 1; i < results.length; i++) {
+			if (!expected.equals(results[i].replaceAll(ignored, ""))) {
+				System.out.println("The layouts found different places");
+			}
+		}
+	}
+}
@@ -1,6 +1,18 @@
 package edu.cornell.georeference;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.*;
 
@@ -8,7 +20,10 @@ import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.store.Directory;
 
 /**
- * A servlet that uses the Georeference. It allows users to do the search through HTTP get.
+ * A servlet that uses the Georeference. It allows users to do the search through HTTP get, and to run a 
+ * batch of searches through HTTP post; the body of the post has a line for each search with the place name, 
+ * bound and near points separated by tabs. The gazetteers to search on are picked by the gazetteers parameter
+ * (a comma separated list of names); the searchOption parameter (modern or historical) is still supported.
  * 
  * @author Yang Yang
  *
@@ -19,6 +34,12 @@ public class GeoreferenceServlet extends HttpServlet {
 	
 	private Georeference geo;
 	
+	// Checks for rebuilt or updated indices in the background
+	private ScheduledExecutorService refresher;
+	
+	// The max number of searches in a batch
+	private int maxBatchSize = 10000;
+	
 	public void init() {
 		
 		System.out.println("SERVLET STATUS: Ready to initialize the service");
@@ -29,16 +50,89 @@ public class GeoreferenceServlet extends HttpServlet {
 		String modernIndexDirectory = getServletConfig().getInitParameter("modernIndexDirectory");
 		String histIndexDirectory = getServletConfig().getInitParameter("histIndexDirectory");
 		
+		// Optional number of shards to split the modern index into by longitude
+		String modernIndexShards = getServletConfig().getInitParameter("modernIndexShards");
+		
+		// Optional number of seconds between checks for rebuilt indices and place names to warm them up with
+		String refreshSeconds = getServletConfig().getInitParameter("refreshSeconds");
+		String warmupPlaceNames = getServletConfig().getInitParameter("warmupPlaceNames");
+		
+		// Optional max number of cached search results (0 to not cache them) and how long they are cached
+		String resultCacheSize = getServletConfig().getInitParameter("resultCacheSize");
+		String resultCacheSeconds = getServletConfig().getInitParameter("resultCacheSeconds");
+		
+		// Optional max number of bounds whose places are cached (0 to not cache them)
+		String boundCacheSize = getServletConfig().getInitParameter("boundCacheSize");
+		
+		// Optional max number of places a nearest search can ask for
+		String maxNearestPlaces = getServletConfig().getInitParameter("maxNearestPlaces");
+		
+		// Optional local gazetteers, as a comma separated list of name=index directory
+		String localGazetteers = getServletConfig().getInitParameter("gazetteers");
+		
+		// Optional way of opening the indices for searching (simple, nio, mmap or ram), which can be different 
+		// for the historical index, and whether to read the index files through once when they are opened
+		String directoryMode = getServletConfig().getInitParameter("directoryMode");
+		String histDirectoryMode = getServletConfig().getInitParameter("histDirectoryMode");
+		String preTouch = getServletConfig().getInitParameter("preTouch");
+		
+		// Optional switch to rank the places found near points by their distance from the points
+		String distanceScore = getServletConfig().getInitParameter("distanceScore");
+		
+		// Optional max number of searches in a batch
+		String maxBatchSizeStr = getServletConfig().getInitParameter("maxBatchSize");
+		if (maxBatchSizeStr != null) {
+			maxBatchSize = Integer.parseInt(maxBatchSizeStr);
+		}
+		
 		try {
 			// Build the indices
 			GeoDataSource modernDataSource = GeoDataSource.createGeoNamesDataSource(modernGeoDataSource);
 			GeoDataSource histDataSource = GeoDataSource.createPleiadesDataSource(histGeoDataSource);
 			GeoIndexWriter geoIndexWriter = new GeoIndexWriter();
-			Directory modernIndex = geoIndexWriter.buildIndexIfIndexNotExist(modernDataSource, modernIndexDirectory);
+			geoIndexWriter.setPreTouch(Boolean.parseBoolean(preTouch));
+			geoIndexWriter.setDirectoryMode(getDirectoryMode(histDirectoryMode != null ? histDirectoryMode 
+					: directoryMode));
 			Directory histIndex = geoIndexWriter.buildIndexIfIndexNotExist(histDataSource, histIndexDirectory);
-			System.out.println("SERVLET STATUS: Finish building the indices");
-			
-			geo = new Georeference(modernIndex, histIndex);
+			geoIndexWriter.setDirectoryMode(getDirectoryMode(directoryMode));
+			if (modernIndexShards != null && Integer.parseInt(modernIndexShards) > 1) {
+				GeoShardedIndex modernIndex = geoIndexWriter.buildShardedIndexIfIndexNotExist(modernDataSource, 
+						modernIndexDirectory, Integer.parseInt(modernIndexShards));
+				System.out.println("SERVLET STATUS: Finish building the indices");
+				geo = new Georeference(modernIndex, histIndex);
+			}
+			else {
+				Directory modernIndex = geoIndexWriter.buildIndexIfIndexNotExist(modernDataSource, modernIndexDirectory);
+				System.out.println("SERVLET STATUS: Finish building the indices");
+				geo = new Georeference(modernIndex, histIndex);
+			}
+			geo.setDistanceScore(Boolean.parseBoolean(distanceScore));
+			if (warmupPlaceNames != null && !warmupPlaceNames.equals("")) {
+				geo.setWarmupPlaceNames(warmupPlaceNames.split(","));
+			}
+			if (resultCacheSize != null || resultCacheSeconds != null) {
+				int maxEntries = resultCacheSize != null ? Integer.parseInt(resultCacheSize) 
+						: GeoResultCache.DEFAULT_MAX_ENTRIES;
+				long timeToLiveMillis = resultCacheSeconds != null ? Long.parseLong(resultCacheSeconds) * 1000 
+						: GeoResultCache.DEFAULT_TIME_TO_LIVE_MILLIS;
+				geo.setResultCache(maxEntries > 0 ? new GeoResultCache(maxEntries, GeoResultCache.DEFAULT_MAX_WEIGHT, 
+						timeToLiveMillis) : null);
+			}
+			if (maxNearestPlaces != null) {
+				geo.setMaxNearestPlaces(Integer.parseInt(maxNearestPlaces));
+			}
+			if (boundCacheSize != null) {
+				int maxEntries = Integer.parseInt(boundCacheSize);
+				geo.setBoundFilterCache(maxEntries > 0 ? new GeoBoundFilterCache(maxEntries) : null);
+			}
+			if (localGazetteers != null && !localGazetteers.trim().equals("")) {
+				for (String gazetteer : localGazetteers.split(",")) {
+					String[] nameAndIndex = gazetteer.split("=", 2);
+					geo.addGazetteer(nameAndIndex[0].trim(), 
+							geoIndexWriter.getIndexFromFilePath(nameAndIndex[1].trim()));
+				}
+			}
+			startRefresher(refreshSeconds != null ? Long.parseLong(refreshSeconds) : 60);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -46,6 +140,21 @@ public class GeoreferenceServlet extends HttpServlet {
 		System.out.println("SERVLET STATUS: Finish initializing the service");
 	}
 	
+	public void destroy() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+		}
+		
+		// Close the indices that are kept open for searching
+		if (geo != null) {
+			try {
+				geo.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
 	public void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws IOException {
 		
@@ -55,42 +164,174 @@ public class GeoreferenceServlet extends HttpServlet {
 		String bound = req.getParameter("bound");
 		String nearbyPlaces = req.getParameter("nearbyPlaces");
 		String point = req.getParameter("point");
-		String searchOptionStr = req.getParameter("searchOption");
+		String formatStr = req.getParameter("format");
+		String cursor = req.getParameter("cursor");
+		Set<String> gazetteerNames = getGazetteerNames(req);
+		int format = getFormat(formatStr, resp);
 		
-		// Map the search options
-		int searchOption = 0;
-		if (searchOptionStr == null) {
-			searchOption = Georeference.BOTH;
-		}
-		else if (searchOptionStr.equals("modern")) {
-			searchOption = Georeference.MODERN_INDEX_ONLY;
-		}
-		else if (searchOptionStr.equals("historical")) {
-			searchOption = Georeference.HIST_INDEX_ONLY;
-		}
-		else {
-			searchOption = Georeference.BOTH;
-		}
-		
-		// Perform the search
-		String places = "";
+		// Perform the search and stream the places to the client as they are found; the cursor of the previous
+		// page is rejected before anything is written if it is invalid or the indices have been reopened since
+		OutputStream out = resp.getOutputStream();
 		if (type == null || type.equals("match")) {
 			try {
-				places = geo.searchLocation(placeName, bound, nearbyPlaces, searchOption);
+				geo.searchLocation(placeName, bound, nearbyPlaces, gazetteerNames, DistanceScoreQuery.SQUARE_ROOT, 
+						cursor, format, out);
 			} catch (ParseException e) {
 				e.printStackTrace();
+			} catch (IllegalArgumentException e) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
 			}
 		}
 		else if (type.equals("nearby")) {
+			// The point is given as latitude,longitude and an optional range in miles; nothing is written if it is
+			// invalid
+			try {
+				if (point == null || !geo.searchNearbyPlaces(placeName, point, false, gazetteerNames, 
+						DistanceScoreQuery.SQUARE_ROOT, cursor, format, out)) {
+					resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "the point must be latitude,longitude[,miles]");
+				}
+			} catch (ParseException e) {
+				e.printStackTrace();
+			} catch (IllegalArgumentException e) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			}
+		}
+		else if (type.equals("nearest")) {
+			// The point is given as latitude,longitude and k is the number of places (a page by default)
 			try {
-				places = geo.searchNearbyPlaces(placeName, point, searchOption);
+				String[] latLng = point != null ? point.split(",") : new String[0];
+				if (latLng.length < 2) {
+					throw new IllegalArgumentException("the point must be latitude,longitude");
+				}
+				String k = req.getParameter("k");
+				geo.searchNearestPlaces(placeName, Double.parseDouble(latLng[0]), Double.parseDouble(latLng[1]), 
+						k != null ? Integer.parseInt(k) : geo.getHitsPerPage(), false, gazetteerNames, cursor, format, out);
 			} catch (ParseException e) {
 				e.printStackTrace();
+			} catch (IllegalArgumentException e) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
 			}
 		}
 		
-		resp.getWriter().print(places);
+	}
+	
+	public void doPost(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		
+		// Get the parameters and the searches of the batch
+		Set<String> gazetteerNames = getGazetteerNames(req);
+		List<GeoBatchEntry> entries = new ArrayList<GeoBatchEntry>();
+		req.setCharacterEncoding("UTF-8");
+		BufferedReader reader = req.getReader();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.trim().equals("")) {
+				continue;
+			}
+			if (entries.size() == maxBatchSize) {
+				resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, 
+						"a batch can have at most " + maxBatchSize + " searches");
+				return;
+			}
+			String[] fields = line.split("\t", -1);
+			entries.add(new GeoBatchEntry(fields[0], fields.length > 1 ? fields[1] : null, 
+					fields.length > 2 ? fields[2] : null));
+		}
+		int format = getFormat(req.getParameter("format"), resp);
 		
+		// Run the searches and stream their results to the client in order as they are done
+		try {
+			geo.searchLocations(entries, gazetteerNames, DistanceScoreQuery.SQUARE_ROOT, format, resp.getOutputStream());
+		} catch (ParseException e) {
+			e.printStackTrace();
+		} catch (IllegalArgumentException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+		}
+	}
+	
+	// Get the gazetteers to search on from the gazetteers parameter, or from the older searchOption parameter;
+	// null (all gazetteers) if there is neither
+	private static Set<String> getGazetteerNames(HttpServletRequest req) {
+		String gazetteers = req.getParameter("gazetteers");
+		if (gazetteers != null && !gazetteers.trim().equals("")) {
+			Set<String> gazetteerNames = new HashSet<String>();
+			for (String name : gazetteers.split(",")) {
+				gazetteerNames.add(name.trim());
+			}
+			return gazetteerNames;
+		}
+		String searchOption = req.getParameter("searchOption");
+		if (searchOption != null && searchOption.equals("modern")) {
+			return Collections.singleton(Georeference.MODERN_GAZETTEER);
+		}
+		else if (searchOption != null && searchOption.equals("historical")) {
+			return Collections.singleton(Georeference.HIST_GAZETTEER);
+		}
+		else {
+			return null;
+		}
+	}
+	
+	// Map the names of the directory modes of the init-params
+	private static int getDirectoryMode(String directoryModeStr) {
+		if (directoryModeStr == null || directoryModeStr.equals("simple")) {
+			return GeoIndexWriter.SIMPLE_FS_DIRECTORY;
+		}
+		else if (directoryModeStr.equals("nio")) {
+			return GeoIndexWriter.NIO_FS_DIRECTORY;
+		}
+		else if (directoryModeStr.equals("mmap")) {
+			return GeoIndexWriter.MMAP_DIRECTORY;
+		}
+		else if (directoryModeStr.equals("ram")) {
+			return GeoIndexWriter.RAM_DIRECTORY;
+		}
+		throw new IllegalArgumentException("invalid directory mode: " + directoryModeStr);
+	}
+	
+	// Map the response formats and set the content type of the response
+	private static int getFormat(String formatStr, HttpServletResponse resp) {
+		if (formatStr == null || formatStr.equals("xml")) {
+			resp.setContentType("text/xml; charset=UTF-8");
+			return GeoResultWriter.XML;
+		}
+		else if (formatStr.equals("json")) {
+			resp.setContentType("application/json; charset=UTF-8");
+			return GeoResultWriter.JSON;
+		}
+		else if (formatStr.equals("binary")) {
+			resp.setContentType("application/octet-stream");
+			return GeoResultWriter.BINARY;
+		}
+		else {
+			resp.setContentType("text/xml; charset=UTF-8");
+			return GeoResultWriter.XML;
+		}
+	}
+	
+	// Periodically reopen the indices if they have been rebuilt (e.g. by GeoIndexWriter.rebuildIndex()) or 
+	// updated; the new indices are warmed up before they take searches
+	private void startRefresher(long seconds) {
+		if (seconds <= 0) {
+			return;
+		}
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "GeoreferenceRefresher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					if (geo.refresh()) {
+						System.out.println("SERVLET STATUS: Switched to the updated indices");
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
 	}
-
 }
@@ -36,5 +36,7 @@ public class GeoreferenceTest {
 		System.out.println("\n");
 		out = geo.searchNearbyPlaces("washington", "54.9,-1.5,10");
 		System.out.println(out);
+		
+		geo.close();
 	}
 }
@@ -1,8 +1,11 @@
 package edu.cornell.georeference;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.List;
 import java.util.Scanner;
 
 /**
@@ -19,6 +22,27 @@ public class WebClientTest {
 		URLConnection conn = url.openConnection();
 		String text = new Scanner(conn.getInputStream()).useDelimiter("\\Z").next();
 		System.out.println(text);
+		
+		// Get the same places in the compact binary format
+		url = new URL("http://localhost:8080/GeoreferenceWeb/geosearch?" + parameters + "&format=binary");
+		conn = url.openConnection();
+		List<GeoPlace> places = GeoResultReader.read(conn.getInputStream(), GeoResultWriter.BINARY);
+		for (GeoPlace place : places) {
+			System.out.println(place);
+		}
+		
+		// Search for several places in one batch
+		url = new URL("http://localhost:8080/GeoreferenceWeb/geosearch?format=json");
+		conn = url.openConnection();
+		conn.setDoOutput(true);
+		conn.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+		Writer writer = new OutputStreamWriter(conn.getOutputStream(), "UTF-8");
+		writer.write("washington\t\t50,0,10000;0,0,1000\nlondon\nparis\t40,-10;55,10\n");
+		writer.close();
+		List<GeoPlaceList> results = GeoResultReader.readBatch(conn.getInputStream(), GeoResultWriter.JSON);
+		for (GeoPlaceList result : results) {
+			System.out.println(result);
+		}
 	}
 	
 }